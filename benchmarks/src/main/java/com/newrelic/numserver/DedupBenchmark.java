@@ -0,0 +1,118 @@
+package com.newrelic.numserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedup check throughput through {@link SingleFileDatabase#isDuplicate(int)}, with one thread and with as many threads
+ * as there are CPUs, for mostly new and mostly duplicate numbers.  Only the index is exercised, the database is never
+ * started.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class DedupBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Index {
+        @Param({"HEAP", "PAGED", "ROARING", "MAPPED"})
+        SingleFileDatabase.IndexType indexType;
+
+        Path dir;
+        SingleFileDatabase database;
+
+        @Setup(Level.Trial)
+        public void createDir() throws IOException {
+            dir = Files.createTempDirectory("numbers-benchmark");
+        }
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            // a fresh index every iteration, so new numbers stay new
+            database = new SingleFileDatabase(dir.resolve("numbers.log"), DatabaseConfig.builder()
+                    .indexType(indexType)
+                    .build());
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            // never started, so the database leaves a mapped index open; the next iteration must not reopen its bits
+            DedupIndex index = database.getIndex();
+            if (index instanceof Closeable) {
+                ((Closeable) index).close();
+            }
+            Files.deleteIfExists(dir.resolve("numbers.log.idx"));
+        }
+
+        @TearDown(Level.Trial)
+        public void deleteDir() throws IOException {
+            Files.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        // share of lookups for a number this thread already inserted
+        @Param({"0.05", "0.95"})
+        double duplicateRatio;
+
+        private final SplittableRandom random = new SplittableRandom();
+        private UniqueNumbers fresh;
+        private int[] seen;
+        private int seenCount;
+
+        @Setup(Level.Iteration)
+        public void setUp(ThreadParams threads) {
+            fresh = new UniqueNumbers(threads.getThreadIndex() << 25);
+            seen = new int[64 * 1024];
+            seenCount = 0;
+        }
+
+        int next() {
+            if (seenCount > 0 && random.nextDouble() < duplicateRatio) {
+                return seen[random.nextInt(seenCount)];
+            }
+            int number = fresh.next();
+            if (seenCount < seen.length) {
+                seen[seenCount++] = number;
+            } else {
+                seen[random.nextInt(seen.length)] = number;
+            }
+            return number;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean isDuplicate_oneThread(Index index, Numbers numbers) {
+        return index.database.isDuplicate(numbers.next());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean isDuplicate_allThreads(Index index, Numbers numbers) {
+        return index.database.isDuplicate(numbers.next());
+    }
+}
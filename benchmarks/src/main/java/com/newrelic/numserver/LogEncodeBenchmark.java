@@ -0,0 +1,114 @@
+package com.newrelic.numserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * The two halves of a {@link ChannelLogWriter} batch, per record: what the database's writer thread spends draining
+ * the write queue and encoding records into a direct buffer, and what the I/O thread spends writing that buffer to the
+ * file (into the page cache, without fsync).  Shows whether encoding on the writer thread is what limits the log,
+ * compared to {@link SingleFileDatabaseBenchmark}.
+ *
+ * Encoding puts the EOL either as an array or, where it is one byte long, as a single byte.  The single byte put costs
+ * about a third of the one byte array put, which is why both log writers put a one byte EOL on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEncodeBenchmark {
+
+    // one pooled ChannelLogWriter buffer's worth
+    private static final int RECORDS = 64 * 1024;
+
+    private final IntRingBuffer queue = new IntRingBuffer(RECORDS);
+    private final int[] numbers = new int[RECORDS];
+    private final byte[] eol = SingleFileDatabase.EOL;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORDS * (4 + SingleFileDatabase.EOL.length));
+
+    private Path dir;
+    private FileChannel channel;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        UniqueNumbers fresh = new UniqueNumbers(0);
+        for (int i = 0; i < RECORDS; i++) {
+            numbers[i] = fresh.next();
+        }
+        dir = Files.createTempDirectory("numbers-benchmark");
+        channel = FileChannel.open(dir.resolve("numbers.log"), CREATE, WRITE);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() throws InterruptedException {
+        queue.putAll(numbers, 0, RECORDS);
+        buffer.clear();
+    }
+
+    @TearDown(Level.Invocation)
+    public void empty() {
+        queue.drainTo(number -> { }, RECORDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.delete(dir.resolve("numbers.log"));
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int drain() {
+        return queue.drainTo(number -> { }, RECORDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int encode_eolByte() {
+        byte eolByte = eol[0];
+        return queue.drainTo(number -> buffer.putInt(number).put(eolByte), RECORDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int encode_eolArray() {
+        return queue.drainTo(number -> buffer.putInt(number).put(eol), RECORDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public int write() throws IOException {
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            // always over the same bytes, so the file stays one buffer long
+            written += channel.write(buffer, written);
+        }
+        return written;
+    }
+}
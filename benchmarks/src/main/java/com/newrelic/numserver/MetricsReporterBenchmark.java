@@ -0,0 +1,48 @@
+package com.newrelic.numserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of counting inserts in {@link ConsoleMetricsReporter} when every client thread updates the same counters.
+ * The reporter is never started, so nothing is printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsReporterBenchmark {
+
+    private final ConsoleMetricsReporter reporter = new ConsoleMetricsReporter(Duration.ofSeconds(10));
+
+    @Benchmark
+    @Threads(1)
+    public void recordInsert_oneThread() {
+        reporter.recordInsert(true);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordInsert_allThreads() {
+        reporter.recordInsert(true);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void recordInserts_allThreads() {
+        reporter.recordInserts(900, 100);
+    }
+}
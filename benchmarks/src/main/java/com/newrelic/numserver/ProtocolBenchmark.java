@@ -0,0 +1,65 @@
+package com.newrelic.numserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing speed of {@link Protocol}, in lines per second.  The byte parser is fed a 64KB read buffer of nine digit
+ * lines, as the server's read loops do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    private static final int LINES = 64 * 1024 / Protocol.MIN_LINE_LENGTH;
+
+    private final Protocol protocol = new Protocol();
+    private ByteBuffer input;
+    private String[] lines;
+    private int nextLine;
+
+    @Setup
+    public void setUp() {
+        UniqueNumbers numbers = new UniqueNumbers(0);
+        input = ByteBuffer.allocate(LINES * Protocol.MIN_LINE_LENGTH);
+        lines = new String[LINES];
+        for (int i = 0; i < LINES; i++) {
+            lines[i] = String.format("%09d", numbers.next());
+            input.put((lines[i] + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        input.flip();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public Protocol.ClientInputAction acceptInput_buffer(Blackhole blackhole) throws InterruptedException, IOException {
+        input.position(0);
+        return protocol.acceptInput(input, blackhole::consume);
+    }
+
+    @Benchmark
+    public Protocol.ClientInputResponse acceptInput_line() {
+        String line = lines[nextLine];
+        nextLine = (nextLine + 1) % LINES;
+        return protocol.acceptInput(line);
+    }
+}
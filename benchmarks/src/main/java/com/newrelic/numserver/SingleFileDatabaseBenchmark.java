@@ -0,0 +1,108 @@
+package com.newrelic.numserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end insert throughput of a running {@link SingleFileDatabase}, writer thread and log included.  Inserts are
+ * all new numbers; once producers outrun the writer the bounded write queue makes them wait, so the score is what the
+ * whole pipeline sustains.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class SingleFileDatabaseBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"CHANNEL", "MAPPED_SEGMENTS"})
+        SingleFileDatabase.LogType logType;
+
+        @Param({"NONE", "GROUP_COMMIT"})
+        SingleFileDatabase.Durability durability;
+
+        Path dir;
+        SingleFileDatabase database;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            dir = Files.createTempDirectory("numbers-benchmark");
+            database = new SingleFileDatabase(dir.resolve("numbers.log"), DatabaseConfig.builder()
+                    .logType(logType)
+                    .durability(durability)
+                    .build());
+            database.startAsync().awaitRunning();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, TimeoutException {
+            database.stopAsync().awaitTerminated(30, TimeUnit.SECONDS);
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        UniqueNumbers fresh;
+        final int[] batch = new int[BATCH_SIZE];
+        final BitSet inserted = new BitSet(BATCH_SIZE);
+
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams threads) {
+            fresh = new UniqueNumbers(threads.getThreadIndex() << 25);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean tryInsert_oneThread(Database db, Numbers numbers) throws InterruptedException, IOException {
+        return db.database.tryInsert(numbers.fresh.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean tryInsert_fourThreads(Database db, Numbers numbers) throws InterruptedException, IOException {
+        return db.database.tryInsert(numbers.fresh.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int tryInsertAll_fourThreads(Database db, Numbers numbers) throws InterruptedException, IOException {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            numbers.batch[i] = numbers.fresh.next();
+        }
+        return db.database.tryInsertAll(numbers.batch, 0, BATCH_SIZE, numbers.inserted);
+    }
+}
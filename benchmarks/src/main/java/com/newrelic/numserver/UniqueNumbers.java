@@ -0,0 +1,37 @@
+package com.newrelic.numserver;
+
+/**
+ * Generates numbers in [0, {@link DatabaseConfig#MAX_NUMBER}) in a scrambled order without repeats, so inserts are
+ * new numbers at random positions in the dedup index, as from real clients.
+ *
+ * Sequence i maps to a bijective scramble of i over 30 bits; the 7% of results past the number range are skipped.
+ */
+class UniqueNumbers {
+
+    private static final int MASK = (1 << 30) - 1;
+
+    private int next;
+
+    /**
+     * @param start where in the sequence to begin, give each thread its own stretch
+     */
+    UniqueNumbers(int start) {
+        this.next = start;
+    }
+
+    int next() {
+        while (true) {
+            int number = scramble(next++ & MASK);
+            if (number < DatabaseConfig.MAX_NUMBER) {
+                return number;
+            }
+        }
+    }
+
+    private static int scramble(int i) {
+        int x = (i * 0x9E3779B1) & MASK;
+        x ^= x >>> 15;
+        x = (x * 0x2C1B3C6D) & MASK;
+        return x ^ (x >>> 13);
+    }
+}
@@ -0,0 +1,188 @@
+package com.newrelic.numclient;
+
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends lines over one connection.
+ *
+ * With a target rate the connection runs open loop: line k is due at start + k * interval whether or not the server
+ * kept up, and its send latency is measured from that intended time to the end of the write that sent it.  A server
+ * that stalls therefore shows up as latency for every line that fell due during the stall, not only for the one
+ * write that blocked, which is the coordinated omission correction.  Without a rate the connection sends full buffers
+ * back to back and records how long each write blocked.
+ *
+ * Lines are encoded straight into a reused byte buffer, up to 64KB per write.  In a binary wire format each write is
+ * one frame of the numbers that would otherwise have been lines, after the protocol magic once at the start.
+ */
+class ConnectionWorker implements Runnable {
+
+    private static final int LINE_LENGTH = 10;
+    private static final int BUFFER_LINES = 64 * 1024 / LINE_LENGTH;
+    private static final int RECENT_KEYS = 4096;
+
+    // BinaryProtocol constants, the client does not depend on the server
+    private static final byte[] BINARY_MAGIC = {'N', 'U', 'M', 'B', 1};
+    private static final byte PACKED_FRAME = 1;
+    private static final byte DELTA_FRAME = 2;
+    private static final int FRAME_HEADER_LENGTH = 5;
+
+    private final Socket socket;
+    private final KeyGenerator keys;
+    private final double duplicateRatio;
+    private final double intervalNanos;
+    private final long startNanos;
+    private final Recorder sendLatency;
+    private final LongAdder linesSent;
+    private final LongAdder bytesSent;
+    private final LoadDriverConfig.WireFormat wireFormat;
+    private final Optional<LogTailer> tailer;
+    private final int probeInterval;
+
+    private final SplittableRandom random;
+    private final byte[] buffer = new byte[BUFFER_LINES * LINE_LENGTH];
+    private final ByteBuffer frame = ByteBuffer.wrap(buffer);
+    private final int[] recent = new int[RECENT_KEYS];
+    private int recentCount;
+
+    ConnectionWorker(LoadDriverConfig config, int connection, Socket socket, long startNanos, Recorder sendLatency,
+                     LongAdder linesSent, LongAdder bytesSent, Optional<LogTailer> tailer) {
+        this.socket = socket;
+        this.random = new SplittableRandom(System.nanoTime() + connection);
+        this.keys = KeyGenerator.create(config.getKeys(), connection, config.getConnections(), random.split());
+        this.duplicateRatio = config.getDuplicateRatio();
+        this.intervalNanos = config.getRate() == 0 ? 0 : 1e9 * config.getConnections() / config.getRate();
+        this.startNanos = startNanos;
+        this.sendLatency = sendLatency;
+        this.linesSent = linesSent;
+        this.bytesSent = bytesSent;
+        this.wireFormat = config.getWireFormat();
+        this.tailer = tailer;
+        this.probeInterval = config.getProbeInterval();
+    }
+
+    @Override
+    public void run() {
+        try {
+            OutputStream out = socket.getOutputStream();
+            if (wireFormat != LoadDriverConfig.WireFormat.TEXT) {
+                out.write(BINARY_MAGIC);
+            }
+            long sent = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                long now = System.nanoTime();
+                int lines = BUFFER_LINES;
+                if (intervalNanos > 0) {
+                    long due = (long) ((now - startNanos) / intervalNanos) + 1;
+                    lines = (int) Math.min(due - sent, BUFFER_LINES);
+                    if (lines <= 0) {
+                        LockSupport.parkNanos((long) (startNanos + sent * intervalNanos - now));
+                        continue;
+                    }
+                }
+
+                int length = encode(sent, lines, now);
+                out.write(buffer, 0, length);
+                long done = System.nanoTime();
+
+                if (intervalNanos > 0) {
+                    for (int i = 0; i < lines; i++) {
+                        sendLatency.recordValue(toMicros(done - intendedNanos(sent + i)));
+                    }
+                } else {
+                    sendLatency.recordValueWithCount(toMicros(done - now), lines);
+                }
+                sent += lines;
+                linesSent.add(lines);
+                bytesSent.add(length);
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.err.println("Connection failed: " + e);
+            }
+        }
+    }
+
+    private int nextNumber(long line, long now) {
+        if (tailer.isPresent() && line % probeInterval == 0) {
+            int probe = tailer.get().newProbe(intervalNanos > 0 ? intendedNanos(line) : now);
+            if (probe >= 0) {
+                return probe;
+            }
+        }
+        if (recentCount > 0 && duplicateRatio > 0 && random.nextDouble() < duplicateRatio) {
+            return recent[random.nextInt(recentCount)];
+        }
+        int number = keys.next();
+        if (recentCount < RECENT_KEYS) {
+            recent[recentCount++] = number;
+        } else {
+            recent[random.nextInt(RECENT_KEYS)] = number;
+        }
+        return number;
+    }
+
+    private long intendedNanos(long line) {
+        return startNanos + (long) (line * intervalNanos);
+    }
+
+    /*
+     * Encodes the next lines into the buffer in the wire format, returns the length.
+     */
+    private int encode(long sent, int lines, long now) {
+        if (wireFormat == LoadDriverConfig.WireFormat.TEXT) {
+            int length = 0;
+            for (int i = 0; i < lines; i++) {
+                length = put(length, nextNumber(sent + i, now));
+            }
+            return length;
+        }
+
+        frame.clear();
+        frame.position(FRAME_HEADER_LENGTH);
+        int previous = 0;
+        for (int i = 0; i < lines; i++) {
+            int number = nextNumber(sent + i, now);
+            if (wireFormat == LoadDriverConfig.WireFormat.PACKED) {
+                frame.putInt(number);
+            } else {
+                int delta = number - previous;
+                int zigZag = (delta << 1) ^ (delta >> 31);
+                while ((zigZag & ~0x7f) != 0) {
+                    frame.put((byte) ((zigZag & 0x7f) | 0x80));
+                    zigZag >>>= 7;
+                }
+                frame.put((byte) zigZag);
+                previous = number;
+            }
+        }
+        frame.put(0, wireFormat == LoadDriverConfig.WireFormat.PACKED ? PACKED_FRAME : DELTA_FRAME)
+                .putInt(1, frame.position() - FRAME_HEADER_LENGTH);
+        return frame.position();
+    }
+
+    /*
+     * Writes the number as nine digits and a newline at the position, returns the position after it.
+     */
+    private int put(int position, int number) {
+        for (int i = 8; i >= 0; i--) {
+            buffer[position + i] = (byte) ('0' + number % 10);
+            number /= 10;
+        }
+        buffer[position + 9] = '\n';
+        return position + LINE_LENGTH;
+    }
+
+    private static long toMicros(long nanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+}
@@ -0,0 +1,59 @@
+package com.newrelic.numclient;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks the numbers a connection sends.  Numbers are in [0, {@link #KEY_SPACE}); the numbers above it are left for
+ * latency probes, see {@link LogTailer}.
+ *
+ * Not thread-safe, each connection has its own.
+ */
+interface KeyGenerator {
+
+    int KEY_SPACE = 999000000;
+
+    enum Distribution {
+        /** Every number equally likely. */
+        UNIFORM,
+        /** A few hot numbers, rank k picked with probability proportional to 1/k^0.99, as YCSB does. */
+        ZIPFIAN,
+        /** Each connection counts up through its own share of the number space, no duplicates. */
+        SEQUENTIAL
+    }
+
+    int next();
+
+    static KeyGenerator create(Distribution distribution, int connection, int connections, SplittableRandom random) {
+        switch (distribution) {
+            case ZIPFIAN:
+                ZipfianGenerator zipf = new ZipfianGenerator(KEY_SPACE, 0.99, random);
+                // spread the hot ranks over the number space
+                return () -> scramble(zipf.next() - 1);
+            case SEQUENTIAL:
+                int span = KEY_SPACE / connections;
+                int first = connection * span;
+                int[] offset = {0};
+                return () -> {
+                    int number = first + offset[0];
+                    offset[0] = (offset[0] + 1) % span;
+                    return number;
+                };
+            default:
+                return () -> random.nextInt(KEY_SPACE);
+        }
+    }
+
+    /**
+     * A bijection on [0, KEY_SPACE): permutes 30 bits and walks the cycle until back in range.
+     */
+    static int scramble(int number) {
+        int x = number;
+        do {
+            x = (x * 0x9E3779B1) & 0x3FFFFFFF;
+            x ^= x >>> 15;
+            x = (x * 0x2C1B3C6D) & 0x3FFFFFFF;
+            x ^= x >>> 13;
+        } while (x >= KEY_SPACE);
+        return x;
+    }
+}
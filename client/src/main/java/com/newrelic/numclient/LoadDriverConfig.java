@@ -0,0 +1,113 @@
+package com.newrelic.numclient;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Load driver settings, each read from a {@code numbers.*} system property, e.g.
+ * {@code -Dnumbers.connections=50 -Dnumbers.rate=2000000 -Dnumbers.keys=zipfian}.
+ */
+public class LoadDriverConfig {
+
+    /**
+     * How numbers are sent, see the server's {@code Protocol} and {@code BinaryProtocol}.
+     */
+    public enum WireFormat {
+        /** Nine digit lines, ten bytes a number. */
+        TEXT,
+        /** Binary frames of four byte ints. */
+        PACKED,
+        /** Binary frames of zig-zag varint deltas, smallest for sequential keys. */
+        DELTA
+    }
+
+    private final String host;
+    private final int port;
+    private final int runSeconds;
+    private final int connections;
+    private final long rate;
+    private final double duplicateRatio;
+    private final KeyGenerator.Distribution keys;
+    private final Optional<Path> logFile;
+    private final int probeInterval;
+    private final WireFormat wireFormat;
+
+    LoadDriverConfig(String host, int runSeconds) {
+        this.host = host;
+        this.runSeconds = runSeconds;
+        this.port = Integer.getInteger("numbers.port", 4000);
+        this.connections = Integer.getInteger("numbers.connections", 5);
+        this.rate = Long.getLong("numbers.rate", 0);
+        this.duplicateRatio = Double.parseDouble(System.getProperty("numbers.duplicateRatio", "0"));
+        this.keys = KeyGenerator.Distribution.valueOf(
+                System.getProperty("numbers.keys", "uniform").toUpperCase());
+        String logFile = System.getProperty("numbers.logFile");
+        this.logFile = logFile == null ? Optional.<Path>empty() : Optional.of(Paths.get(logFile));
+        this.probeInterval = Integer.getInteger("numbers.probeInterval", 1000);
+        this.wireFormat = WireFormat.valueOf(System.getProperty("numbers.protocol", "text").toUpperCase());
+        if (connections <= 0 || rate < 0 || duplicateRatio < 0 || duplicateRatio > 1 || probeInterval <= 0) {
+            throw new IllegalArgumentException("Invalid load driver settings: " + this);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getRunSeconds() {
+        return runSeconds;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return lines per second to send over all connections, 0 to send as fast as the server takes them
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * @return share of lines that repeat a number the connection sent recently
+     */
+    public double getDuplicateRatio() {
+        return duplicateRatio;
+    }
+
+    public KeyGenerator.Distribution getKeys() {
+        return keys;
+    }
+
+    /**
+     * @return the server's log file, tailed to measure end-to-end latency, if it is on this box
+     */
+    public Optional<Path> getLogFile() {
+        return logFile;
+    }
+
+    /**
+     * @return one line in this many is a probe whose arrival in the log is timed
+     */
+    public int getProbeInterval() {
+        return probeInterval;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    @Override
+    public String toString() {
+        return "host=" + host + ":" + port + ", seconds=" + runSeconds + ", connections=" + connections
+                + ", rate=" + (rate == 0 ? "unlimited" : rate + "/s") + ", duplicateRatio=" + duplicateRatio
+                + ", keys=" + keys + ", protocol=" + wireFormat + ", logFile="
+                + logFile.map(Path::toString).orElse("none");
+    }
+}
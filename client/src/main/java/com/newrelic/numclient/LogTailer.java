@@ -0,0 +1,139 @@
+package com.newrelic.numclient;
+
+import org.HdrHistogram.Recorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures end-to-end latency, from the time a line was due to be sent to the time its number appears in the server's
+ * log, by tailing the log file of a server on the same box.
+ *
+ * Connections send a probe every so often: a number above {@link KeyGenerator#KEY_SPACE} that no generator picks, so
+ * each probe is new to the server and is logged exactly once.  The server remembers the probes of earlier runs for as
+ * long as it runs, so probes start after the last one already in the log, found by reading the log backwards from its
+ * end.  Probes still pending at the end of a run were lost or are stuck in the server.  The log is polled, which adds
+ * up to about a millisecond.
+ *
+ * Only logs written as one file (the server's default log type) can be tailed.
+ */
+class LogTailer implements Runnable {
+
+    private static final int PROBE_BASE = KeyGenerator.KEY_SPACE;
+    private static final int MAX_PROBES = 1000000000 - PROBE_BASE;
+    private static final int RECORD_SIZE = 4 + System.getProperty("line.separator").length();
+
+    private final FileChannel channel;
+    private final Recorder latency;
+    private final AtomicInteger nextProbe;
+    // intended send time of each probe not seen in the log yet
+    private final ConcurrentHashMap<Integer, Long> pending = new ConcurrentHashMap<>();
+
+    private long position;
+    private volatile boolean running = true;
+
+    /**
+     * Starts tailing from the current end of the log.
+     */
+    LogTailer(Path logFile, Recorder latency) throws IOException {
+        this.channel = FileChannel.open(logFile, StandardOpenOption.READ);
+        this.latency = latency;
+        this.position = channel.size() - channel.size() % RECORD_SIZE;
+        this.nextProbe = new AtomicInteger(firstUnusedProbe());
+    }
+
+    /**
+     * Reserves a probe number.
+     *
+     * @return the number to send, -1 once all probe numbers are used up
+     */
+    int newProbe(long intendedNanos) {
+        int probe = nextProbe.getAndIncrement();
+        if (probe >= MAX_PROBES) {
+            return -1;
+        }
+        pending.put(PROBE_BASE + probe, intendedNanos);
+        return PROBE_BASE + probe;
+    }
+
+    /*
+     * Finds the last probe logged before the current position; probes are logged in the order they are handed out, so
+     * every later probe number is unused.  Reads the whole log if it holds no probe.
+     */
+    private int firstUnusedProbe() throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 64 * 1024);
+        long end = position;
+        while (end > 0) {
+            long start = Math.max(0, end - records.capacity());
+            records.clear();
+            records.limit((int) (end - start));
+            while (records.hasRemaining() && channel.read(records, start + records.position()) > 0) {
+                // read the whole chunk
+            }
+            for (int at = records.position() / RECORD_SIZE * RECORD_SIZE - RECORD_SIZE; at >= 0; at -= RECORD_SIZE) {
+                int number = records.getInt(at);
+                if (number >= PROBE_BASE) {
+                    return number - PROBE_BASE + 1;
+                }
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    int pendingProbes() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 64 * 1024);
+        try {
+            while (running) {
+                if (channel.size() < position) {
+                    // the server restarted with a new log
+                    position = 0;
+                    records.clear();
+                }
+                int read = channel.read(records, position);
+                if (read <= 0) {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(200));
+                    continue;
+                }
+                position += read;
+                long now = System.nanoTime();
+                records.flip();
+                while (records.remaining() >= RECORD_SIZE) {
+                    int number = records.getInt();
+                    records.position(records.position() + RECORD_SIZE - 4);
+                    if (number >= PROBE_BASE) {
+                        Long intendedNanos = pending.remove(number);
+                        if (intendedNanos != null) {
+                            latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(now - intendedNanos)));
+                        }
+                    }
+                }
+                records.compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Stopped tailing the server log: " + e);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+}
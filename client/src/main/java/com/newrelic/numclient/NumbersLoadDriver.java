@@ -1,57 +1,121 @@
 package com.newrelic.numclient;
 
-import java.io.BufferedOutputStream;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.IntStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Test load driver for numbers server.
+ *
+ * Opens the configured number of connections and sends nine digit lines over each, open loop at a target rate or as
+ * fast as the server takes them, see {@link LoadDriverConfig} and {@link ConnectionWorker}.  Every second it prints
+ * the lines sent and send latency percentiles, and end-to-end latency percentiles when the server's log can be tailed,
+ * see {@link LogTailer}; a summary for the whole run follows at the end.
  */
 public class NumbersLoadDriver {
 
-    private static final int NUM_THREADS = 5;
-    private static final ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+    // latencies are recorded in microseconds, up to an hour, to 3 significant digits
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
 
-    public static void main(String args[]) {
+    public static void main(String args[]) throws Exception {
         if (args.length < 2) {
             System.err.println("Usage: java NumbersLoadDriver <target-host> <run-time-in-seconds>");
             System.exit(1);
         }
+        LoadDriverConfig config = new LoadDriverConfig(args[0], Integer.parseInt(args[1]));
+        System.out.println("Load: " + config);
 
-        final String host = args[0];
-        final int runForMillis = Integer.parseInt(args[1]) * 1000;
+        Recorder sendLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+        Recorder endToEndLatency = new Recorder(MAX_LATENCY_MICROS, 3);
+        LongAdder linesSent = new LongAdder();
+        LongAdder bytesSent = new LongAdder();
 
-        Runnable r = () -> {
-            try (Socket s = new Socket(host, 4000);
-                 BufferedOutputStream bos = new BufferedOutputStream(s.getOutputStream());
-                 PrintWriter writer = new PrintWriter(bos, true)) {
-                Random random = new Random();
-                while (! Thread.currentThread().isInterrupted()) {
-                    String line = String.format("%09d\n", random.nextInt(1000000000));
-                    writer.print(line);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        };
+        Optional<LogTailer> tailer = Optional.empty();
+        if (config.getLogFile().isPresent()) {
+            tailer = Optional.of(new LogTailer(config.getLogFile().get(), endToEndLatency));
+            Thread tailerThread = new Thread(tailer.get(), "log-tailer");
+            tailerThread.setDaemon(true);
+            tailerThread.start();
+        }
 
-        IntStream.range(0, NUM_THREADS).forEach(n -> pool.submit(r));
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < config.getConnections(); i++) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(config.getHost(), config.getPort()));
+            sockets.add(socket);
+        }
 
-        long startTime = System.currentTimeMillis();
-        while ((System.currentTimeMillis() - startTime) < runForMillis) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        ExecutorService pool = Executors.newFixedThreadPool(config.getConnections());
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < config.getConnections(); i++) {
+            pool.submit(new ConnectionWorker(config, i, sockets.get(i), startNanos, sendLatency, linesSent, bytesSent,
+                    tailer));
+        }
+
+        Histogram totalSend = new Histogram(MAX_LATENCY_MICROS, 3);
+        Histogram totalEndToEnd = new Histogram(MAX_LATENCY_MICROS, 3);
+        Histogram send = null;
+        Histogram endToEnd = null;
+        long totalLines = 0;
+        long lastReportNanos = startNanos;
+        for (int second = 1; second <= config.getRunSeconds(); second++) {
+            TimeUnit.NANOSECONDS.sleep(startNanos + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+            long now = System.nanoTime();
+            long lines = linesSent.sumThenReset();
+            totalLines += lines;
+            send = sendLatency.getIntervalHistogram(send);
+            totalSend.add(send);
+            endToEnd = endToEndLatency.getIntervalHistogram(endToEnd);
+            totalEndToEnd.add(endToEnd);
+            double rate = lines * 1e9 / (now - lastReportNanos);
+            double bytesRate = bytesSent.sumThenReset() * 1e9 / (now - lastReportNanos);
+            lastReportNanos = now;
+            System.out.println(String.format("%4ds %,12.0f lines/s %7.1f MB/s  send %s%s", second, rate,
+                    bytesRate / 1e6, percentiles(send), tailer.isPresent() ? "  e2e " + percentiles(endToEnd) : ""));
         }
 
         System.out.println("Shutting down...");
         pool.shutdownNow();
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        pool.awaitTermination(5, TimeUnit.SECONDS);
+        totalLines += linesSent.sumThenReset();
+        totalSend.add(sendLatency.getIntervalHistogram());
+
+        System.out.println(String.format("Sent %,d lines in %d s, %,.0f lines/s", totalLines,
+                config.getRunSeconds(), totalLines / (double) config.getRunSeconds()));
+        System.out.println("Send latency (us): " + percentiles(totalSend));
+        if (tailer.isPresent()) {
+            // give the server a moment to log the last probes
+            TimeUnit.SECONDS.sleep(1);
+            tailer.get().stop();
+            totalEndToEnd.add(endToEndLatency.getIntervalHistogram());
+            System.out.println("End-to-end latency (us): " + percentiles(totalEndToEnd) + ", "
+                    + tailer.get().pendingProbes() + " probes not seen in the log");
+        }
+    }
+
+    private static String percentiles(Histogram histogram) {
+        if (histogram.getTotalCount() == 0) {
+            return "no samples";
+        }
+        return String.format("p50 %d p99 %d p99.9 %d max %d us", histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
     }
 }
@@ -0,0 +1,112 @@
+package com.newrelic.numclient;
+
+import org.HdrHistogram.Recorder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogTailerTest {
+
+    static final byte[] EOL = System.getProperty("line.separator").getBytes();
+
+    Path dir;
+    Path logFile;
+    FakeServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("numbers-client");
+        logFile = dir.resolve("numbers.log");
+        server = new FakeServer(logFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        Files.deleteIfExists(logFile);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void run_secondRunAgainstSameServerSendsNewProbes() throws Exception {
+        Recorder latency = new Recorder(3);
+        server.insert(5);
+        sendProbes(new LogTailer(logFile, latency), 3);
+        server.insert(6);
+        // the server still holds the first run's probes, a second run must not repeat them
+        sendProbes(new LogTailer(logFile, latency), 3);
+
+        assertEquals(6, latency.getIntervalHistogram().getTotalCount());
+    }
+
+    @Test
+    public void run_firstProbeAfterEmptyLog() throws Exception {
+        LogTailer tailer = new LogTailer(logFile, new Recorder(3));
+        assertEquals(KeyGenerator.KEY_SPACE, tailer.newProbe(System.nanoTime()));
+    }
+
+    /*
+     * Helpers
+     */
+    private void sendProbes(LogTailer tailer, int count) throws Exception {
+        Thread thread = new Thread(tailer, "LogTailerTest");
+        thread.start();
+        try {
+            for (int i = 0; i < count; i++) {
+                int probe = tailer.newProbe(System.nanoTime());
+                assertTrue("probe " + probe + " already sent", server.insert(probe));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (tailer.pendingProbes() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, tailer.pendingProbes());
+        } finally {
+            tailer.stop();
+            thread.join(2000);
+        }
+    }
+
+    /*
+     * Logs each number the first time it is inserted, as the server does.
+     */
+    private static class FakeServer {
+
+        private final Set<Integer> numbers = new HashSet<>();
+        private final FileChannel log;
+
+        FakeServer(Path logFile) throws IOException {
+            this.log = FileChannel.open(logFile, CREATE, APPEND);
+        }
+
+        boolean insert(int number) throws IOException {
+            if (!numbers.add(number)) {
+                return false;
+            }
+            ByteBuffer record = ByteBuffer.allocate(4 + EOL.length).putInt(number).put(EOL);
+            record.flip();
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            return true;
+        }
+
+        void close() throws IOException {
+            log.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.newrelic.numserver;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Settings for the {@link AdmissionController}: at what pressure the server starts to throttle client reads, stops
+ * accepting new clients and sheds connected ones.
+ *
+ * Pressure is the higher of the fullest write queue's fill fraction and the writer lag as a fraction of
+ * {@link #getMaxWriterLag()}, so 1.0 means a queue is full or numbers wait the maximum lag to be written.
+ */
+public class AdmissionConfig {
+
+    private final boolean enabled;
+    private final double throttleAt;
+    private final double pauseAcceptAt;
+    private final double shedAt;
+    private final Duration maxThrottleDelay;
+    private final Duration maxWriterLag;
+
+    private AdmissionConfig(Builder builder) {
+        if (!(0 <= builder.throttleAt && builder.throttleAt <= builder.pauseAcceptAt
+                && builder.pauseAcceptAt <= builder.shedAt)) {
+            throw new IllegalArgumentException("Admission thresholds must be ascending: throttle " + builder.throttleAt
+                    + ", pause accept " + builder.pauseAcceptAt + ", shed " + builder.shedAt);
+        }
+        if (builder.maxWriterLag.isZero() || builder.maxWriterLag.isNegative()) {
+            throw new IllegalArgumentException("Invalid max writer lag " + builder.maxWriterLag);
+        }
+        this.enabled = builder.enabled;
+        this.throttleAt = builder.throttleAt;
+        this.pauseAcceptAt = builder.pauseAcceptAt;
+        this.shedAt = builder.shedAt;
+        this.maxThrottleDelay = Objects.requireNonNull(builder.maxThrottleDelay);
+        this.maxWriterLag = builder.maxWriterLag;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static AdmissionConfig defaults() {
+        return builder().build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return pressure from which reads are delayed, by up to {@link #getMaxThrottleDelay()} as it nears
+     * {@link #getShedAt()}
+     */
+    public double getThrottleAt() {
+        return throttleAt;
+    }
+
+    /**
+     * @return pressure from which new connections wait in the listen backlog
+     */
+    public double getPauseAcceptAt() {
+        return pauseAcceptAt;
+    }
+
+    /**
+     * @return pressure from which connected clients are disconnected, one at a time
+     */
+    public double getShedAt() {
+        return shedAt;
+    }
+
+    public Duration getMaxThrottleDelay() {
+        return maxThrottleDelay;
+    }
+
+    /**
+     * @return how long a queued number may wait to be written before the writer counts as fully behind
+     */
+    public Duration getMaxWriterLag() {
+        return maxWriterLag;
+    }
+
+    public static class Builder {
+        private boolean enabled = true;
+        private double throttleAt = 0.5;
+        private double pauseAcceptAt = 0.8;
+        private double shedAt = 0.95;
+        private Duration maxThrottleDelay = Duration.ofMillis(50);
+        private Duration maxWriterLag = Duration.ofSeconds(2);
+
+        private Builder() {
+        }
+
+        public Builder enabled(boolean enabled) {
+            this.enabled = enabled;
+            return this;
+        }
+
+        public Builder throttleAt(double throttleAt) {
+            this.throttleAt = throttleAt;
+            return this;
+        }
+
+        public Builder pauseAcceptAt(double pauseAcceptAt) {
+            this.pauseAcceptAt = pauseAcceptAt;
+            return this;
+        }
+
+        public Builder shedAt(double shedAt) {
+            this.shedAt = shedAt;
+            return this;
+        }
+
+        public Builder maxThrottleDelay(Duration maxThrottleDelay) {
+            this.maxThrottleDelay = maxThrottleDelay;
+            return this;
+        }
+
+        public Builder maxWriterLag(Duration maxWriterLag) {
+            this.maxWriterLag = maxWriterLag;
+            return this;
+        }
+
+        public AdmissionConfig build() {
+            return new AdmissionConfig(this);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.newrelic.numserver;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how much client input the server admits, so that a burst the writers cannot keep up with slows clients down
+ * step by step instead of filling the write queues and stalling every reading thread on them.
+ *
+ * Every 10 ms the controller works out the pressure on the writers: the fill fraction of the fullest write queue, the
+ * writer lag (how long the queued numbers will take to write at the recent write rate) against the configured maximum,
+ * and whether any insert had to wait on a full queue since the last look.  The pressure sets the level:
+ * <ul>
+ *     <li>{@link Level#THROTTLE}: reading threads pause after each read, up to the max throttle delay as pressure
+ *     rises; unread input fills the socket buffers and TCP flow control slows the clients</li>
+ *     <li>{@link Level#PAUSE_ACCEPT}: also, new connections wait in the listen backlog</li>
+ *     <li>{@link Level#SHED}: also, one connected client every 100 ms is disconnected after its current read</li>
+ * </ul>
+ * A level is only left once pressure drops a little below its threshold, so levels do not flap.  Reading threads only
+ * read volatile fields the controller sets, they never wait on it.
+ */
+class AdmissionController extends AbstractScheduledService {
+
+    private static final Logger log = LoggerFactory.getLogger(AdmissionController.class);
+
+    /**
+     * Admission levels, each also applying the actions of the levels before it.
+     */
+    enum Level {
+        NORMAL,
+        THROTTLE,
+        PAUSE_ACCEPT,
+        SHED
+    }
+
+    private static final long EVALUATION_INTERVAL_MILLIS = 10;
+    private static final long SHED_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double HYSTERESIS = 0.05;
+    // throttled reads pause at least this fraction of the max delay, so throttling is felt as soon as it starts
+    private static final double MIN_THROTTLE_FRACTION = 0.1;
+    // weight of the latest interval in the smoothed write rate
+    private static final double RATE_SMOOTHING = 0.2;
+
+    private final AdmissionConfig config;
+    private final ServerMetrics metrics;
+
+    private volatile Level level = Level.NORMAL;
+    private volatile long readDelayNanos;
+    private final AtomicInteger shedPermits = new AtomicInteger();
+
+    // only touched by the evaluating thread
+    private long lastEvaluationNanos;
+    private long lastWriterRecords;
+    private long lastBackPressureNanos;
+    private long lastProgressNanos;
+    private long lastShedNanos;
+    private double writerRecordsPerNano;
+
+    AdmissionController(AdmissionConfig config, ServerMetrics metrics) {
+        this.config = Objects.requireNonNull(config);
+        this.metrics = Objects.requireNonNull(metrics);
+        reset(System.nanoTime());
+    }
+
+    @Override
+    protected void runOneIteration() {
+        evaluate(System.nanoTime());
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(EVALUATION_INTERVAL_MILLIS, EVALUATION_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void shutDown() {
+        // nothing left to protect, let reading threads finish without delay
+        level = Level.NORMAL;
+        readDelayNanos = 0;
+        shedPermits.set(0);
+    }
+
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @return how long reading threads pause after each read
+     */
+    long getReadDelayNanos() {
+        return readDelayNanos;
+    }
+
+    boolean isAcceptAllowed() {
+        return level.compareTo(Level.PAUSE_ACCEPT) < 0;
+    }
+
+    /**
+     * Called by a reading thread after each read: pauses for the current read delay, if any.
+     */
+    void throttle() throws InterruptedException {
+        long delay = readDelayNanos;
+        if (delay > 0) {
+            long startNanos = System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } finally {
+                metrics.recordThrottle(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * Called by a reading thread after each read.  While shedding, returns true to one caller per shed interval, which
+     * should then close its connection.
+     */
+    boolean tryShed() {
+        while (true) {
+            int permits = shedPermits.get();
+            if (permits <= 0) {
+                return false;
+            }
+            if (shedPermits.compareAndSet(permits, permits - 1)) {
+                metrics.recordShed();
+                return true;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void reset(long nowNanos) {
+        lastEvaluationNanos = nowNanos;
+        lastWriterRecords = metrics.getWriterRecords();
+        lastBackPressureNanos = metrics.getBackPressureNanos();
+        lastProgressNanos = nowNanos;
+        lastShedNanos = nowNanos - SHED_INTERVAL_NANOS;
+        writerRecordsPerNano = 0;
+    }
+
+    @VisibleForTesting
+    void evaluate(long nowNanos) {
+        long elapsed = nowNanos - lastEvaluationNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        long writerRecords = metrics.getWriterRecords();
+        long backPressureNanos = metrics.getBackPressureNanos();
+        long depth = metrics.getWriteQueueDepth();
+
+        if (writerRecords > lastWriterRecords) {
+            // only intervals the writer wrote in, idle ones would make the next burst look like a slow writer
+            double rate = (writerRecords - lastWriterRecords) / (double) elapsed;
+            writerRecordsPerNano = writerRecordsPerNano == 0 ? rate
+                    : RATE_SMOOTHING * rate + (1 - RATE_SMOOTHING) * writerRecordsPerNano;
+        }
+        // an empty queue counts as progress, so a writer idle for lack of input is not lagging
+        if (writerRecords > lastWriterRecords || depth == 0) {
+            lastProgressNanos = nowNanos;
+        }
+        long lagNanos = 0;
+        if (depth > 0) {
+            lagNanos = nowNanos - lastProgressNanos;
+            if (writerRecordsPerNano > 0) {
+                lagNanos = Math.max(lagNanos, (long) (depth / writerRecordsPerNano));
+            }
+        }
+
+        double pressure = Math.max(metrics.getWriteQueueFill(), lagNanos / (double) config.getMaxWriterLag().toNanos());
+        if (backPressureNanos > lastBackPressureNanos) {
+            // inserts already waited on a full queue
+            pressure = Math.max(pressure, 1);
+        }
+
+        Level previous = level;
+        Level next = levelFor(pressure, previous);
+        readDelayNanos = next == Level.NORMAL ? 0 : throttleDelayNanos(pressure);
+        if (next == Level.SHED) {
+            if (nowNanos - lastShedNanos >= SHED_INTERVAL_NANOS) {
+                shedPermits.set(1);
+                lastShedNanos = nowNanos;
+            }
+        } else {
+            shedPermits.set(0);
+        }
+        level = next;
+
+        if (!isAcceptAllowed()) {
+            metrics.recordAcceptPaused(elapsed);
+        }
+        metrics.recordAdmission(next.ordinal(), lagNanos);
+        if (next != previous) {
+            log.warn("Admission level {} -> {}: write queue {}% full, writer lag {} ms", previous, next,
+                    Math.round(metrics.getWriteQueueFill() * 100), TimeUnit.NANOSECONDS.toMillis(lagNanos));
+        }
+
+        lastEvaluationNanos = nowNanos;
+        lastWriterRecords = writerRecords;
+        lastBackPressureNanos = backPressureNanos;
+    }
+
+    private Level levelFor(double pressure, Level current) {
+        Level[] levels = Level.values();
+        for (int i = levels.length - 1; i > 0; i--) {
+            double threshold = threshold(levels[i]);
+            if (pressure >= threshold || (current.compareTo(levels[i]) >= 0 && pressure >= threshold - HYSTERESIS)) {
+                return levels[i];
+            }
+        }
+        return Level.NORMAL;
+    }
+
+    private double threshold(Level level) {
+        switch (level) {
+            case THROTTLE:
+                return config.getThrottleAt();
+            case PAUSE_ACCEPT:
+                return config.getPauseAcceptAt();
+            case SHED:
+                return config.getShedAt();
+            default:
+                return 0;
+        }
+    }
+
+    /*
+     * Grows linearly from the throttle threshold to the max delay at the shed threshold.
+     */
+    private long throttleDelayNanos(double pressure) {
+        double range = config.getShedAt() - config.getThrottleAt();
+        double fraction = range <= 0 ? 1 : (pressure - config.getThrottleAt()) / range;
+        fraction = Math.min(1, Math.max(MIN_THROTTLE_FRACTION, fraction));
+        return (long) (config.getMaxThrottleDelay().toNanos() * fraction);
+    }
+}
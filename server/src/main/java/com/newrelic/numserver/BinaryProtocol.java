@@ -0,0 +1,177 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary mode of the {@link Protocol}, for producers that send many numbers: four bytes or fewer per number instead
+ * of ten, and no decimal parsing.
+ *
+ * A connection selects it by sending {@link #MAGIC} as its first bytes.  The rest of its input is a sequence of
+ * frames, each a one byte type and a four byte big-endian payload length followed by the payload:
+ * <ul>
+ *     <li>{@link #PACKED}: each number as a four byte big-endian int; the length is a multiple of four</li>
+ *     <li>{@link #DELTA}: each number as the zig-zag varint of its difference from the number before it in the frame,
+ *     the first from zero; sorted or clustered numbers take one to three bytes</li>
+ *     <li>{@link #TERMINATE}: an empty payload, like the terminate command</li>
+ * </ul>
+ * A number outside {@code [0, 999999999]}, an unknown frame type, a payload longer than {@link #MAX_FRAME_LENGTH} or a
+ * varint running past the end of its frame closes the connection, as does input ending inside a frame.
+ *
+ * Frames are decoded as their bytes arrive, numbers are handed to the sink without waiting for the rest of the frame,
+ * so a caller never has to carry over more than {@link #MAX_CARRY_LENGTH} bytes between reads.  Each connection needs
+ * its own instance, it holds the position in the current frame.
+ */
+public class BinaryProtocol implements Protocol.Decoder {
+
+    public static final byte[] MAGIC = "NUMB\u0001".getBytes(Charsets.US_ASCII);
+
+    public static final byte PACKED = 1;
+    public static final byte DELTA = 2;
+    public static final byte TERMINATE = 3;
+
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    /**
+     * Most bytes of a varint, enough for any 32-bit value.
+     */
+    public static final int MAX_VARINT_LENGTH = 5;
+    /**
+     * Longest input a call can leave unconsumed: a partial header, number or varint.
+     */
+    public static final int MAX_CARRY_LENGTH = Math.max(HEADER_LENGTH, MAX_VARINT_LENGTH);
+
+    // type of the frame being decoded, 0 between frames
+    private byte frameType;
+    private int frameRemaining;
+    private int previous;
+
+    @Override
+    public Protocol.ClientInputAction acceptInput(ByteBuffer input, Protocol.NumberSink sink)
+            throws InterruptedException, IOException {
+        while (true) {
+            if (frameType == 0) {
+                if (input.remaining() < HEADER_LENGTH) {
+                    return Protocol.ClientInputAction.INSERT_NUMBER;
+                }
+                byte type = input.get();
+                int length = input.getInt();
+                if (type == TERMINATE && length == 0) {
+                    return Protocol.ClientInputAction.TERMINATE;
+                } else if (length < 0 || length > MAX_FRAME_LENGTH
+                        || !(type == DELTA || (type == PACKED && length % 4 == 0))) {
+                    return Protocol.ClientInputAction.CLOSE_CONNECTION;
+                }
+                frameType = type;
+                frameRemaining = length;
+                previous = 0;
+            }
+
+            boolean valid = frameType == PACKED ? acceptPacked(input, sink) : acceptDelta(input, sink);
+            if (!valid) {
+                return Protocol.ClientInputAction.CLOSE_CONNECTION;
+            } else if (frameRemaining > 0) {
+                // the rest of the frame is still to come
+                return Protocol.ClientInputAction.INSERT_NUMBER;
+            }
+            frameType = 0;
+        }
+    }
+
+    @Override
+    public Protocol.ClientInputAction acceptEndOfInput(ByteBuffer input, Protocol.NumberSink sink) {
+        // anything left is a truncated frame
+        return frameType == 0 && !input.hasRemaining()
+                ? Protocol.ClientInputAction.INSERT_NUMBER : Protocol.ClientInputAction.CLOSE_CONNECTION;
+    }
+
+    /**
+     * Appends a {@link #PACKED} frame of the numbers to the buffer.
+     */
+    public static void writePackedFrame(ByteBuffer output, int[] numbers, int offset, int length) {
+        output.put(PACKED).putInt(length * 4);
+        for (int i = offset; i < offset + length; i++) {
+            output.putInt(numbers[i]);
+        }
+    }
+
+    /**
+     * Appends a {@link #DELTA} frame of the numbers to the buffer.
+     */
+    public static void writeDeltaFrame(ByteBuffer output, int[] numbers, int offset, int length) {
+        int headerPosition = output.position();
+        output.position(headerPosition + HEADER_LENGTH);
+        int previous = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int delta = numbers[i] - previous;
+            int zigZag = (delta << 1) ^ (delta >> 31);
+            while ((zigZag & ~0x7f) != 0) {
+                output.put((byte) ((zigZag & 0x7f) | 0x80));
+                zigZag >>>= 7;
+            }
+            output.put((byte) zigZag);
+            previous = numbers[i];
+        }
+        output.put(headerPosition, DELTA)
+                .putInt(headerPosition + 1, output.position() - headerPosition - HEADER_LENGTH);
+    }
+
+    /*
+     * Passes on whole numbers until the frame or the input ends.  Returns false for a number out of range.
+     */
+    private boolean acceptPacked(ByteBuffer input, Protocol.NumberSink sink)
+            throws InterruptedException, IOException {
+        while (frameRemaining > 0 && input.remaining() >= 4) {
+            int number = input.getInt();
+            frameRemaining -= 4;
+            if (!isValid(number)) {
+                return false;
+            }
+            sink.acceptNumber(number);
+        }
+        return true;
+    }
+
+    /*
+     * Passes on whole varints until the frame or the input ends.  Returns false for a number out of range or a varint
+     * that is too long or runs past the end of the frame.
+     */
+    private boolean acceptDelta(ByteBuffer input, Protocol.NumberSink sink)
+            throws InterruptedException, IOException {
+        while (frameRemaining > 0) {
+            int start = input.position();
+            int available = Math.min(input.remaining(), frameRemaining);
+            int zigZag = 0;
+            int length = 0;
+            while (true) {
+                if (length == MAX_VARINT_LENGTH) {
+                    return false;
+                } else if (length == available) {
+                    // the rest of the varint is in the next read, unless the frame already ended
+                    return available < frameRemaining;
+                }
+                byte b = input.get(start + length);
+                zigZag |= (b & 0x7f) << (7 * length);
+                length++;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            long number = (long) previous + ((zigZag >>> 1) ^ -(zigZag & 1));
+            input.position(start + length);
+            frameRemaining -= length;
+            if (number < 0 || number >= DatabaseConfig.MAX_NUMBER) {
+                return false;
+            }
+            previous = (int) number;
+            sink.acceptNumber(previous);
+        }
+        return true;
+    }
+
+    private static boolean isValid(int number) {
+        return number >= 0 && number < DatabaseConfig.MAX_NUMBER;
+    }
+}
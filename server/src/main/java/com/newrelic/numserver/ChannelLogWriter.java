@@ -0,0 +1,264 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A log in one file that grows without limit, written in a pipeline: the database's writer thread encodes records
+ * into a pool of direct buffers and hands the filled ones to an I/O thread, which writes each batch with one gathering
+ * write and returns the buffers to the pool.  Encoding the next batch overlaps writing the last, and direct buffers
+ * spare the JDK's copy of a heap buffer into a temporary direct one on every write.  Encoding stays on the writer
+ * thread rather than in the inserting threads: it takes a few nanoseconds a record, a small share of an insert, see
+ * {@code LogEncodeBenchmark}.
+ *
+ * When every buffer is waiting to be written, appending waits for the I/O thread.  {@link #force()} waits for every
+ * write handed over so far before forcing, so forced records are always on disk; {@link #writtenSize()} only counts
+ * records the I/O thread has written.  Write latency is recorded by the I/O thread, as each write completes.
+ *
+ * Once a write fails the I/O thread skips every write handed over after it, so nothing lands past a gap.  The next
+ * append or force waits for those, cuts off any part of the failed write that reached the file, rolls {@link #size()}
+ * back to the records written before the failure and throws.
+ */
+class ChannelLogWriter implements LogWriter {
+
+    private static final int BUFFER_COUNT = 8;
+    private static final int BUFFER_BYTES = 256 * 1024;
+
+    private final FileChannel channel;
+    private final int recordSize;
+    private final IntConsumer encoder;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final ExecutorService ioThread;
+    private final Deque<Future<?>> writes = new ArrayDeque<>();
+
+    // buffer records are encoded into; only the writer thread touches it
+    private ByteBuffer current;
+    // appended, whether written yet or not; only the writer thread updates it
+    private long size;
+    // written by the I/O thread
+    private volatile long writtenSize;
+    // set by the I/O thread when a write fails, cleared by the writer thread once it rolled the log back
+    private volatile boolean failed;
+
+    /**
+     * @param truncate discard any existing log rather than append to it
+     * @param metrics where the I/O thread records the size and latency of each write
+     */
+    ChannelLogWriter(Path file, boolean truncate, byte[] eol, ServerMetrics metrics) throws IOException {
+        // Create the set of options for appending to the file.
+        Set<OpenOption> options = new HashSet<>();
+        options.add(CREATE);
+        options.add(WRITE);
+        options.add(READ);
+        if (truncate) {
+            options.add(TRUNCATE_EXISTING);
+        }
+        this.channel = LogWriter.open(file, options);
+        this.size = channel.size();
+        this.writtenSize = size;
+        channel.position(size);
+        this.recordSize = 4 + eol.length;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_BYTES / recordSize * recordSize));
+        }
+        byte eolByte = eol[0];
+        // see LogEncodeBenchmark for why a one byte EOL is put on its own
+        this.encoder = eol.length == 1
+                ? number -> current.putInt(number).put(eolByte)
+                : number -> current.putInt(number).put(eol);
+        this.metrics = metrics;
+        this.ioThread = Executors.newSingleThreadExecutor(
+                runnable -> new Thread(runnable, "ChannelLogWriter-" + file.getFileName()));
+    }
+
+    @Override
+    public LogRecovery.Result recover(LogRecovery recovery, long fromOffset, DedupIndex index) throws IOException {
+        LogRecovery.Result result = recovery.recover(channel, fromOffset, index);
+        size = channel.position();
+        writtenSize = size;
+        return result;
+    }
+
+    @Override
+    public int append(IntRingBuffer queue, int maxRecords) throws IOException {
+        checkCompletedWrites();
+        List<ByteBuffer> batch = new ArrayList<>();
+        int drained = 0;
+        while (drained < maxRecords) {
+            if (current == null) {
+                current = freeBuffers.poll();
+                if (current == null) {
+                    // every buffer is queued for writing: let the I/O thread start on what is encoded so far
+                    submit(batch);
+                    batch = new ArrayList<>();
+                    current = takeFreeBuffer();
+                }
+            }
+            int records = queue.drainTo(encoder, Math.min(maxRecords - drained, current.remaining() / recordSize));
+            drained += records;
+            if (current.remaining() < recordSize) {
+                batch.add(current);
+                current = null;
+            } else if (records == 0) {
+                break;
+            }
+        }
+        if (current != null && current.position() > 0) {
+            batch.add(current);
+            current = null;
+        }
+        submit(batch);
+        size += (long) drained * recordSize;
+        return drained;
+    }
+
+    @Override
+    public void force() throws IOException {
+        awaitWrites();
+        channel.force(false);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long writtenSize() {
+        return writtenSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitWrites();
+        } finally {
+            // every write was waited for, even after a failure, so this never stops one half way
+            ioThread.shutdown();
+            channel.close();
+        }
+    }
+
+    private void submit(List<ByteBuffer> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        writes.add(ioThread.submit(() -> {
+            long bytes = 0;
+            for (ByteBuffer buffer : buffers) {
+                buffer.flip();
+                bytes += buffer.remaining();
+            }
+            try {
+                if (failed) {
+                    // an earlier write failed, these records would land at the wrong offset
+                    return null;
+                }
+                long startNanos = System.nanoTime();
+                long written = 0;
+                while (written < bytes) {
+                    written += channel.write(buffers);
+                }
+                writtenSize += written;
+                metrics.recordWrite((int) (written / recordSize), written, System.nanoTime() - startNanos);
+            } catch (IOException | RuntimeException e) {
+                failed = true;
+                throw e;
+            } finally {
+                for (ByteBuffer buffer : buffers) {
+                    buffer.clear();
+                    freeBuffers.add(buffer);
+                }
+            }
+            return null;
+        }));
+    }
+
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        try {
+            return freeBuffers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a log buffer");
+        }
+    }
+
+    /*
+     * Drops finished writes, rethrowing the failure of any that failed.
+     */
+    private void checkCompletedWrites() throws IOException {
+        while (!writes.isEmpty() && writes.peekFirst().isDone()) {
+            await(writes.pollFirst());
+        }
+    }
+
+    private void awaitWrites() throws IOException {
+        while (!writes.isEmpty()) {
+            await(writes.pollFirst());
+        }
+    }
+
+    /*
+     * Waits for a write without giving up on interrupts, a write is never left running.  If it failed, rolls the log
+     * back before rethrowing.
+     */
+    private void await(Future<?> write) throws IOException {
+        try {
+            Uninterruptibles.getUninterruptibly(write);
+        } catch (ExecutionException e) {
+            IOException failure = e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Log write failed", e.getCause());
+            rollBack(failure);
+            throw failure;
+        }
+    }
+
+    /*
+     * Waits for the writes handed over after a failed one, which the I/O thread skips, then cuts the file back to the
+     * records written before the failure so appending can go on from there.
+     */
+    private void rollBack(IOException failure) {
+        while (!writes.isEmpty()) {
+            try {
+                Uninterruptibles.getUninterruptibly(writes.pollFirst());
+            } catch (ExecutionException e) {
+                failure.addSuppressed(e.getCause());
+            }
+        }
+        size = writtenSize;
+        try {
+            channel.truncate(size);
+            channel.position(size);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+        failed = false;
+    }
+}
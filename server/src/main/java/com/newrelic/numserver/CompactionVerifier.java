@@ -0,0 +1,94 @@
+package com.newrelic.numserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Checks that compacted log segments hold exactly the numbers of the raw segments they were made from.
+ *
+ * Run with the log file name, e.g. {@code CompactionVerifier numbers.log}.  For every sealed segment of the log it
+ * checks the compacted file's checksum and order and, while the raw segment is still there, that both hold the same
+ * set of numbers.  Exits with status 1 if any segment fails.
+ */
+public class CompactionVerifier {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: CompactionVerifier <log file>");
+            System.exit(2);
+        }
+        Path dbFile = Paths.get(args[0]);
+        List<Path> segments = MappedSegmentLogWriter.readManifest(dbFile);
+        if (segments.isEmpty()) {
+            System.err.println("No segment manifest for " + dbFile);
+            System.exit(2);
+        }
+
+        int failures = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Path segment = segments.get(i);
+            Path sorted = SortedSegment.fileFor(segment);
+            String status;
+            boolean failed = false;
+            if (!Files.exists(sorted)) {
+                failed = !Files.exists(segment);
+                status = failed ? "missing" : "not compacted";
+            } else if (!isWellFormed(SortedSegment.open(sorted))) {
+                failed = true;
+                status = "compacted file corrupt";
+            } else if (!Files.exists(segment)) {
+                status = "ok, compacted only";
+            } else {
+                failed = !verify(segment, SingleFileDatabase.EOL);
+                status = failed ? "compacted file does not match segment" : "ok";
+            }
+            if (failed) {
+                failures++;
+            }
+            System.out.println(segment.getFileName() + ": " + status);
+        }
+        System.out.println(failures == 0 ? "All sealed segments verified" : failures + " segments failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * @return true if the raw segment and its compacted file hold the same numbers
+     */
+    static boolean verify(Path segment, byte[] eol) throws IOException {
+        int[] numbers = LogCompactor.readSorted(segment, eol);
+        return numbers != null && matches(SortedSegment.open(SortedSegment.fileFor(segment)), numbers);
+    }
+
+    /**
+     * @return true if the compacted segment holds exactly the given ascending numbers and its checksum is valid
+     */
+    static boolean matches(SortedSegment segment, int[] sorted) {
+        if (segment.count() != sorted.length || !segment.isChecksumValid()) {
+            return false;
+        }
+        int[] position = {0};
+        boolean[] matches = {true};
+        segment.forEach(number -> {
+            if (sorted[position[0]++] != number) {
+                matches[0] = false;
+            }
+        });
+        return matches[0];
+    }
+
+    private static boolean isWellFormed(SortedSegment segment) {
+        if (!segment.isChecksumValid()) {
+            return false;
+        }
+        long[] previous = {Long.MIN_VALUE};
+        boolean[] ascending = {true};
+        segment.forEach(number -> {
+            ascending[0] &= number > previous[0];
+            previous[0] = number;
+        });
+        return ascending[0];
+    }
+}
@@ -0,0 +1,94 @@
+package com.newrelic.numserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size bit set whose test-and-set is a lock-free CAS on the 64-bit word holding the bit, so concurrent writers
+ * only contend when they touch the same word.
+ */
+public class ConcurrentBitSet implements DedupIndex {
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+
+    private final AtomicLongArray words;
+    private final int size;
+
+    public ConcurrentBitSet(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        this.size = size;
+        this.words = new AtomicLongArray(wordIndex(size - 1) + 1);
+    }
+
+    /**
+     * Sets the bit and returns its previous value.  The bit is read first, so testing an already set bit never writes.
+     */
+    @Override
+    public boolean getAndSet(int bitIndex) {
+        checkIndex(bitIndex);
+        int wordIndex = wordIndex(bitIndex);
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & mask) != 0) {
+                return true;
+            }
+        } while (!words.compareAndSet(wordIndex, word, word | mask));
+        return false;
+    }
+
+    @Override
+    public void clear(int bitIndex) {
+        checkIndex(bitIndex);
+        int wordIndex = wordIndex(bitIndex);
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = words.get(wordIndex);
+        } while ((word & mask) != 0 && !words.compareAndSet(wordIndex, word, word & ~mask));
+    }
+
+    @Override
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        return (words.get(wordIndex(bitIndex)) & (1L << bitIndex)) != 0;
+    }
+
+    @Override
+    public long word(int wordIndex) {
+        return words.get(wordIndex);
+    }
+
+    @Override
+    public void orWord(int wordIndex, long bits) {
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word | bits) == word) {
+                return;
+            }
+        } while (!words.compareAndSet(wordIndex, word, word | bits));
+    }
+
+    @Override
+    public int capacity() {
+        return size;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return words.length() * 8L;
+    }
+
+    private void checkIndex(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            throw new IndexOutOfBoundsException("bitIndex: " + bitIndex + ", size: " + size);
+        }
+    }
+
+    private static int wordIndex(int bitIndex) {
+        return bitIndex >> ADDRESS_BITS_PER_WORD;
+    }
+}
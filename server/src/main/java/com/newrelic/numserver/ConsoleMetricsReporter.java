@@ -1,35 +1,53 @@
 package com.newrelic.numserver;
 
 import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.Duration;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Objects;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Reports application metrics to the console.
+ * Reports application metrics to the console.  Prints the numbers received in each interval to standard out and logs
+ * where the time went: write queue depth, writer batches, flush and fsync latencies, parse errors, back-pressure and
+ * admission control.
  */
 public class ConsoleMetricsReporter extends AbstractScheduledService implements MetricsReporter {
 
+    private static final Logger log = LoggerFactory.getLogger(ConsoleMetricsReporter.class);
+
     private final Duration reportingFrequency;
+    private final ServerMetrics metrics;
 
-    private final AtomicInteger uniqueNumbersDeltaCount = new AtomicInteger(0);
-    private final AtomicInteger duplicateNumbersDeltaCount = new AtomicInteger(0);
-    private final AtomicInteger totalUniqueNumbersCount = new AtomicInteger(0);
+    // totals at the last report, only touched by the reporting thread
+    private long lastUnique;
+    private long lastDuplicates;
+    private long lastParseErrors;
+    private long lastBackPressureNanos;
+    private long lastThrottleNanos;
+    private long lastShedConnections;
+    private long lastDroppedDatagrams;
+    private long lastMalformedDatagrams;
+    private Log2Histogram.Snapshot lastBatches;
+    private Log2Histogram.Snapshot lastFlushes;
+    private Log2Histogram.Snapshot lastFsyncs;
 
     public ConsoleMetricsReporter(Duration reportingFrequency) {
+        this(reportingFrequency, new ServerMetrics());
+    }
+
+    public ConsoleMetricsReporter(Duration reportingFrequency, ServerMetrics metrics) {
         this.reportingFrequency = reportingFrequency;
+        this.metrics = Objects.requireNonNull(metrics);
+        this.lastBatches = metrics.getWriterBatchRecords();
+        this.lastFlushes = metrics.getWriterFlushMicros();
+        this.lastFsyncs = metrics.getFsyncMicros();
     }
 
     @Override
     protected void runOneIteration() throws Exception {
-        int uniqueDelta = uniqueNumbersDeltaCount.getAndSet(0);
-        int duplicatesDelta = duplicateNumbersDeltaCount.getAndSet(0);
-        int totalUnique = totalUniqueNumbersCount.addAndGet(uniqueDelta);
-        System.out.println(String.format("Received %d unique numbers, %d duplicates. Unique total: %d",
-                uniqueDelta, duplicatesDelta, totalUnique));
+        report();
     }
 
     @Override
@@ -39,24 +57,73 @@ public class ConsoleMetricsReporter extends AbstractScheduledService implements
 
     @Override
     public void recordInsert(boolean isNewNumber) {
-        if (isNewNumber) {
-            uniqueNumbersDeltaCount.incrementAndGet();
-        } else {
-            duplicateNumbersDeltaCount.incrementAndGet();
-        }
+        metrics.recordInsert(isNewNumber);
+    }
+
+    @Override
+    public void recordInserts(int newNumbers, int duplicates) {
+        metrics.recordInserts(newNumbers, duplicates);
+    }
+
+    @Override
+    public void recordDatagram() {
+        metrics.recordDatagram();
     }
 
-    private final Runnable reportTask = () -> {
-        int uniqueDelta = uniqueNumbersDeltaCount.getAndSet(0);
-        int duplicatesDelta = duplicateNumbersDeltaCount.getAndSet(0);
-        int totalUnique = totalUniqueNumbersCount.addAndGet(uniqueDelta);
+    @Override
+    public void recordDroppedDatagram() {
+        metrics.recordDroppedDatagram();
+    }
+
+    @Override
+    public void recordMalformedDatagram() {
+        metrics.recordMalformedDatagram();
+    }
+
+    private synchronized void report() {
+        long unique = metrics.getUniqueNumbers();
+        long duplicates = metrics.getDuplicateNumbers();
         System.out.println(String.format("Received %d unique numbers, %d duplicates. Unique total: %d",
-                uniqueDelta, duplicatesDelta, totalUnique));
-    };
+                unique - lastUnique, duplicates - lastDuplicates, unique));
+        lastUnique = unique;
+        lastDuplicates = duplicates;
+
+        long parseErrors = metrics.getParseErrors();
+        long backPressureNanos = metrics.getBackPressureNanos();
+        long throttleNanos = metrics.getThrottleNanos();
+        long shedConnections = metrics.getShedConnections();
+        long droppedDatagrams = metrics.getDroppedDatagrams();
+        long malformedDatagrams = metrics.getMalformedDatagrams();
+        Log2Histogram.Snapshot batches = metrics.getWriterBatchRecords();
+        Log2Histogram.Snapshot flushes = metrics.getWriterFlushMicros();
+        Log2Histogram.Snapshot fsyncs = metrics.getFsyncMicros();
+        Log2Histogram.Snapshot batchDelta = batches.minus(lastBatches);
+        Log2Histogram.Snapshot flushDelta = flushes.minus(lastFlushes);
+        Log2Histogram.Snapshot fsyncDelta = fsyncs.minus(lastFsyncs);
+        log.info("Queue depth {}, {} writer batches (p50 {} records), flush p99 {} us, {} fsyncs (p99 {} us), "
+                        + "{} connections, {} parse errors, {} ms back-pressure, admission level {}, {} ms throttled, "
+                        + "{} shed, {} datagrams dropped, {} malformed",
+                metrics.getWriteQueueDepth(), batchDelta.getCount(), batchDelta.getPercentile(50),
+                flushDelta.getPercentile(99), fsyncDelta.getCount(), fsyncDelta.getPercentile(99),
+                metrics.getActiveConnections(), parseErrors - lastParseErrors,
+                TimeUnit.NANOSECONDS.toMillis(backPressureNanos - lastBackPressureNanos),
+                AdmissionController.Level.values()[metrics.getAdmissionLevel()],
+                TimeUnit.NANOSECONDS.toMillis(throttleNanos - lastThrottleNanos), shedConnections - lastShedConnections,
+                droppedDatagrams - lastDroppedDatagrams, malformedDatagrams - lastMalformedDatagrams);
+        lastParseErrors = parseErrors;
+        lastBackPressureNanos = backPressureNanos;
+        lastThrottleNanos = throttleNanos;
+        lastShedConnections = shedConnections;
+        lastDroppedDatagrams = droppedDatagrams;
+        lastMalformedDatagrams = malformedDatagrams;
+        lastBatches = batches;
+        lastFlushes = flushes;
+        lastFsyncs = fsyncs;
+    }
 
     @Override
     protected void shutDown() throws Exception {
         // one last write of metrics in the caller's thread
-        reportTask.run();
+        report();
     }
 }
@@ -1,7 +1,13 @@
 package com.newrelic.numserver;
 
+import java.io.IOException;
+import java.util.BitSet;
+
 /**
  * A persistent storage for integer numbers.
+ *
+ * The read methods answer from the dedup index, not the log.  They never block and never hold up inserts; a number
+ * being inserted at the same time may or may not be seen.
  */
 public interface Database {
 
@@ -11,6 +17,46 @@ public interface Database {
      * This method will block and apply back-pressure only when database writes cannot keep up with input.
      *
      * @return true if the number has not yet been seen (inserted), false if the number is a duplicate
+     * @throws IOException if the database stopped before the number was written to disk as its durability requires;
+     * the number counts as not inserted
+     */
+    boolean tryInsert(int number) throws InterruptedException, IOException;
+
+    /**
+     * Attempts to insert {@code length} numbers from the array, in order.  Blocks like {@link #tryInsert(int)}.
+     *
+     * Implementations should override this to check and queue the whole batch in one pass.
+     *
+     * @param inserted cleared, then bit {@code i} is set if {@code numbers[offset + i]} was inserted
+     * @return the number of numbers inserted, the rest were duplicates
+     * @throws IOException if the database stopped before the numbers were written to disk as its durability requires;
+     * numbers of the batch may have been inserted by then
+     */
+    default int tryInsertAll(int[] numbers, int offset, int length, BitSet inserted)
+            throws InterruptedException, IOException {
+        inserted.clear();
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (tryInsert(numbers[offset + i])) {
+                inserted.set(i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the number has been inserted
+     */
+    boolean contains(int number);
+
+    /**
+     * @return the count of distinct numbers inserted
+     */
+    long count();
+
+    /**
+     * @return the count of distinct numbers inserted in {@code [low, high)}
      */
-    boolean tryInsert(int number) throws InterruptedException;
+    long countRange(int low, int high);
 }
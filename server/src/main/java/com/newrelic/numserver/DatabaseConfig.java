@@ -0,0 +1,225 @@
+package com.newrelic.numserver;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Settings for a {@link SingleFileDatabase}: how it starts up, where it keeps its dedup index, which range of
+ * numbers it holds, how its log is stored and how durable its writes are.
+ */
+public class DatabaseConfig {
+
+    /**
+     * Exclusive upper bound of the numbers accepted by the protocol, numbers with up to 9 digits.
+     */
+    public static final int MAX_NUMBER = 1000000000;
+
+    private final SingleFileDatabase.StartupMode startupMode;
+    private final SingleFileDatabase.IndexType indexType;
+    private final int lowNumber;
+    private final int highNumber;
+    private final SingleFileDatabase.LogType logType;
+    private final int segmentSize;
+    private final SingleFileDatabase.Compaction compaction;
+    private final Duration compactionInterval;
+    private final SingleFileDatabase.Durability durability;
+    private final Duration fsyncInterval;
+    private final long fsyncBytes;
+    private final Duration snapshotInterval;
+
+    private DatabaseConfig(Builder builder) {
+        if (builder.lowNumber < 0 || builder.highNumber <= builder.lowNumber) {
+            throw new IllegalArgumentException("Invalid number range [" + builder.lowNumber + ", "
+                    + builder.highNumber + ")");
+        }
+        this.startupMode = Objects.requireNonNull(builder.startupMode);
+        this.indexType = Objects.requireNonNull(builder.indexType);
+        this.lowNumber = builder.lowNumber;
+        this.highNumber = builder.highNumber;
+        this.logType = Objects.requireNonNull(builder.logType);
+        this.segmentSize = builder.segmentSize;
+        this.compaction = Objects.requireNonNull(builder.compaction);
+        this.compactionInterval = Objects.requireNonNull(builder.compactionInterval);
+        if (compaction != SingleFileDatabase.Compaction.NONE && logType != SingleFileDatabase.LogType.MAPPED_SEGMENTS) {
+            throw new IllegalArgumentException("Compaction needs a " + SingleFileDatabase.LogType.MAPPED_SEGMENTS
+                    + " log");
+        }
+        this.durability = Objects.requireNonNull(builder.durability);
+        this.fsyncInterval = Objects.requireNonNull(builder.fsyncInterval);
+        this.fsyncBytes = builder.fsyncBytes;
+        this.snapshotInterval = Objects.requireNonNull(builder.snapshotInterval);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static DatabaseConfig defaults() {
+        return builder().build();
+    }
+
+    public Builder toBuilder() {
+        return builder()
+                .startupMode(startupMode)
+                .indexType(indexType)
+                .numberRange(lowNumber, highNumber)
+                .logType(logType)
+                .segmentSize(segmentSize)
+                .compaction(compaction)
+                .compactionInterval(compactionInterval)
+                .durability(durability)
+                .fsyncInterval(fsyncInterval)
+                .fsyncBytes(fsyncBytes)
+                .snapshotInterval(snapshotInterval);
+    }
+
+    public SingleFileDatabase.StartupMode getStartupMode() {
+        return startupMode;
+    }
+
+    public SingleFileDatabase.IndexType getIndexType() {
+        return indexType;
+    }
+
+    /**
+     * @return the smallest number the database holds
+     */
+    public int getLowNumber() {
+        return lowNumber;
+    }
+
+    /**
+     * @return the exclusive upper bound of the numbers the database holds
+     */
+    public int getHighNumber() {
+        return highNumber;
+    }
+
+    public SingleFileDatabase.LogType getLogType() {
+        return logType;
+    }
+
+    /**
+     * @return the size of each log segment file with {@link SingleFileDatabase.LogType#MAPPED_SEGMENTS}
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public SingleFileDatabase.Compaction getCompaction() {
+        return compaction;
+    }
+
+    /**
+     * @return how long the {@link LogCompactor} waits between looking for sealed segments
+     */
+    public Duration getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    public SingleFileDatabase.Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * @return the longest written data may wait for an fsync with {@link SingleFileDatabase.Durability#PERIODIC}
+     */
+    public Duration getFsyncInterval() {
+        return fsyncInterval;
+    }
+
+    /**
+     * @return the most bytes that may be written without an fsync with {@link SingleFileDatabase.Durability#PERIODIC}
+     */
+    public long getFsyncBytes() {
+        return fsyncBytes;
+    }
+
+    /**
+     * @return how often the {@link IndexSnapshotter} checkpoints the dedup index, zero for no snapshots
+     */
+    public Duration getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    public static class Builder {
+        private SingleFileDatabase.StartupMode startupMode = SingleFileDatabase.StartupMode.TRUNCATE;
+        private SingleFileDatabase.IndexType indexType = SingleFileDatabase.IndexType.PAGED;
+        private int lowNumber = 0;
+        private int highNumber = MAX_NUMBER;
+        private SingleFileDatabase.LogType logType = SingleFileDatabase.LogType.CHANNEL;
+        private int segmentSize = 256 * 1024 * 1024;
+        private SingleFileDatabase.Compaction compaction = SingleFileDatabase.Compaction.NONE;
+        private Duration compactionInterval = Duration.ofMinutes(1);
+        private SingleFileDatabase.Durability durability = SingleFileDatabase.Durability.NONE;
+        private Duration fsyncInterval = Duration.ofMillis(100);
+        private long fsyncBytes = 64 * 1024 * 1024;
+        private Duration snapshotInterval = Duration.ZERO;
+
+        private Builder() {
+        }
+
+        public Builder startupMode(SingleFileDatabase.StartupMode startupMode) {
+            this.startupMode = startupMode;
+            return this;
+        }
+
+        public Builder indexType(SingleFileDatabase.IndexType indexType) {
+            this.indexType = indexType;
+            return this;
+        }
+
+        /**
+         * Restricts the database to numbers in [lowNumber, highNumber), e.g. for one shard of the number space.
+         */
+        public Builder numberRange(int lowNumber, int highNumber) {
+            this.lowNumber = lowNumber;
+            this.highNumber = highNumber;
+            return this;
+        }
+
+        public Builder logType(SingleFileDatabase.LogType logType) {
+            this.logType = logType;
+            return this;
+        }
+
+        public Builder segmentSize(int segmentSize) {
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        public Builder compaction(SingleFileDatabase.Compaction compaction) {
+            this.compaction = compaction;
+            return this;
+        }
+
+        public Builder compactionInterval(Duration compactionInterval) {
+            this.compactionInterval = compactionInterval;
+            return this;
+        }
+
+        public Builder durability(SingleFileDatabase.Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public Builder fsyncInterval(Duration fsyncInterval) {
+            this.fsyncInterval = fsyncInterval;
+            return this;
+        }
+
+        public Builder fsyncBytes(long fsyncBytes) {
+            this.fsyncBytes = fsyncBytes;
+            return this;
+        }
+
+        public Builder snapshotInterval(Duration snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+            return this;
+        }
+
+        public DatabaseConfig build() {
+            return new DatabaseConfig(this);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Objects;
+
+/**
+ * Takes numbers in UDP datagrams, for fire-and-forget producers that should not hold one of the few client
+ * connections.  One thread receives every datagram, and there is no state per producer.
+ *
+ * Each datagram is decoded like the whole input of a connection: nine digit lines, or {@link BinaryProtocol#MAGIC}
+ * followed by binary frames.  A datagram is inserted whole or not at all.  A datagram with an invalid line or frame,
+ * or a terminate command, is dropped and counted as malformed.  UDP has no flow control, so while admission control
+ * holds off new connections, datagrams are dropped and counted rather than queued.
+ */
+class DatagramServer extends AbstractExecutionThreadService {
+
+    private static final Logger log = LoggerFactory.getLogger(DatagramServer.class);
+
+    // larger than any UDP payload, so nothing is truncated
+    private static final int MAX_DATAGRAM_LENGTH = 64 * 1024;
+    private static final int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+
+    private final Protocol protocol;
+    private final MetricsReporter metrics;
+    private final AdmissionController admission;
+    private final String listenAddress;
+    private final int port;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_LENGTH);
+    // a delta frame takes as little as one byte per number
+    private final InsertBatch batch;
+    private DatagramChannel channel;
+
+    /**
+     * @param port 0 for any free port
+     */
+    DatagramServer(Protocol protocol, Database database, MetricsReporter metrics, AdmissionController admission,
+                   String listenAddress, int port) {
+        this.protocol = Objects.requireNonNull(protocol);
+        this.metrics = Objects.requireNonNull(metrics);
+        this.admission = Objects.requireNonNull(admission);
+        this.listenAddress = Objects.requireNonNull(listenAddress);
+        this.port = port;
+        this.batch = new InsertBatch(database, metrics, MAX_DATAGRAM_LENGTH);
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+        channel.bind(new InetSocketAddress(listenAddress, port));
+        log.info("Receiving datagrams on {}:{}", listenAddress, getPort());
+    }
+
+    @Override
+    protected void run() throws InterruptedException {
+        while (isRunning()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                // closed by triggerShutdown
+                log.debug("Datagram channel closed", e);
+                return;
+            } catch (IOException e) {
+                log.warn("Handled IOException receiving a datagram", e);
+                continue;
+            }
+            buffer.flip();
+            if (!admission.isAcceptAllowed()) {
+                metrics.recordDroppedDatagram();
+                continue;
+            }
+            try {
+                accept(buffer);
+            } catch (IOException e) {
+                // the database stopped; what was inserted of the datagram stays, the rest is dropped
+                log.warn("Handled IOException inserting a datagram", e);
+                batch.discard();
+                metrics.recordDroppedDatagram();
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close datagram channel", e);
+        }
+    }
+
+    /**
+     * @return the port datagrams are received on
+     */
+    int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /*
+     * Inserts the numbers of one datagram, if it is valid.
+     */
+    void accept(ByteBuffer datagram) throws InterruptedException, IOException {
+        Protocol.Decoder decoder = protocol.newConnectionDecoder();
+        Protocol.ClientInputAction action = decoder.acceptInput(datagram, batch);
+        if (action == Protocol.ClientInputAction.INSERT_NUMBER) {
+            action = decoder.acceptEndOfInput(datagram, batch);
+        }
+        if (action != Protocol.ClientInputAction.INSERT_NUMBER) {
+            batch.discard();
+            metrics.recordMalformedDatagram();
+            return;
+        }
+        batch.flush();
+        metrics.recordDatagram();
+    }
+}
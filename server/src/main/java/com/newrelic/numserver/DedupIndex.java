@@ -0,0 +1,46 @@
+package com.newrelic.numserver;
+
+/**
+ * The set of numbers seen so far, used to reject duplicates.  Holds numbers in [0, capacity).
+ *
+ * Implementations of this interface must be thread-safe.
+ */
+public interface DedupIndex {
+
+    /**
+     * Adds the number to the set.
+     *
+     * @return true if the number was already present
+     */
+    boolean getAndSet(int number);
+
+    /**
+     * Removes the number from the set, e.g. when its insert failed before it reached the log.
+     */
+    void clear(int number);
+
+    /**
+     * @return true if the number is present
+     */
+    boolean get(int number);
+
+    /**
+     * @return the 64 bits for numbers {@code [64 * wordIndex, 64 * wordIndex + 64)}, lowest number in the lowest bit
+     */
+    long word(int wordIndex);
+
+    /**
+     * Adds every number whose bit is set in {@code bits} to word {@code wordIndex}, e.g. when loading a snapshot.
+     */
+    void orWord(int wordIndex, long bits);
+
+    /**
+     * @return the exclusive upper bound of numbers this index can hold
+     */
+    int capacity();
+
+    /**
+     * @return bytes of memory holding the bits so far, on the heap or mapped
+     */
+    long memoryBytes();
+}
@@ -0,0 +1,329 @@
+package com.newrelic.numserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A checkpoint of the dedup index: exactly the numbers in the first {@link #getLogOffset()} bytes of the log, so
+ * recovery can load it and replay only the log after that offset.  Written by the {@link IndexSnapshotter}.
+ *
+ * Files are named after the log and the offset they cover, e.g. {@code numbers.log.snapshot.00000000000123456789}.
+ * Layout, big-endian: magic "NUMSNAP1", log offset, low number, capacity, then Roaring-style containers of 2^16 numbers
+ * each, then an end marker of key -1 and a CRC32 of everything before it.  Each non-empty container is stored in the
+ * smallest of three forms: a sorted array of 16-bit values for sparse containers, runs of (start, length - 1) for
+ * clustered ones, or a plain 8KB bitmap for dense ones.  A full 10^9 range is at most about 125MB, and a sparse or
+ * sequential one a small fraction of that.
+ */
+class IndexSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexSnapshot.class);
+
+    private static final long MAGIC = 0x4e554d534e415031L; // "NUMSNAP1"
+    private static final String INFIX = ".snapshot.";
+    private static final int HEADER_SIZE = 24;
+
+    private static final int CONTAINER_SHIFT = 16;
+    private static final int WORDS_PER_CONTAINER = 1 << (CONTAINER_SHIFT - 6);
+    private static final int BITMAP_BYTES = WORDS_PER_CONTAINER * 8;
+
+    private static final byte ARRAY = 0;
+    private static final byte RUNS = 1;
+    private static final byte BITMAP = 2;
+
+    /**
+     * Receives the words of a snapshot.  A word may be handed over more than once, in parts; OR them together.
+     */
+    interface WordSink {
+        void accept(int wordIndex, long bits);
+    }
+
+    private final Path file;
+    private final MappedByteBuffer buffer;
+    private final long logOffset;
+    private final int lowNumber;
+    private final int capacity;
+
+    private IndexSnapshot(Path file, MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE + 8 || buffer.getLong(0) != MAGIC) {
+            throw new IOException("Not an index snapshot: " + file);
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer checked = buffer.duplicate();
+        checked.limit(buffer.capacity() - 4);
+        crc.update(checked);
+        if ((int) crc.getValue() != buffer.getInt(buffer.capacity() - 4)) {
+            throw new IOException("Checksum mismatch in index snapshot " + file);
+        }
+        this.file = file;
+        this.buffer = buffer;
+        this.logOffset = buffer.getLong(8);
+        this.lowNumber = buffer.getInt(16);
+        this.capacity = buffer.getInt(20);
+    }
+
+    static Path fileFor(Path dbFile, long logOffset) {
+        return dbFile.resolveSibling(String.format("%s%s%020d", dbFile.getFileName(), INFIX, logOffset));
+    }
+
+    /**
+     * Opens and checksums a snapshot file.
+     *
+     * @throws IOException if the file is not a complete, intact snapshot
+     */
+    static IndexSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            return new IndexSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the snapshot files of the log, newest first
+     */
+    static List<Path> list(Path dbFile) throws IOException {
+        List<Path> files = new ArrayList<>();
+        String prefix = dbFile.getFileName() + INFIX;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dbFile.toAbsolutePath().getParent(),
+                prefix + "*")) {
+            for (Path file : stream) {
+                if (offsetOf(file, prefix) >= 0) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(offsetOf(b, prefix), offsetOf(a, prefix)));
+        return files;
+    }
+
+    /**
+     * @param logSize the length of the valid log; snapshots covering more than that are skipped
+     * @return the newest intact snapshot of the log for the given number range, null if there is none
+     */
+    static IndexSnapshot findLatest(Path dbFile, int lowNumber, int capacity, long logSize) throws IOException {
+        for (Path file : list(dbFile)) {
+            try {
+                IndexSnapshot snapshot = open(file);
+                if (snapshot.lowNumber == lowNumber && snapshot.capacity == capacity
+                        && snapshot.logOffset <= logSize) {
+                    return snapshot;
+                }
+                log.warn("Skipping snapshot {}, it does not match the log", file);
+            } catch (IOException e) {
+                log.warn("Skipping unreadable snapshot {}", file, e);
+            }
+        }
+        return null;
+    }
+
+    static void deleteAll(Path dbFile) throws IOException {
+        for (Path file : list(dbFile)) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Writes the numbers set in {@code words}, bit {@code i} standing for {@code lowNumber + i}, as the snapshot of
+     * the first {@code logOffset} bytes of the log.  The file is forced and moved into place atomically.
+     *
+     * @return the snapshot file
+     */
+    static Path write(Path dbFile, long logOffset, int lowNumber, int capacity, long[] words) throws IOException {
+        Path file = fileFor(dbFile, logOffset);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = LogWriter.open(tmp, EnumSet.of(CREATE, WRITE, TRUNCATE_EXISTING))) {
+            BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeLong(MAGIC);
+            out.writeLong(logOffset);
+            out.writeInt(lowNumber);
+            out.writeInt(capacity);
+            for (int key = 0; key * WORDS_PER_CONTAINER < words.length; key++) {
+                writeContainer(out, key, words);
+            }
+            out.writeInt(-1);
+            out.flush();
+            new DataOutputStream(buffered).writeInt((int) crc.getValue());
+            buffered.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the log length the snapshot covers, the offset to replay the log from
+     */
+    long getLogOffset() {
+        return logOffset;
+    }
+
+    int getLowNumber() {
+        return lowNumber;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Hands every non-zero word of the snapshot to the sink, in ascending order.
+     */
+    void forEachWord(WordSink sink) throws IOException {
+        int wordCount = (capacity + 63) >>> 6;
+        ByteBuffer data = buffer.duplicate();
+        data.position(HEADER_SIZE);
+        int key;
+        while ((key = data.getInt()) != -1) {
+            int firstWord = key * WORDS_PER_CONTAINER;
+            if (key < 0 || firstWord >= wordCount) {
+                throw new IOException("Invalid container " + key + " in index snapshot " + file);
+            }
+            int base = key << CONTAINER_SHIFT;
+            byte type = data.get();
+            if (type == ARRAY) {
+                int count = data.getInt();
+                int wordIndex = -1;
+                long bits = 0;
+                for (int i = 0; i < count; i++) {
+                    int bit = base + (data.getShort() & 0xffff);
+                    if (bit >>> 6 != wordIndex) {
+                        if (bits != 0) {
+                            sink.accept(wordIndex, bits);
+                        }
+                        wordIndex = bit >>> 6;
+                        bits = 0;
+                    }
+                    bits |= 1L << bit;
+                }
+                if (bits != 0) {
+                    sink.accept(wordIndex, bits);
+                }
+            } else if (type == RUNS) {
+                int count = data.getInt();
+                for (int i = 0; i < count; i++) {
+                    int start = base + (data.getShort() & 0xffff);
+                    int end = start + (data.getShort() & 0xffff) + 1;
+                    for (int wordIndex = start >>> 6; wordIndex <= (end - 1) >>> 6; wordIndex++) {
+                        int from = Math.max(start, wordIndex << 6) & 63;
+                        int to = Math.min(end, (wordIndex + 1) << 6) - (wordIndex << 6);
+                        sink.accept(wordIndex, (to == 64 ? -1L : (1L << to) - 1) & (-1L << from));
+                    }
+                }
+            } else if (type == BITMAP) {
+                for (int i = 0; i < WORDS_PER_CONTAINER; i++) {
+                    long bits = data.getLong();
+                    if (bits != 0 && firstWord + i < wordCount) {
+                        sink.accept(firstWord + i, bits);
+                    }
+                }
+            } else {
+                throw new IOException("Invalid container type " + type + " in index snapshot " + file);
+            }
+        }
+    }
+
+    /*
+     * Writes one container in whichever form is smallest, nothing if it is empty.
+     */
+    private static void writeContainer(DataOutputStream out, int key, long[] words) throws IOException {
+        int firstWord = key * WORDS_PER_CONTAINER;
+        int endWord = Math.min(words.length, firstWord + WORDS_PER_CONTAINER);
+        int cardinality = 0;
+        int runs = 0;
+        long previousTopBit = 0;
+        for (int i = firstWord; i < endWord; i++) {
+            long word = words[i];
+            cardinality += Long.bitCount(word);
+            // a run starts at each set bit whose lower neighbour is clear
+            runs += Long.bitCount(word & ~((word << 1) | previousTopBit));
+            previousTopBit = word >>> 63;
+        }
+        if (cardinality == 0) {
+            return;
+        }
+        out.writeInt(key);
+        if (cardinality * 2 <= runs * 4 && cardinality * 2 < BITMAP_BYTES) {
+            out.writeByte(ARRAY);
+            out.writeInt(cardinality);
+            for (int i = firstWord; i < endWord; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1) {
+                    out.writeShort(((i - firstWord) << 6) + Long.numberOfTrailingZeros(word));
+                }
+            }
+        } else if (runs * 4 < BITMAP_BYTES) {
+            out.writeByte(RUNS);
+            out.writeInt(runs);
+            int bit = 0;
+            int containerBits = (endWord - firstWord) << 6;
+            while (bit < containerBits) {
+                int start = nextBit(words, firstWord, bit, containerBits, true);
+                if (start >= containerBits) {
+                    break;
+                }
+                int end = nextBit(words, firstWord, start, containerBits, false);
+                out.writeShort(start);
+                out.writeShort(end - start - 1);
+                bit = end;
+            }
+        } else {
+            out.writeByte(BITMAP);
+            for (int i = firstWord; i < firstWord + WORDS_PER_CONTAINER; i++) {
+                out.writeLong(i < endWord ? words[i] : 0);
+            }
+        }
+    }
+
+    /*
+     * Index, relative to firstWord, of the next bit at or after fromBit that is set (or clear), limit if none.
+     */
+    private static int nextBit(long[] words, int firstWord, int fromBit, int limit, boolean set) {
+        int wordIndex = fromBit >>> 6;
+        long word = (set ? words[firstWord + wordIndex] : ~words[firstWord + wordIndex]) & (-1L << fromBit);
+        while (word == 0) {
+            if (++wordIndex << 6 >= limit) {
+                return limit;
+            }
+            word = set ? words[firstWord + wordIndex] : ~words[firstWord + wordIndex];
+        }
+        return Math.min(limit, (wordIndex << 6) + Long.numberOfTrailingZeros(word));
+    }
+
+    private static long offsetOf(Path file, String prefix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            // e.g. a temporary file
+            return -1;
+        }
+    }
+}
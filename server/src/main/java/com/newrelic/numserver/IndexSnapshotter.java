@@ -0,0 +1,217 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Writes {@link IndexSnapshot}s of a log in the background, so a restart only replays the log written since the last
+ * snapshot instead of all of it.
+ *
+ * The snapshotter keeps its own bit set and brings it up to date each interval by reading the log from where it left
+ * off, then forces the log files it read and writes the bit set out as a snapshot of that offset.  Snapshots are built
+ * only from records already in the log, never from the live dedup index, whose bits are set before their numbers are
+ * written; so a snapshot never holds a number a crash could still lose, and neither the inserting threads nor the
+ * writer thread ever wait on it.  The cost is a second bit set on the heap, one bit per number in range.
+ *
+ * Reading stops at the first invalid record, which is where the writer is, or a torn record recovery will cut off.
+ * Compacted segments are read whole; numbers already in the bit set are simply set again.
+ */
+public class IndexSnapshotter extends AbstractScheduledService {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexSnapshotter.class);
+
+    // the newest snapshot is loaded on recovery; the one before is kept in case the newest turns out unreadable
+    private static final int KEEP_SNAPSHOTS = 2;
+    private static final int READ_BUFFER_RECORDS = 64 * 1024;
+
+    private final Path dbFile;
+    private final byte[] eol;
+    private final int recordSize;
+    private final SingleFileDatabase.LogType logType;
+    private final boolean recover;
+    private final int lowNumber;
+    private final int capacity;
+    private final Duration interval;
+
+    // only touched by the service thread
+    private long[] words;
+    private long offset;
+
+    public IndexSnapshotter(Path dbFile, DatabaseConfig config) {
+        this(dbFile, SingleFileDatabase.EOL, config);
+    }
+
+    IndexSnapshotter(Path dbFile, byte[] eol, DatabaseConfig config) {
+        if (config.getSnapshotInterval().isZero()) {
+            throw new IllegalArgumentException("Snapshots are disabled");
+        }
+        this.dbFile = dbFile;
+        this.eol = eol.clone();
+        this.recordSize = 4 + eol.length;
+        this.logType = config.getLogType();
+        this.recover = config.getStartupMode() == SingleFileDatabase.StartupMode.RECOVER;
+        this.lowNumber = config.getLowNumber();
+        this.capacity = config.getHighNumber() - config.getLowNumber();
+        this.interval = config.getSnapshotInterval();
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        words = new long[(capacity + 63) >>> 6];
+        offset = 0;
+        if (recover) {
+            // carry on from the snapshot recovery started from; a truncated log has none, the database deletes them
+            IndexSnapshot snapshot = IndexSnapshot.findLatest(dbFile, lowNumber, capacity, logLength());
+            if (snapshot != null) {
+                snapshot.forEachWord((wordIndex, bits) -> words[wordIndex] |= bits);
+                offset = snapshot.getLogOffset();
+            }
+        }
+    }
+
+    @Override
+    protected void runOneIteration() throws Exception {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            // the bit set only ever gains numbers from the log, so the next run just reads on from the same offset
+            log.error("Snapshot of {} failed", dbFile, e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads the log written since the last snapshot and, if there was any, writes a new snapshot.
+     *
+     * @return the log offset of the new snapshot, -1 if the log has not grown
+     */
+    long snapshot() throws IOException {
+        long startNanos = System.nanoTime();
+        long end = readLog(offset);
+        if (end == offset) {
+            return -1;
+        }
+        Path file = IndexSnapshot.write(dbFile, end, lowNumber, capacity, words);
+        log.info("Wrote {} of {} bytes covering {} bytes of log, {} read since the last one, in {} ms", file,
+                Files.size(file), end, end - offset, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        offset = end;
+
+        List<Path> snapshots = IndexSnapshot.list(dbFile);
+        for (Path old : snapshots.subList(Math.min(KEEP_SNAPSHOTS, snapshots.size()), snapshots.size())) {
+            Files.deleteIfExists(old);
+        }
+        return end;
+    }
+
+    /*
+     * Adds the records from the given log offset to the bit set and forces the files read.  Returns the offset after
+     * the last record added.
+     */
+    private long readLog(long from) throws IOException {
+        if (logType == SingleFileDatabase.LogType.CHANNEL) {
+            if (!Files.exists(dbFile)) {
+                return from;
+            }
+            try (FileChannel channel = FileChannel.open(dbFile, READ)) {
+                long end = readRecords(channel, from);
+                channel.force(false);
+                return end;
+            }
+        }
+
+        List<Path> segments = MappedSegmentLogWriter.readManifest(dbFile);
+        long start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            boolean isActive = i == segments.size() - 1;
+            if (!isActive && !Files.exists(segment)) {
+                // replaced by its compacted file, which holds the whole segment
+                SortedSegment sorted = SortedSegment.open(SortedSegment.fileFor(segment));
+                long length = (long) sorted.count() * recordSize;
+                if (from < start + length) {
+                    sorted.forEach(this::set);
+                }
+                start += length;
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segment, READ)) {
+                long length = channel.size();
+                if (from < start + length) {
+                    long valid = readRecords(channel, Math.max(0, from - start));
+                    channel.force(false);
+                    if (valid < length) {
+                        // the active segment's unwritten tail, or a torn sealed segment recovery will cut short
+                        return Math.max(from, start + valid);
+                    }
+                }
+                start += length;
+            }
+        }
+        return Math.max(from, start);
+    }
+
+    /*
+     * Adds records from the position until the end of the file or the first invalid record, returns the position after
+     * the last one added.
+     */
+    private long readRecords(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_RECORDS * recordSize);
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < recordSize) {
+                return position;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= recordSize) {
+                int recordStart = buffer.position();
+                int number = buffer.getInt();
+                for (byte expected : eol) {
+                    if (buffer.get() != expected) {
+                        return position;
+                    }
+                }
+                if (number < lowNumber || number - lowNumber >= capacity) {
+                    return position;
+                }
+                set(number);
+                position += buffer.position() - recordStart;
+            }
+        }
+    }
+
+    private void set(int number) {
+        int bit = number - lowNumber;
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    /*
+     * The log length on disk, an upper bound for the offset of a usable snapshot.
+     */
+    private long logLength() throws IOException {
+        if (logType == SingleFileDatabase.LogType.CHANNEL) {
+            return Files.exists(dbFile) ? Files.size(dbFile) : 0;
+        }
+        long length = 0;
+        for (Path segment : MappedSegmentLogWriter.readManifest(dbFile)) {
+            length += MappedSegmentLogWriter.segmentLength(segment, recordSize);
+        }
+        return length;
+    }
+}
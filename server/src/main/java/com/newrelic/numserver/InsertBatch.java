@@ -0,0 +1,69 @@
+package com.newrelic.numserver;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Collects the numbers parsed from one socket read so they are inserted, and counted in metrics, with a single
+ * {@link Database#tryInsertAll} call.  Not thread-safe, each reading thread owns its own batch.
+ */
+class InsertBatch implements Protocol.NumberSink {
+
+    private final Database database;
+    private final MetricsReporter metricsReporter;
+
+    private final int[] numbers;
+    private final BitSet inserted;
+    private int size;
+    // numbers accepted since the last flush() call, including any flushed early
+    private int accepted;
+
+    /**
+     * @param capacity numbers held before the batch flushes itself, e.g. the most lines one read can hold
+     */
+    InsertBatch(Database database, MetricsReporter metricsReporter, int capacity) {
+        this.database = Objects.requireNonNull(database);
+        this.metricsReporter = Objects.requireNonNull(metricsReporter);
+        this.numbers = new int[capacity];
+        this.inserted = new BitSet(capacity);
+    }
+
+    @Override
+    public void acceptNumber(int number) throws InterruptedException, IOException {
+        if (size == numbers.length) {
+            insert();
+        }
+        numbers[size++] = number;
+        accepted++;
+    }
+
+    /**
+     * Inserts the collected numbers and empties the batch.
+     *
+     * @return the numbers accepted since the last flush
+     */
+    int flush() throws InterruptedException, IOException {
+        insert();
+        int flushed = accepted;
+        accepted = 0;
+        return flushed;
+    }
+
+    /**
+     * Drops the collected numbers without inserting them, e.g. when the rest of their input turns out to be invalid.
+     */
+    void discard() {
+        size = 0;
+        accepted = 0;
+    }
+
+    private void insert() throws InterruptedException, IOException {
+        if (size == 0) {
+            return;
+        }
+        int newNumbers = database.tryInsertAll(numbers, 0, size, inserted);
+        metricsReporter.recordInserts(newNumbers, size - newNumbers);
+        size = 0;
+    }
+}
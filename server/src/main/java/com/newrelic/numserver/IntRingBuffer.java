@@ -0,0 +1,211 @@
+package com.newrelic.numserver;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+
+/**
+ * A bounded multi-producer, single-consumer queue of primitive ints.
+ *
+ * Producers claim a run of slots with a single CAS on the claim sequence, fill them and publish each slot by recording
+ * its sequence number, so values are never boxed and producers never take a lock.  When the buffer is full producers
+ * wait, which gives callers back-pressure.  The consumer drains published slots in sequence order.
+ *
+ * Waiting on either side spins briefly, then yields, then parks for increasing periods of up to a millisecond.
+ */
+public class IntRingBuffer {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int[] slots;
+    // sequence + 1 of the value last published in each slot
+    private final AtomicLongArray published;
+    private final int mask;
+
+    // next sequence to claim, shared by producers
+    private final AtomicLong claimed = new AtomicLong();
+    // next sequence to consume, only written by the consumer
+    private final AtomicLong consumed = new AtomicLong();
+    // time producers spent waiting for room, only added to once a producer has had to wait
+    private final LongAdder producerWaitNanos = new LongAdder();
+
+    /**
+     * @param capacity a power of two
+     */
+    public IntRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.slots = new int[capacity];
+        this.published = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Adds a value, waiting while the buffer is full.
+     *
+     * @return the sequence number of the value, its position in the order values are consumed
+     */
+    public long put(int value) throws InterruptedException {
+        long sequence = claim(1);
+        publish(sequence, value);
+        return sequence;
+    }
+
+    /**
+     * Adds {@code length} values from the array, waiting while the buffer is full.  Values are claimed in runs of up to
+     * the buffer capacity, so they are consumed in order but may interleave with other producers between runs.
+     *
+     * @return the sequence number of the last value added, -1 if there were none
+     */
+    public long putAll(int[] values, int offset, int length) throws InterruptedException {
+        long last = -1;
+        while (length > 0) {
+            int run = Math.min(length, slots.length);
+            long sequence = claim(run);
+            for (int i = 0; i < run; i++) {
+                publish(sequence + i, values[offset + i]);
+            }
+            offset += run;
+            length -= run;
+            last = sequence + run - 1;
+        }
+        return last;
+    }
+
+    /**
+     * Adds the values at {@code offset + i} for every set bit {@code i}, in order, waiting while the buffer is full.
+     *
+     * @param count the number of set bits in {@code selected}
+     * @return the sequence number of the last value added, -1 if there were none
+     */
+    public long putSelected(int[] values, int offset, BitSet selected, int count) throws InterruptedException {
+        long last = -1;
+        int index = selected.nextSetBit(0);
+        while (count > 0) {
+            int run = Math.min(count, slots.length);
+            long sequence = claim(run);
+            for (int i = 0; i < run; i++) {
+                publish(sequence + i, values[offset + index]);
+                index = selected.nextSetBit(index + 1);
+            }
+            count -= run;
+            last = sequence + run - 1;
+        }
+        return last;
+    }
+
+    /**
+     * Hands up to {@code maxValues} published values to the sink, oldest first, and frees their slots.  Must only be
+     * called from the single consumer thread.
+     *
+     * @return the number of values drained
+     */
+    public int drainTo(IntConsumer sink, int maxValues) {
+        long sequence = consumed.get();
+        int drained = 0;
+        while (drained < maxValues && published.get(index(sequence)) == sequence + 1) {
+            sink.accept(slots[index(sequence)]);
+            sequence++;
+            drained++;
+        }
+        if (drained > 0) {
+            consumed.lazySet(sequence);
+        }
+        return drained;
+    }
+
+    /**
+     * Waits until a value is ready for the consumer.  Must only be called from the single consumer thread.
+     *
+     * @return true if a value is ready, false on timeout
+     */
+    public boolean awaitAvailable(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idleCount = 0;
+        while (true) {
+            long sequence = consumed.get();
+            if (published.get(index(sequence)) == sequence + 1) {
+                return true;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            idleCount = idle(idleCount);
+        }
+    }
+
+    /**
+     * @return the number of claimed slots not yet consumed, including ones still being filled
+     */
+    public int size() {
+        return (int) (claimed.get() - consumed.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return the total time producers have waited while the buffer was full
+     */
+    public long getProducerWaitNanos() {
+        return producerWaitNanos.sum();
+    }
+
+    private long claim(int count) throws InterruptedException {
+        int idleCount = 0;
+        long waitStartNanos = 0;
+        try {
+            while (true) {
+                long current = claimed.get();
+                long next = current + count;
+                if (next - consumed.get() > slots.length) {
+                    if (idleCount == 0) {
+                        waitStartNanos = System.nanoTime();
+                    }
+                    idleCount = idle(idleCount);
+                } else if (claimed.compareAndSet(current, next)) {
+                    return current;
+                }
+            }
+        } finally {
+            if (idleCount > 0) {
+                producerWaitNanos.add(System.nanoTime() - waitStartNanos);
+            }
+        }
+    }
+
+    private void publish(long sequence, int value) {
+        int index = index(sequence);
+        slots[index] = value;
+        // ordered write, the consumer sees the value once it sees the sequence
+        published.lazySet(index, sequence + 1);
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+
+    /*
+     * One step of the spin, yield, park wait strategy.
+     */
+    private static int idle(int idleCount) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (idleCount >= SPIN_TRIES + YIELD_TRIES) {
+            int parkRound = Math.min(idleCount - SPIN_TRIES - YIELD_TRIES, 10);
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << parkRound));
+        } else if (idleCount >= SPIN_TRIES) {
+            Thread.yield();
+        }
+        return idleCount + 1;
+    }
+}
@@ -0,0 +1,107 @@
+package com.newrelic.numserver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative longs in power of two buckets: bucket 0 counts values up to 1, bucket
+ * {@code i} values in {@code (2^(i-1), 2^i]}.  Recording is one array increment and one adder update, cheap enough for
+ * the writer thread; percentiles are only as precise as the bucket, which is plenty to tell a 50us fsync from a 5ms
+ * one.
+ *
+ * Values are cumulative, like Prometheus histograms; take the difference of two snapshots for an interval.
+ */
+class Log2Histogram {
+
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    void record(long value) {
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, sum.sum());
+    }
+
+    static int bucket(long value) {
+        return value <= 1 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value - 1));
+    }
+
+    /**
+     * @return the largest value counted in the bucket
+     */
+    static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Bucket counts at one point in time.  Counts are read one bucket at a time, so a snapshot taken while values are
+     * recorded may be off by those values.
+     */
+    static class Snapshot {
+
+        private final long[] counts;
+        private final long sum;
+        private final long count;
+
+        private Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            this.sum = sum;
+            long count = 0;
+            for (long bucketCount : counts) {
+                count += bucketCount;
+            }
+            this.count = count;
+        }
+
+        /**
+         * @return the values recorded since the earlier snapshot
+         */
+        Snapshot minus(Snapshot earlier) {
+            long[] delta = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                delta[i] = counts[i] - earlier.counts[i];
+            }
+            return new Snapshot(delta, sum - earlier.sum);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getSum() {
+            return sum;
+        }
+
+        long getBucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, 0 if nothing was recorded
+         */
+        long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.AbstractScheduledService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Compacts the sealed segments of a {@link SingleFileDatabase.LogType#MAPPED_SEGMENTS} log in the background.
+ *
+ * Each sealed segment is read, sorted and written out as a {@link SortedSegment} next to it, which takes about a fifth
+ * of the space when numbers are dense.  The compacted file is decoded and checked against the sorted numbers before
+ * it is moved into place.  With {@link SingleFileDatabase.Compaction#REPLACE_LOG} the raw segment is then deleted;
+ * recovery reads the compacted file in its place.  The active segment is never touched.
+ */
+public class LogCompactor extends AbstractScheduledService {
+
+    private static final Logger log = LoggerFactory.getLogger(LogCompactor.class);
+
+    private final Path dbFile;
+    private final byte[] eol;
+    private final boolean replaceLog;
+    private final Duration interval;
+
+    public LogCompactor(Path dbFile, DatabaseConfig config) {
+        this(dbFile, SingleFileDatabase.EOL, config);
+    }
+
+    LogCompactor(Path dbFile, byte[] eol, DatabaseConfig config) {
+        if (config.getCompaction() == SingleFileDatabase.Compaction.NONE) {
+            throw new IllegalArgumentException("Compaction is disabled");
+        }
+        this.dbFile = dbFile;
+        this.eol = eol.clone();
+        this.replaceLog = config.getCompaction() == SingleFileDatabase.Compaction.REPLACE_LOG;
+        this.interval = config.getCompactionInterval();
+    }
+
+    @Override
+    protected void runOneIteration() throws Exception {
+        try {
+            compactSealedSegments();
+        } catch (IOException e) {
+            // the segments are left as they were, try again next time
+            log.error("Compaction of {} failed", dbFile, e);
+        }
+    }
+
+    @Override
+    protected Scheduler scheduler() {
+        return Scheduler.newFixedDelaySchedule(interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Compacts every sealed segment not compacted yet.
+     *
+     * @return the number of segments compacted
+     */
+    int compactSealedSegments() throws IOException {
+        List<Path> segments = MappedSegmentLogWriter.readManifest(dbFile);
+        int compacted = 0;
+        // the last segment is the active one
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Path segment = segments.get(i);
+            Path sorted = SortedSegment.fileFor(segment);
+            if (!Files.exists(segment)) {
+                continue;
+            }
+            if (!Files.exists(sorted)) {
+                if (!compact(segment, sorted)) {
+                    continue;
+                }
+                compacted++;
+            } else if (replaceLog && !CompactionVerifier.verify(segment, eol)) {
+                log.warn("Keeping {}, it does not match {}", segment, sorted);
+                continue;
+            }
+            if (replaceLog) {
+                Files.delete(segment);
+            }
+        }
+        return compacted;
+    }
+
+    private boolean compact(Path segment, Path sorted) throws IOException {
+        long startNanos = System.nanoTime();
+        int[] numbers = readSorted(segment, eol);
+        if (numbers == null) {
+            return false;
+        }
+        for (int i = 1; i < numbers.length; i++) {
+            if (numbers[i] == numbers[i - 1]) {
+                log.warn("Not compacting {}, it holds {} more than once", segment, numbers[i]);
+                return false;
+            }
+        }
+
+        Path tmp = sorted.resolveSibling(sorted.getFileName() + ".tmp");
+        SortedSegment.write(tmp, numbers, numbers.length);
+        if (!CompactionVerifier.matches(SortedSegment.open(tmp), numbers)) {
+            Files.delete(tmp);
+            throw new IOException("Compacted " + segment + " does not match the log");
+        }
+        Files.move(tmp, sorted, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Compacted {} from {} to {} bytes in {} ms", segment, Files.size(segment), Files.size(sorted),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return true;
+    }
+
+    /**
+     * Reads the numbers of a raw log segment, in ascending order.
+     *
+     * @return null if the segment holds a partial or invalid record
+     */
+    static int[] readSorted(Path segment, byte[] eol) throws IOException {
+        int recordSize = 4 + eol.length;
+        try (FileChannel channel = FileChannel.open(segment, READ)) {
+            long size = channel.size();
+            if (size % recordSize != 0 || size / recordSize > Integer.MAX_VALUE) {
+                log.warn("Size {} of {} is not a whole number of records", size, segment);
+                return null;
+            }
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int[] numbers = new int[(int) (size / recordSize)];
+            for (int i = 0; i < numbers.length; i++) {
+                int position = i * recordSize;
+                numbers[i] = records.getInt(position);
+                for (int j = 0; j < eol.length; j++) {
+                    if (records.get(position + 4 + j) != eol[j]) {
+                        log.warn("Invalid record in {} at offset {}", segment, position);
+                        return null;
+                    }
+                }
+            }
+            Arrays.parallelSort(numbers);
+            return numbers;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one database shard of a follower server up to date with the same shard of a primary, by streaming the
+ * primary's log from a {@link ReplicationServer} and inserting its numbers here.  The follower's own writer logs them
+ * as any insert, so the follower can recover, compact and snapshot on its own and be promoted by restarting it without
+ * {@code numbers.replicaOf}.
+ *
+ * The stream starts from the size of this shard's log, which is the primary's offset as long as the follower has only
+ * ever been fed by the primary.  After a lost connection the follower reconnects from the end of what it applied, once
+ * a second.  Lag is measured against the primary log size announced in each chunk: in bytes, and as the time since the
+ * oldest announcement not yet applied arrived.
+ */
+class LogFollower extends AbstractExecutionThreadService {
+
+    private static final Logger log = LoggerFactory.getLogger(LogFollower.class);
+
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final int BATCH_NUMBERS = 8192;
+
+    private final String host;
+    private final int port;
+    private final int shard;
+    private final int shards;
+    private final SingleFileDatabase database;
+    private final int recordSize;
+
+    private volatile SocketChannel channel;
+    // log offset the next record applied here would come from; only the run thread writes
+    private volatile long appliedOffset;
+    private volatile long primaryLogSize;
+    // primary log sizes announced but not yet applied, with the nano time each arrived
+    private final Deque<long[]> pendingAnnouncements = new ArrayDeque<>();
+
+    LogFollower(String host, int port, int shard, int shards, SingleFileDatabase database, ServerMetrics metrics) {
+        this.host = Objects.requireNonNull(host);
+        this.port = port;
+        this.shard = shard;
+        this.shards = shards;
+        this.database = Objects.requireNonNull(database);
+        this.recordSize = 4 + SingleFileDatabase.EOL.length;
+        metrics.registerLogFollower(this);
+    }
+
+    @Override
+    protected void run() throws InterruptedException {
+        database.awaitRunning();
+        appliedOffset = database.count() * recordSize;
+        while (isRunning()) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (isRunning()) {
+                    log.warn("Lost replication of shard {} from {}:{}, reconnecting: {}", shard, host, port,
+                            e.toString());
+                }
+            } finally {
+                closeChannel();
+            }
+            if (isRunning()) {
+                Thread.sleep(RECONNECT_DELAY_MILLIS);
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        closeChannel();
+    }
+
+    @Override
+    protected String serviceName() {
+        return "LogFollower-" + shard;
+    }
+
+    /**
+     * @return log bytes the primary has written that are not applied here yet
+     */
+    long getLagBytes() {
+        return Math.max(0, primaryLogSize - appliedOffset);
+    }
+
+    /**
+     * @return how long ago the oldest primary log size not yet reached here was announced, 0 when caught up
+     */
+    long getLagNanos() {
+        synchronized (pendingAnnouncements) {
+            long[] oldest = pendingAnnouncements.peekFirst();
+            return oldest == null ? 0 : System.nanoTime() - oldest[1];
+        }
+    }
+
+    long getAppliedOffset() {
+        return appliedOffset;
+    }
+
+    private void follow() throws IOException, InterruptedException {
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        ByteBuffer handshake = ByteBuffer.allocate(ReplicationServer.HANDSHAKE_LENGTH);
+        handshake.putInt(ReplicationServer.MAGIC).putInt(shard).putInt(shards).putInt(recordSize)
+                .putLong(appliedOffset).flip();
+        while (handshake.hasRemaining()) {
+            channel.write(handshake);
+        }
+        log.info("Replicating shard {} from {}:{} at offset {}", shard, host, port, appliedOffset);
+
+        ByteBuffer header = ByteBuffer.allocate(ReplicationServer.CHUNK_HEADER_LENGTH);
+        ByteBuffer records = ByteBuffer.allocate(BATCH_NUMBERS * recordSize);
+        int[] numbers = new int[BATCH_NUMBERS];
+        BitSet inserted = new BitSet(BATCH_NUMBERS);
+        while (isRunning()) {
+            header.clear();
+            ReplicationServer.readFully(channel, header);
+            header.flip();
+            long offset = header.getLong();
+            long logSize = header.getLong();
+            int length = header.getInt();
+            if (length < 0 || length % recordSize != 0 || offset % recordSize != 0) {
+                throw new IOException("Malformed chunk at offset " + offset + " of " + length + " bytes");
+            }
+            announce(logSize);
+
+            int remaining = length;
+            while (remaining > 0) {
+                records.clear().limit(Math.min(remaining, records.capacity()));
+                ReplicationServer.readFully(channel, records);
+                records.flip();
+                remaining -= records.limit();
+                int count = decode(records, numbers);
+                database.tryInsertAll(numbers, 0, count, inserted);
+            }
+            applied(offset + length);
+        }
+    }
+
+    private int decode(ByteBuffer records, int[] numbers) throws IOException {
+        int count = 0;
+        while (records.hasRemaining()) {
+            int number = records.getInt();
+            for (byte b : SingleFileDatabase.EOL) {
+                if (records.get() != b) {
+                    throw new IOException("Malformed record in replicated log");
+                }
+            }
+            numbers[count++] = number;
+        }
+        return count;
+    }
+
+    private void announce(long logSize) {
+        primaryLogSize = logSize;
+        synchronized (pendingAnnouncements) {
+            long[] last = pendingAnnouncements.peekLast();
+            if (logSize > appliedOffset && (last == null || logSize > last[0])) {
+                pendingAnnouncements.addLast(new long[] {logSize, System.nanoTime()});
+            }
+        }
+    }
+
+    private void applied(long offset) {
+        // a compacted segment is resent from its start, so this can go backwards
+        if (offset <= appliedOffset) {
+            return;
+        }
+        appliedOffset = offset;
+        synchronized (pendingAnnouncements) {
+            while (!pendingAnnouncements.isEmpty() && pendingAnnouncements.peekFirst()[0] <= offset) {
+                pendingAnnouncements.removeFirst();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.debug("Failed to close replication connection", e);
+            }
+        }
+    }
+}
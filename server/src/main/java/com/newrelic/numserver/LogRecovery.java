@@ -0,0 +1,209 @@
+package com.newrelic.numserver;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.stream.IntStream;
+
+/**
+ * Rebuilds the dedup index from an existing log file and cuts off anything after the last valid record, such as a
+ * record torn by a crash mid-write.
+ *
+ * The log is scanned through memory mappings in fixed-size chunks, in parallel: first to find the end of the valid
+ * records, then to add them to the index.  A record is valid when its number is in range and it ends with the expected
+ * EOL.
+ */
+class LogRecovery {
+
+    private static final int CHUNK_RECORDS = 4 * 1024 * 1024;
+    // numbers are bucketed by their top bits before their bits are set, 2^20 numbers per bucket
+    private static final int BUCKET_SHIFT = 20;
+
+    private final byte[] eol;
+    private final int recordSize;
+    private final int lowNumber;
+
+    /**
+     * @param lowNumber the smallest number in the log, index bit 0
+     */
+    LogRecovery(byte[] eol, int lowNumber) {
+        this.eol = eol.clone();
+        this.recordSize = 4 + eol.length;
+        this.lowNumber = lowNumber;
+    }
+
+    /**
+     * Scans the whole log, see {@link #recover(FileChannel, long, DedupIndex)}.
+     */
+    Result recover(FileChannel channel, DedupIndex index) throws IOException {
+        return recover(channel, 0, index);
+    }
+
+    /**
+     * Scans the log from the given record-aligned offset, adds every valid record to the index and truncates the file
+     * after the last valid record.  The channel is left positioned at the end of the valid records, ready for
+     * appending.
+     */
+    Result recover(FileChannel channel, long fromOffset, DedupIndex index) throws IOException {
+        return recover(channel, fromOffset, index, true);
+    }
+
+    /**
+     * Scans the log from the given record-aligned offset and adds every valid record to the index, like
+     * {@link #recover(FileChannel, long, DedupIndex)}, but leaves the file and the channel position as they are, for a
+     * log that must not change such as a sealed segment.  The result's truncated bytes are those of the invalid tail.
+     */
+    Result scan(FileChannel channel, long fromOffset, DedupIndex index) throws IOException {
+        return recover(channel, fromOffset, index, false);
+    }
+
+    private Result recover(FileChannel channel, long fromOffset, DedupIndex index, boolean truncate)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        long fileSize = channel.size();
+        if (fromOffset % recordSize != 0 || fromOffset > fileSize) {
+            throw new IllegalArgumentException("Invalid recovery offset " + fromOffset + " for log of " + fileSize);
+        }
+        long chunkSize = (long) CHUNK_RECORDS * recordSize;
+        int chunks = (int) ((fileSize - fromOffset + chunkSize - 1) / chunkSize);
+
+        long validLength;
+        try {
+            // the first invalid record ends the log
+            validLength = IntStream.range(0, chunks).parallel()
+                    .mapToLong(chunk -> firstInvalidOffset(channel, fromOffset + chunk * chunkSize,
+                            Math.min(chunkSize, fileSize - fromOffset - chunk * chunkSize), index.capacity()))
+                    .min()
+                    .orElse(Long.MAX_VALUE);
+            validLength = Math.min(validLength, fileSize);
+
+            final long end = validLength;
+            IntStream.range(0, (int) ((end - fromOffset + chunkSize - 1) / chunkSize)).parallel()
+                    .forEach(chunk -> apply(channel, fromOffset + chunk * chunkSize,
+                            Math.min(chunkSize, end - fromOffset - chunk * chunkSize), index));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        if (truncate) {
+            if (validLength < fileSize) {
+                channel.truncate(validLength);
+            }
+            channel.position(validLength);
+        }
+
+        return new Result((validLength - fromOffset) / recordSize, fileSize - validLength,
+                System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds every number of a compacted log segment to the index.  A compacted segment is only written once verified,
+     * so it is taken as a whole.
+     *
+     * @return the number of records recovered
+     */
+    long recover(SortedSegment segment, DedupIndex index) {
+        segment.forEach(number -> index.getAndSet(number - lowNumber));
+        return segment.count();
+    }
+
+    /*
+     * Returns the file offset of the first invalid (or partial) record in the chunk, Long.MAX_VALUE if there is none.
+     */
+    private long firstInvalidOffset(FileChannel channel, long offset, long length, int capacity) {
+        MappedByteBuffer chunk = map(channel, offset, length);
+        int valid = 0;
+        while (valid + recordSize <= length && isValidRecord(chunk, valid, capacity)) {
+            valid += recordSize;
+        }
+        return valid < length ? offset + valid : Long.MAX_VALUE;
+    }
+
+    /*
+     * Sets the bits for every record in the chunk.  Records are counting-sorted into buckets by their top bits first so
+     * the bit set is walked roughly in order; setting bits in arrival order misses cache and TLB on nearly every record
+     * and is more than twice as slow.
+     */
+    private void apply(FileChannel channel, long offset, long length, DedupIndex index) {
+        if (length <= 0) {
+            return;
+        }
+        MappedByteBuffer chunk = map(channel, offset, length);
+        int records = (int) (length / recordSize);
+
+        int[] bucketStarts = new int[(index.capacity() >>> BUCKET_SHIFT) + 2];
+        for (int pos = 0; pos < length; pos += recordSize) {
+            bucketStarts[((chunk.getInt(pos) - lowNumber) >>> BUCKET_SHIFT) + 1]++;
+        }
+        for (int i = 1; i < bucketStarts.length; i++) {
+            bucketStarts[i] += bucketStarts[i - 1];
+        }
+        int[] sorted = new int[records];
+        for (int pos = 0; pos < length; pos += recordSize) {
+            int bit = chunk.getInt(pos) - lowNumber;
+            sorted[bucketStarts[bit >>> BUCKET_SHIFT]++] = bit;
+        }
+
+        for (int bit : sorted) {
+            index.getAndSet(bit);
+        }
+    }
+
+    private boolean isValidRecord(MappedByteBuffer chunk, int pos, int capacity) {
+        int number = chunk.getInt(pos);
+        if (number < lowNumber || number - lowNumber >= capacity) {
+            return false;
+        }
+        for (int i = 0; i < eol.length; i++) {
+            if (chunk.get(pos + 4 + i) != eol[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Outcome of a recovery scan.
+     */
+    static class Result {
+        private final long recordCount;
+        private final long truncatedBytes;
+        private final long durationNanos;
+
+        Result(long recordCount, long truncatedBytes, long durationNanos) {
+            this.recordCount = recordCount;
+            this.truncatedBytes = truncatedBytes;
+            this.durationNanos = durationNanos;
+        }
+
+        long getRecordCount() {
+            return recordCount;
+        }
+
+        long getTruncatedBytes() {
+            return truncatedBytes;
+        }
+
+        long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "recordCount=" + recordCount +
+                    ", truncatedBytes=" + truncatedBytes +
+                    ", durationMillis=" + durationNanos / 1000000 +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.newrelic.numserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * The storage behind a {@link SingleFileDatabase} log: appends queued numbers as records of a 4 byte big-endian int
+ * followed by the platform EOL.  Only used from the database's writer thread.  Each writer records the size and
+ * latency of its writes in {@link ServerMetrics#recordWrite} once they are done, on whatever thread did them.
+ *
+ * Offsets and sizes are in bytes of the whole log, however many files it is kept in.
+ */
+interface LogWriter extends Closeable {
+
+    FileAttribute<?> FILE_PERMISSIONS = PosixFilePermissions.asFileAttribute(
+            PosixFilePermissions.fromString("rw-r-----"));
+
+    /**
+     * Keeps the existing log: adds its valid records from {@code fromOffset} on to the index and cuts off anything
+     * after the last valid record.  Must be called before the first append, if at all.
+     */
+    LogRecovery.Result recover(LogRecovery recovery, long fromOffset, DedupIndex index) throws IOException;
+
+    /**
+     * Drains up to {@code maxRecords} numbers from the queue and writes them to the log, or hands them over to be
+     * written.  A failed write handed over may only be reported by a later call to this or {@link #force()}, which
+     * first rolls the log back so {@link #size()} is again the records actually written.
+     *
+     * @return the number of records appended
+     */
+    int append(IntRingBuffer queue, int maxRecords) throws IOException;
+
+    /**
+     * Forces everything appended so far to disk.
+     */
+    void force() throws IOException;
+
+    /**
+     * @return the length of the log in bytes, including records appended but still being written
+     */
+    long size();
+
+    /**
+     * @return the length of the log that can be read back from its files, at most {@link #size()}
+     */
+    default long writtenSize() {
+        return size();
+    }
+
+    static FileChannel open(Path file, Set<? extends OpenOption> options) throws IOException {
+        return FileChannel.open(file, options, FILE_PERMISSIONS);
+    }
+}
@@ -0,0 +1,193 @@
+package com.newrelic.numserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A dedup index kept in a memory-mapped file, so the bits live in the OS page cache rather than on the heap and
+ * survive restarts.
+ *
+ * The file starts with a one page header: a magic number, the capacity, a clean flag and a high-water mark.  The log
+ * stays the source of truth.  The index only counts as consistent with the log when it was marked clean with the log
+ * length it covers; while the database runs it is marked dirty, because bits are set before their numbers reach the
+ * log.
+ *
+ * There is no compare-and-set on mapped memory before Java 9, so updates take one of a set of striped locks.  A bit
+ * already seen as set skips the lock: it is only ever cleared to undo a failed insert, after which the number was
+ * never inserted.
+ */
+public class MappedBitSet implements DedupIndex, Closeable {
+
+    private static final long MAGIC = 0x4e554d4249545331L; // "NUMBITS1"
+    private static final int HEADER_SIZE = 4096;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int CLEAN_OFFSET = 12;
+    private static final int HIGH_WATER_MARK_OFFSET = 16;
+
+    private static final int LOCK_STRIPES = 4096;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final int capacity;
+
+    /**
+     * Opens the index file, creating it if missing.  An existing file with a different layout is reset to an empty,
+     * dirty index.
+     */
+    public MappedBitSet(Path file, int capacity) throws IOException {
+        this.capacity = capacity;
+        long words = (capacity + 63L) / 64;
+        this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+        boolean existing = channel.size() > 0;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + words * 8);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+
+        if (!existing || buffer.getLong(MAGIC_OFFSET) != MAGIC || buffer.getInt(CAPACITY_OFFSET) != capacity) {
+            // a newly created file maps as all zeros, only an existing one needs clearing
+            if (existing) {
+                clear();
+            }
+            buffer.putLong(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+            buffer.force();
+        }
+    }
+
+    @Override
+    public boolean getAndSet(int number) {
+        checkIndex(number);
+        int position = wordPosition(number);
+        long mask = 1L << number;
+        if ((buffer.getLong(position) & mask) != 0) {
+            return true;
+        }
+        synchronized (locks[(position >>> 3) & (LOCK_STRIPES - 1)]) {
+            long word = buffer.getLong(position);
+            if ((word & mask) != 0) {
+                return true;
+            }
+            buffer.putLong(position, word | mask);
+            return false;
+        }
+    }
+
+    @Override
+    public void clear(int number) {
+        checkIndex(number);
+        int position = wordPosition(number);
+        synchronized (locks[(position >>> 3) & (LOCK_STRIPES - 1)]) {
+            buffer.putLong(position, buffer.getLong(position) & ~(1L << number));
+        }
+    }
+
+    @Override
+    public boolean get(int number) {
+        checkIndex(number);
+        return (buffer.getLong(wordPosition(number)) & (1L << number)) != 0;
+    }
+
+    @Override
+    public long word(int wordIndex) {
+        checkWordIndex(wordIndex);
+        return buffer.getLong(HEADER_SIZE + wordIndex * 8);
+    }
+
+    @Override
+    public void orWord(int wordIndex, long bits) {
+        checkWordIndex(wordIndex);
+        int position = HEADER_SIZE + wordIndex * 8;
+        synchronized (locks[(position >>> 3) & (LOCK_STRIPES - 1)]) {
+            buffer.putLong(position, buffer.getLong(position) | bits);
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return true if the index was closed cleanly and matches the first {@link #getHighWaterMark()} bytes of the log
+     */
+    public boolean isClean() {
+        return buffer.getInt(CLEAN_OFFSET) == 1;
+    }
+
+    public long getHighWaterMark() {
+        return buffer.getLong(HIGH_WATER_MARK_OFFSET);
+    }
+
+    /**
+     * Marks the index as possibly ahead of the log and flushes the header.  Must be called before bits are set.
+     */
+    public void markDirty() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.force();
+    }
+
+    /**
+     * Flushes all bits, then records that they match the first {@code highWaterMark} bytes of the log.
+     */
+    public void markClean(long highWaterMark) {
+        buffer.force();
+        buffer.putLong(HIGH_WATER_MARK_OFFSET, highWaterMark);
+        buffer.putInt(CLEAN_OFFSET, 1);
+        buffer.force();
+    }
+
+    /**
+     * Clears every bit and marks the index dirty with a zero high-water mark.  Not safe to call concurrently with
+     * updates.
+     */
+    public void clear() {
+        buffer.putInt(CLEAN_OFFSET, 0);
+        buffer.putLong(HIGH_WATER_MARK_OFFSET, 0);
+        ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer bits = buffer.duplicate();
+        bits.position(HEADER_SIZE);
+        while (bits.hasRemaining()) {
+            zeros.clear();
+            zeros.limit(Math.min(zeros.capacity(), bits.remaining()));
+            bits.put(zeros);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        channel.close();
+    }
+
+    private void checkIndex(int number) {
+        if (number < 0 || number >= capacity) {
+            throw new IndexOutOfBoundsException("number: " + number + ", capacity: " + capacity);
+        }
+    }
+
+    private void checkWordIndex(int wordIndex) {
+        if (wordIndex < 0 || wordIndex > (capacity - 1) >>> 6) {
+            throw new IndexOutOfBoundsException("wordIndex: " + wordIndex + ", capacity: " + capacity);
+        }
+    }
+
+    private static int wordPosition(int number) {
+        return HEADER_SIZE + (number >>> 6) * 8;
+    }
+}
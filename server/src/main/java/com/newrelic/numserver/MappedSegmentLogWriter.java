@@ -0,0 +1,321 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A log kept in a sequence of fixed-size segment files, numbers.log.00000000, numbers.log.00000001, ...  Records are
+ * put straight into a memory mapping of the active segment, so appending costs no write call and no copy from the
+ * heap; the OS writes the dirty pages back, or {@link #force()} does.
+ *
+ * The active segment is mapped at its full size up front.  Once it has no room for another record it is forced,
+ * sealed by truncating it to the records it holds, and the next segment is started.  The segments making up the log
+ * are listed, with the log offset each starts at, in a manifest file next to them (numbers.log.manifest), which is
+ * replaced atomically whenever a segment is added.
+ *
+ * Sealed segments may be replaced by their compacted {@link SortedSegment}, see {@link LogCompactor}; they keep their
+ * place in the log, as if still holding their records in the original format.
+ *
+ * After a crash the active segment still has its zero-filled tail; a zero record never ends with the EOL, so recovery
+ * stops there.  Sealed segments were forced before sealing, so an invalid record in one is damage rather than a torn
+ * write: recovery fails instead of cutting the segment short, which would move every later record to another offset.
+ * Old mappings are only released when garbage collected, there is no way to unmap before Java 9.
+ */
+class MappedSegmentLogWriter implements LogWriter {
+
+    private final Path dbFile;
+    private final Path manifestFile;
+    private final int segmentSize;
+    private final int recordSize;
+    private final IntConsumer encoder;
+    private final ServerMetrics metrics;
+
+    // every segment, the last one is active
+    private final List<Path> segments = new ArrayList<>();
+    // log offset of the active segment
+    private long activeStart;
+    private FileChannel activeChannel;
+    // mapping of the active segment, made on the first append so recovery can trim the file first
+    private MappedByteBuffer active;
+
+    /**
+     * @param dbFile the log name, segment and manifest files are named after it
+     * @param truncate delete the segments of any existing log rather than append to it
+     * @param metrics where each append's size and latency is recorded
+     */
+    MappedSegmentLogWriter(Path dbFile, int segmentSize, boolean truncate, byte[] eol, ServerMetrics metrics)
+            throws IOException {
+        this.dbFile = dbFile;
+        this.manifestFile = dbFile.resolveSibling(dbFile.getFileName() + ".manifest");
+        this.recordSize = 4 + eol.length;
+        if (segmentSize < recordSize) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " smaller than a record");
+        }
+        this.segmentSize = segmentSize;
+        byte eolByte = eol[0];
+        // encoded as in ChannelLogWriter
+        this.encoder = eol.length == 1
+                ? number -> active.putInt(number).put(eolByte)
+                : number -> active.putInt(number).put(eol);
+        this.metrics = metrics;
+
+        segments.addAll(readManifest(dbFile));
+        if (truncate) {
+            for (Path segment : segments) {
+                Files.deleteIfExists(segment);
+                Files.deleteIfExists(SortedSegment.fileFor(segment));
+            }
+            segments.clear();
+        }
+        if (segments.isEmpty()) {
+            segments.add(segmentFile(0));
+            activeChannel = LogWriter.open(lastSegment(), EnumSet.of(CREATE, READ, WRITE, TRUNCATE_EXISTING));
+        } else {
+            for (int i = 0; i < segments.size() - 1; i++) {
+                activeStart += segmentLength(segments.get(i), recordSize);
+            }
+            activeChannel = LogWriter.open(lastSegment(), EnumSet.of(CREATE, READ, WRITE));
+        }
+        writeManifest();
+    }
+
+    /**
+     * Reads the segment list of the log named {@code dbFile}, empty if there is no manifest.
+     */
+    static List<Path> readManifest(Path dbFile) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        for (ManifestEntry entry : readManifestEntries(dbFile)) {
+            segments.add(entry.getSegment());
+        }
+        return segments;
+    }
+
+    /**
+     * Reads the segments of the log named {@code dbFile} with the log offset each starts at, empty if there is no
+     * manifest.  Both come from one read, so they always match even while the manifest is being replaced.
+     */
+    static List<ManifestEntry> readManifestEntries(Path dbFile) throws IOException {
+        Path manifestFile = dbFile.resolveSibling(dbFile.getFileName() + ".manifest");
+        List<ManifestEntry> entries = new ArrayList<>();
+        if (Files.exists(manifestFile)) {
+            for (String line : Files.readAllLines(manifestFile, Charsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    String[] fields = line.trim().split("\\s+");
+                    entries.add(new ManifestEntry(dbFile.resolveSibling(fields[1]), Long.parseLong(fields[0])));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the bytes of log a sealed segment stands for, whether it is still raw or compacted
+     */
+    static long segmentLength(Path segment, int recordSize) throws IOException {
+        try {
+            return Files.size(segment);
+        } catch (NoSuchFileException e) {
+            // replaced by its compacted file
+        }
+        Path sorted = SortedSegment.fileFor(segment);
+        if (Files.exists(sorted)) {
+            return (long) SortedSegment.open(sorted).count() * recordSize;
+        }
+        throw new NoSuchFileException(segment.toString());
+    }
+
+    /**
+     * @return the segment files of the log, oldest first; the last one is still being written
+     */
+    List<Path> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    @Override
+    public LogRecovery.Result recover(LogRecovery recovery, long fromOffset, DedupIndex index) throws IOException {
+        long startNanos = System.nanoTime();
+        long records = 0;
+        long truncated = 0;
+        long start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            boolean isActive = i == segments.size() - 1;
+            if (!isActive && !Files.exists(segments.get(i))) {
+                long length = segmentLength(segments.get(i), recordSize);
+                if (fromOffset < start + length) {
+                    records += recovery.recover(SortedSegment.open(SortedSegment.fileFor(segments.get(i))), index);
+                }
+                start += length;
+                continue;
+            }
+            try (FileChannel channel = isActive ? null : FileChannel.open(segments.get(i), READ)) {
+                FileChannel segment = isActive ? activeChannel : channel;
+                long length = segment.size();
+                if (fromOffset < start + length) {
+                    long segmentOffset = Math.max(0, fromOffset - start);
+                    LogRecovery.Result result = isActive
+                            ? recovery.recover(segment, segmentOffset, index)
+                            : recovery.scan(segment, segmentOffset, index);
+                    if (!isActive && result.getTruncatedBytes() > 0) {
+                        // cutting it short would shift the log offset of every later segment
+                        throw new IOException("Sealed log segment " + segments.get(i) + " is damaged, its last "
+                                + result.getTruncatedBytes() + " bytes are not valid records; repair or remove it and "
+                                + "the " + (segments.size() - 1 - i) + " segments after it before recovering");
+                    }
+                    records += result.getRecordCount();
+                    truncated += result.getTruncatedBytes();
+                }
+                if (isActive) {
+                    activeStart = start;
+                } else {
+                    start += segment.size();
+                }
+            }
+        }
+        writeManifest();
+        return new LogRecovery.Result(records, truncated, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public int append(IntRingBuffer queue, int maxRecords) throws IOException {
+        long startNanos = System.nanoTime();
+        int appended = 0;
+        while (appended < maxRecords) {
+            if (active == null) {
+                mapActive();
+            }
+            int room = active.remaining() / recordSize;
+            if (room == 0) {
+                roll();
+                continue;
+            }
+            int drained = queue.drainTo(encoder, Math.min(room, maxRecords - appended));
+            if (drained == 0) {
+                break;
+            }
+            appended += drained;
+        }
+        if (appended > 0) {
+            metrics.recordWrite(appended, (long) appended * recordSize, System.nanoTime() - startNanos);
+        }
+        return appended;
+    }
+
+    @Override
+    public void force() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    @Override
+    public long size() {
+        try {
+            return activeStart + (active != null ? active.position() : activeChannel.size());
+        } catch (IOException e) {
+            throw new IllegalStateException("Log segment " + lastSegment() + " closed", e);
+        }
+    }
+
+    /**
+     * Forces the active segment and trims it to the records it holds, so a cleanly closed log has no zero tail.
+     */
+    @Override
+    public void close() throws IOException {
+        if (active != null) {
+            active.force();
+            activeChannel.truncate(active.position());
+        }
+        activeChannel.close();
+    }
+
+    private void mapActive() throws IOException {
+        long length = activeChannel.size();
+        if (length + recordSize > segmentSize) {
+            // written with a larger segment size, leave it as it is
+            activeStart += length;
+            startSegment();
+            length = 0;
+        }
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        active.position((int) length);
+    }
+
+    private void roll() throws IOException {
+        active.force();
+        activeChannel.truncate(active.position());
+        activeStart += active.position();
+        startSegment();
+        active = activeChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    private void startSegment() throws IOException {
+        activeChannel.close();
+        segments.add(segmentFile(segments.size()));
+        activeChannel = LogWriter.open(lastSegment(), EnumSet.of(CREATE, READ, WRITE, TRUNCATE_EXISTING));
+        // listed before anything is written to it, so recovery never misses records
+        writeManifest();
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        long start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (i == segments.size() - 1) {
+                start = activeStart;
+            }
+            manifest.append(start).append(' ').append(segments.get(i).getFileName()).append('\n');
+            if (i < segments.size() - 1) {
+                start += segmentLength(segments.get(i), recordSize);
+            }
+        }
+        Path tmp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        Files.write(tmp, manifest.toString().getBytes(Charsets.UTF_8));
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segmentFile(int sequence) {
+        return dbFile.resolveSibling(String.format("%s.%08d", dbFile.getFileName(), sequence));
+    }
+
+    private Path lastSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * A segment listed in the manifest and the log offset it starts at.
+     */
+    static class ManifestEntry {
+        private final Path segment;
+        private final long start;
+
+        ManifestEntry(Path segment, long start) {
+            this.segment = segment;
+            this.start = start;
+        }
+
+        Path getSegment() {
+            return segment;
+        }
+
+        long getStart() {
+            return start;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Objects;
+
+/**
+ * Exposes {@link ServerMetrics} as the {@code com.newrelic.numserver:type=ServerMetrics} MBean and, given a port, as
+ * Prometheus text format at {@code http://<listen address>:<port>/metrics}.  The endpoint is served by the JDK's
+ * built-in HTTP server on one thread; scrapes only read counters, they never block the reading or writer threads.
+ */
+class MetricsExporter extends AbstractIdleService {
+
+    private static final Logger log = LoggerFactory.getLogger(MetricsExporter.class);
+
+    static final String OBJECT_NAME = "com.newrelic.numserver:type=ServerMetrics";
+
+    private final ServerMetrics metrics;
+    private final String listenAddress;
+    private final int port;
+
+    private ObjectName registeredName;
+    private HttpServer httpServer;
+
+    /**
+     * @param port for the Prometheus endpoint, 0 for any free port, -1 for no endpoint
+     */
+    MetricsExporter(ServerMetrics metrics, String listenAddress, int port) {
+        this.metrics = Objects.requireNonNull(metrics);
+        this.listenAddress = Objects.requireNonNull(listenAddress);
+        this.port = port;
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            mbeanServer.registerMBean(metrics, name);
+            registeredName = name;
+        } catch (InstanceAlreadyExistsException e) {
+            // another server in this JVM, e.g. in tests; its metrics stay registered
+            log.warn("Metrics MBean {} already registered, not registering this server's metrics", OBJECT_NAME);
+        } catch (JMException e) {
+            log.warn("Failed to register metrics MBean", e);
+        }
+
+        if (port >= 0) {
+            httpServer = HttpServer.create(new InetSocketAddress(listenAddress, port), 0);
+            httpServer.createContext("/metrics", this::handleScrape);
+            httpServer.start();
+            log.info("Serving metrics on http://{}:{}/metrics", listenAddress, httpServer.getAddress().getPort());
+        }
+    }
+
+    @Override
+    protected void shutDown() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+        if (registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                log.debug("Failed to unregister metrics MBean", e);
+            }
+        }
+    }
+
+    /**
+     * @return the port the Prometheus endpoint is bound to, -1 if there is none
+     */
+    int getPort() {
+        return httpServer == null ? -1 : httpServer.getAddress().getPort();
+    }
+
+    private void handleScrape(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = toPrometheusText(metrics).getBytes(Charsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders the metrics in the Prometheus text exposition format.
+     */
+    static String toPrometheusText(ServerMetrics metrics) {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "numbers_unique_total", "Unique numbers received.", metrics.getUniqueNumbers());
+        counter(out, "numbers_duplicate_total", "Duplicate numbers received.", metrics.getDuplicateNumbers());
+        counter(out, "numbers_parse_errors_total", "Connections closed for invalid input.",
+                metrics.getParseErrors());
+        counter(out, "numbers_read_bytes_total", "Bytes read from clients.", metrics.getBytesRead());
+        counter(out, "numbers_parse_seconds_total", "Time spent parsing input.", metrics.getParseNanos() / 1e9);
+        counter(out, "numbers_insert_seconds_total", "Time spent in dedup and queueing, including back-pressure.",
+                metrics.getInsertNanos() / 1e9);
+        counter(out, "numbers_back_pressure_seconds_total", "Time inserts waited on a full write queue.",
+                metrics.getBackPressureNanos() / 1e9);
+        counter(out, "numbers_connections_opened_total", "Client connections accepted.",
+                metrics.getConnectionsOpened());
+        gauge(out, "numbers_connections", "Open client connections.", metrics.getActiveConnections());
+        gauge(out, "numbers_index_memory_bytes", "Memory holding the dedup index bits.",
+                metrics.getIndexMemoryBytes());
+        gauge(out, "numbers_write_queue_depth", "Numbers queued but not yet written.", metrics.getWriteQueueDepth());
+        gauge(out, "numbers_write_queue_fill", "Fill fraction of the fullest write queue.",
+                metrics.getWriteQueueFill());
+        gauge(out, "numbers_writer_lag_seconds", "Estimated time until the numbers queued now are written.",
+                metrics.getWriterLagNanos() / 1e9);
+        gauge(out, "numbers_admission_level", "0 normal, 1 throttling reads, 2 holding off accepts, 3 shedding.",
+                metrics.getAdmissionLevel());
+        counter(out, "numbers_throttle_seconds_total", "Time reading threads paused for admission control.",
+                metrics.getThrottleNanos() / 1e9);
+        counter(out, "numbers_accept_paused_seconds_total", "Time new connections were held off.",
+                metrics.getAcceptPausedNanos() / 1e9);
+        counter(out, "numbers_shed_connections_total", "Connections closed by admission control.",
+                metrics.getShedConnections());
+        counter(out, "numbers_datagrams_total", "UDP datagrams whose numbers were inserted.", metrics.getDatagrams());
+        counter(out, "numbers_datagrams_dropped_total", "UDP datagrams dropped while the writers fell behind.",
+                metrics.getDroppedDatagrams());
+        counter(out, "numbers_datagrams_malformed_total", "UDP datagrams dropped for invalid input.",
+                metrics.getMalformedDatagrams());
+        counter(out, "numbers_replication_sent_bytes_total", "Log bytes sent to followers.",
+                metrics.getReplicationBytesSent());
+        gauge(out, "numbers_replication_followers", "Followers streaming the logs.", metrics.getConnectedFollowers());
+        gauge(out, "numbers_replication_lag_bytes", "Log bytes written by the primary, not yet applied here.",
+                metrics.getReplicationLagBytes());
+        gauge(out, "numbers_replication_lag_seconds", "Age of the oldest primary log bytes not yet applied here.",
+                metrics.getReplicationLagMillis() / 1e3);
+        histogram(out, "numbers_writer_batch_records", "Records per writer batch.",
+                metrics.getWriterBatchRecords(), 1);
+        histogram(out, "numbers_writer_batch_bytes", "Bytes per writer batch.", metrics.getWriterBatchBytes(), 1);
+        histogram(out, "numbers_writer_flush_seconds", "Time to write one batch to the log.",
+                metrics.getWriterFlushMicros(), 1e-6);
+        histogram(out, "numbers_fsync_seconds", "Time to force the log to disk.", metrics.getFsyncMicros(), 1e-6);
+
+        header(out, "numbers_connection_numbers_total", "Numbers received per open connection.", "counter");
+        for (ServerMetrics.Connection connection : metrics.getConnections()) {
+            out.append("numbers_connection_numbers_total{client=\"").append(connection.getName()).append("\"} ")
+                    .append(connection.getNumbers()).append('\n');
+        }
+        header(out, "numbers_connection_read_bytes_total", "Bytes read per open connection.", "counter");
+        for (ServerMetrics.Connection connection : metrics.getConnections()) {
+            out.append("numbers_connection_read_bytes_total{client=\"").append(connection.getName()).append("\"} ")
+                    .append(connection.getBytes()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, Number value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, Number value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    /*
+     * Cumulative buckets up to the highest non-empty one, then +Inf.  scale converts recorded values to the unit in
+     * the metric name.
+     */
+    private static void histogram(StringBuilder out, String name, String help, Log2Histogram.Snapshot snapshot,
+                                  double scale) {
+        header(out, name, help, "histogram");
+        int highest = 0;
+        for (int i = 0; i < Log2Histogram.BUCKETS - 1; i++) {
+            if (snapshot.getBucketCount(i) > 0) {
+                highest = i;
+            }
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= highest; i++) {
+            cumulative += snapshot.getBucketCount(i);
+            out.append(name).append("_bucket{le=\"");
+            if (scale == 1) {
+                out.append(Log2Histogram.upperBound(i));
+            } else {
+                out.append(Log2Histogram.upperBound(i) * scale);
+            }
+            out.append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(snapshot.getCount()).append('\n');
+        out.append(name).append("_sum ");
+        if (scale == 1) {
+            out.append(snapshot.getSum());
+        } else {
+            out.append(snapshot.getSum() * scale);
+        }
+        out.append('\n');
+        out.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+}
@@ -14,4 +14,27 @@ public interface MetricsReporter {
      * @param isNewNumber true to indicate a new number was inserted, false for a duplicate
      */
     void recordInsert(boolean isNewNumber);
+
+    /**
+     * Increment counters for a batch of insert attempts.
+     *
+     * @param newNumbers numbers inserted
+     * @param duplicates numbers rejected as duplicates
+     */
+    void recordInserts(int newNumbers, int duplicates);
+
+    /**
+     * Increment counters for a datagram whose numbers were inserted.
+     */
+    void recordDatagram();
+
+    /**
+     * Increment counters for a datagram dropped unread while the database is falling behind.
+     */
+    void recordDroppedDatagram();
+
+    /**
+     * Increment counters for a datagram dropped for an invalid line or frame.
+     */
+    void recordMalformedDatagram();
 }
@@ -0,0 +1,135 @@
+package com.newrelic.numserver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bit set that allocates its words in pages of 2^16 bits (8KB), each only once a bit in its range is first set, so
+ * an index over the full number range costs a 60KB page directory up front and memory in proportion to the ranges
+ * actually used after that.  Reads of a missing page see zeros and allocate nothing.
+ *
+ * Set bits are CAS updates of one word, as in {@link ConcurrentBitSet}.  A missing page is installed with a CAS on its
+ * directory slot; when two threads race to install the same page one allocation is dropped and both use the winner.
+ */
+public class PagedBitSet implements DedupIndex {
+
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final int PAGE_SHIFT = 16;
+    private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - ADDRESS_BITS_PER_WORD);
+    // header and length of an AtomicLongArray's array, roughly
+    private static final int PAGE_OVERHEAD_BYTES = 32;
+
+    private final AtomicReferenceArray<AtomicLongArray> pages;
+    private final AtomicInteger allocatedPages = new AtomicInteger();
+    private final int size;
+
+    public PagedBitSet(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        this.size = size;
+        this.pages = new AtomicReferenceArray<>(size == 0 ? 0 : ((size - 1) >> PAGE_SHIFT) + 1);
+    }
+
+    /**
+     * Sets the bit and returns its previous value.  The bit is read first, so testing an already set bit never writes.
+     */
+    @Override
+    public boolean getAndSet(int bitIndex) {
+        checkIndex(bitIndex);
+        AtomicLongArray page = page(bitIndex >>> PAGE_SHIFT);
+        int wordIndex = (bitIndex >>> ADDRESS_BITS_PER_WORD) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = page.get(wordIndex);
+            if ((word & mask) != 0) {
+                return true;
+            }
+        } while (!page.compareAndSet(wordIndex, word, word | mask));
+        return false;
+    }
+
+    @Override
+    public void clear(int bitIndex) {
+        checkIndex(bitIndex);
+        AtomicLongArray page = pages.get(bitIndex >>> PAGE_SHIFT);
+        if (page == null) {
+            return;
+        }
+        int wordIndex = (bitIndex >>> ADDRESS_BITS_PER_WORD) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << bitIndex;
+        long word;
+        do {
+            word = page.get(wordIndex);
+        } while ((word & mask) != 0 && !page.compareAndSet(wordIndex, word, word & ~mask));
+    }
+
+    @Override
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        AtomicLongArray page = pages.get(bitIndex >>> PAGE_SHIFT);
+        return page != null
+                && (page.get((bitIndex >>> ADDRESS_BITS_PER_WORD) & (WORDS_PER_PAGE - 1)) & (1L << bitIndex)) != 0;
+    }
+
+    @Override
+    public long word(int wordIndex) {
+        AtomicLongArray page = pages.get(wordIndex >>> (PAGE_SHIFT - ADDRESS_BITS_PER_WORD));
+        return page == null ? 0 : page.get(wordIndex & (WORDS_PER_PAGE - 1));
+    }
+
+    @Override
+    public void orWord(int wordIndex, long bits) {
+        if (bits == 0) {
+            return;
+        }
+        AtomicLongArray page = page(wordIndex >>> (PAGE_SHIFT - ADDRESS_BITS_PER_WORD));
+        int pageWord = wordIndex & (WORDS_PER_PAGE - 1);
+        long word;
+        do {
+            word = page.get(pageWord);
+            if ((word | bits) == word) {
+                return;
+            }
+        } while (!page.compareAndSet(pageWord, word, word | bits));
+    }
+
+    @Override
+    public int capacity() {
+        return size;
+    }
+
+    @Override
+    public long memoryBytes() {
+        return pages.length() * 4L + allocatedPages.get() * (WORDS_PER_PAGE * 8L + PAGE_OVERHEAD_BYTES);
+    }
+
+    /**
+     * @return pages allocated so far, each holding 2^16 bits
+     */
+    public int getAllocatedPages() {
+        return allocatedPages.get();
+    }
+
+    private AtomicLongArray page(int pageIndex) {
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page == null) {
+            AtomicLongArray allocated = new AtomicLongArray(WORDS_PER_PAGE);
+            if (pages.compareAndSet(pageIndex, null, allocated)) {
+                allocatedPages.incrementAndGet();
+                page = allocated;
+            } else {
+                page = pages.get(pageIndex);
+            }
+        }
+        return page;
+    }
+
+    private void checkIndex(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            throw new IndexOutOfBoundsException("bitIndex: " + bitIndex + ", size: " + size);
+        }
+    }
+}
@@ -1,37 +1,252 @@
 package com.newrelic.numserver;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 import java.util.Optional;
 
 /**
  * Parses and interprets commands sent to the server.
+ *
+ * Input is a sequence of lines, each either exactly nine decimal digits or the terminate command, ended by
+ * {@code \n} or {@code \r\n}.  {@link #acceptInput(ByteBuffer, NumberSink)} is the hot path: it parses raw socket
+ * bytes and hands numbers to a {@link NumberSink} as primitive ints without allocating.
+ *
+ * A connection that opens with {@link BinaryProtocol#MAGIC} sends binary frames instead, see {@link BinaryProtocol}.
+ * Connections are read through a {@link #newConnectionDecoder()}, which picks the mode from the first bytes.
  */
 public class Protocol {
 
     private static final int NUMBER_LENGTH = 9;
 
+    /**
+     * Longest valid line including its EOL.  A caller never has to carry over more than this many bytes between reads.
+     */
+    public static final int MAX_LINE_LENGTH = NUMBER_LENGTH + 2;
+
+    /**
+     * Shortest valid line including its EOL, bounds how many numbers a buffer of input can hold.
+     */
+    public static final int MIN_LINE_LENGTH = NUMBER_LENGTH + 1;
+
     @VisibleForTesting static final String EOL = System.getProperty("line.separator");
     @VisibleForTesting static final String TERMINATE_INPUT_CMD = "terminate";
 
+    private static final byte[] TERMINATE_INPUT_BYTES = TERMINATE_INPUT_CMD.getBytes(Charsets.US_ASCII);
 
-    public ClientInputResponse acceptInput(String line) {
-        if (TERMINATE_INPUT_CMD.equals(line)) {
-            return new ClientInputResponse(ClientInputAction.TERMINATE);
+    // parseLine results for lines that are not numbers
+    private static final int TERMINATE_LINE = -1;
+    private static final int INVALID_LINE = -2;
+
+    // text parsing keeps no state between reads, so every text connection shares one decoder
+    private final Decoder textDecoder = new Decoder() {
+        @Override
+        public ClientInputAction acceptInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException {
+            return Protocol.this.acceptInput(input, sink);
         }
-        try {
-            return new ClientInputResponse(ClientInputAction.INSERT_NUMBER, Optional.of(parseNumber(line)));
-        } catch (IllegalArgumentException e) {
-            return new ClientInputResponse(ClientInputAction.CLOSE_CONNECTION);
+
+        @Override
+        public ClientInputAction acceptEndOfInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException {
+            return Protocol.this.acceptEndOfInput(input, sink);
         }
+    };
+
+    /**
+     * Receives numbers parsed from client input.
+     */
+    public interface NumberSink {
+        void acceptNumber(int number) throws InterruptedException, IOException;
+    }
+
+    /**
+     * Decodes the input of one connection.
+     */
+    public interface Decoder {
+
+        /**
+         * Hands every number in the input to the sink, as {@link Protocol#acceptInput(ByteBuffer, NumberSink)} does.
+         * Input left unconsumed must be passed in again, ahead of the next input.
+         */
+        ClientInputAction acceptInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException;
+
+        /**
+         * Called once the client has closed its side of the connection, with the input the last
+         * {@link #acceptInput} call left unconsumed.
+         *
+         * @return {@link ClientInputAction#INSERT_NUMBER} if the input ended cleanly
+         */
+        ClientInputAction acceptEndOfInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException;
+    }
+
+    /**
+     * @return a decoder for a new connection's input, text or binary depending on how the input starts.  Not
+     * thread-safe, each connection needs its own.
+     */
+    public Decoder newConnectionDecoder() {
+        return new NegotiatingDecoder();
     }
 
-    private int parseNumber(String line) {
-        if (line.length() != NUMBER_LENGTH) {
-            throw new IllegalArgumentException("Invalid input line: " + line);
+    public ClientInputResponse acceptInput(String line) {
+        byte[] bytes = line.getBytes(Charsets.US_ASCII);
+        int parsed = parseLine(ByteBuffer.wrap(bytes), 0, bytes.length);
+        if (parsed == TERMINATE_LINE) {
+            return ClientInputResponse.TERMINATE;
+        } else if (parsed == INVALID_LINE) {
+            return ClientInputResponse.CLOSE_CONNECTION;
         } else {
-            return Integer.parseInt(line.trim());
+            return new ClientInputResponse(ClientInputAction.INSERT_NUMBER, Optional.of(parsed));
+        }
+    }
+
+    /**
+     * Parses every complete line between the buffer's position and limit, passing each number to the sink in order.
+     * Parsing stops at the first line that is not a number.
+     *
+     * On return the buffer is positioned after the last line consumed, so any partial line at the end is left
+     * unconsumed for the caller to carry over to the next read.
+     *
+     * @return {@link ClientInputAction#INSERT_NUMBER} if every complete line was a number and more input may follow,
+     * {@link ClientInputAction#TERMINATE} for the terminate command, or {@link ClientInputAction#CLOSE_CONNECTION}
+     * for invalid input, including a partial line that is already too long to ever be valid
+     */
+    public ClientInputAction acceptInput(ByteBuffer input, NumberSink sink)
+            throws InterruptedException, IOException {
+        int lineStart = input.position();
+        int limit = input.limit();
+        for (int i = lineStart; i < limit; i++) {
+            if (input.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = (i > lineStart && input.get(i - 1) == '\r') ? i - 1 : i;
+            int parsed = parseLine(input, lineStart, lineEnd);
+            lineStart = i + 1;
+            if (parsed >= 0) {
+                sink.acceptNumber(parsed);
+            } else {
+                input.position(lineStart);
+                return parsed == TERMINATE_LINE ? ClientInputAction.TERMINATE : ClientInputAction.CLOSE_CONNECTION;
+            }
+        }
+        input.position(lineStart);
+        return limit - lineStart < MAX_LINE_LENGTH
+                ? ClientInputAction.INSERT_NUMBER
+                : ClientInputAction.CLOSE_CONNECTION;
+    }
+
+    /**
+     * Parses the input left after the last complete line once the client has closed its side of the connection.  Like
+     * {@code BufferedReader.readLine}, takes a final unterminated line as a line.
+     */
+    public ClientInputAction acceptEndOfInput(ByteBuffer input, NumberSink sink)
+            throws InterruptedException, IOException {
+        if (!input.hasRemaining()) {
+            return ClientInputAction.INSERT_NUMBER;
+        }
+        int end = input.limit();
+        if (input.get(end - 1) == '\r') {
+            end--;
+        }
+        int parsed = parseLine(input, input.position(), end);
+        input.position(input.limit());
+        if (parsed >= 0) {
+            sink.acceptNumber(parsed);
+            return ClientInputAction.INSERT_NUMBER;
+        }
+        return parsed == TERMINATE_LINE ? ClientInputAction.TERMINATE : ClientInputAction.CLOSE_CONNECTION;
+    }
+
+    /*
+     * Returns the number on the line [start, end), or TERMINATE_LINE / INVALID_LINE.
+     */
+    private static int parseLine(ByteBuffer input, int start, int end) {
+        if (isTerminate(input, start, end)) {
+            return TERMINATE_LINE;
+        } else if (end - start != NUMBER_LENGTH) {
+            return INVALID_LINE;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            int digit = input.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_LINE;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    private static boolean isTerminate(ByteBuffer input, int start, int end) {
+        if (end - start != TERMINATE_INPUT_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < TERMINATE_INPUT_BYTES.length; i++) {
+            if (input.get(start + i) != TERMINATE_INPUT_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Decodes text, unless the first bytes are the binary magic.
+     */
+    private class NegotiatingDecoder implements Decoder {
+
+        // null until the first bytes arrive
+        private Decoder delegate;
+
+        @Override
+        public ClientInputAction acceptInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException {
+            if (delegate == null && !negotiate(input)) {
+                return input.hasRemaining() && !isMagicPrefix(input)
+                        ? ClientInputAction.CLOSE_CONNECTION : ClientInputAction.INSERT_NUMBER;
+            }
+            return delegate.acceptInput(input, sink);
+        }
+
+        @Override
+        public ClientInputAction acceptEndOfInput(ByteBuffer input, NumberSink sink)
+                throws InterruptedException, IOException {
+            if (delegate == null) {
+                // nothing sent, or part of the magic
+                return input.hasRemaining() ? ClientInputAction.CLOSE_CONNECTION : ClientInputAction.INSERT_NUMBER;
+            }
+            return delegate.acceptEndOfInput(input, sink);
+        }
+
+        /*
+         * Picks the decoder once there are enough bytes to tell, consuming the magic.  Returns false while undecided.
+         */
+        private boolean negotiate(ByteBuffer input) {
+            if (!input.hasRemaining()) {
+                return false;
+            } else if (input.get(input.position()) != BinaryProtocol.MAGIC[0]) {
+                delegate = textDecoder;
+                return true;
+            } else if (input.remaining() < BinaryProtocol.MAGIC.length || !isMagicPrefix(input)) {
+                return false;
+            }
+            input.position(input.position() + BinaryProtocol.MAGIC.length);
+            delegate = new BinaryProtocol();
+            return true;
+        }
+
+        private boolean isMagicPrefix(ByteBuffer input) {
+            int length = Math.min(input.remaining(), BinaryProtocol.MAGIC.length);
+            for (int i = 0; i < length; i++) {
+                if (input.get(input.position() + i) != BinaryProtocol.MAGIC[i]) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -0,0 +1,158 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers membership and count queries over a port of its own, so queries never share a connection, thread or
+ * protocol with ingest.  Answers come from the {@link Database} read methods, which never block inserts.
+ *
+ * The protocol is one command per line, one answer line per command:
+ * <ul>
+ *     <li>{@code contains <n>} answers {@code true} or {@code false}</li>
+ *     <li>{@code count} answers the count of distinct numbers</li>
+ *     <li>{@code count <low> <high>} answers the count of distinct numbers in {@code [low, high)}</li>
+ * </ul>
+ * Anything else answers {@code error <reason>} and the connection stays open.
+ */
+class QueryServer extends AbstractExecutionThreadService {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryServer.class);
+
+    private static final int QUERY_THREADS = 4;
+
+    private final Database database;
+    private final String listenAddress;
+    private final int port;
+    private final Duration readTimeout;
+
+    private final ExecutorService connectionPool = Executors.newFixedThreadPool(QUERY_THREADS);
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+
+    /**
+     * @param port 0 for any free port
+     */
+    QueryServer(Database database, String listenAddress, int port, Duration readTimeout) {
+        this.database = Objects.requireNonNull(database);
+        this.listenAddress = Objects.requireNonNull(listenAddress);
+        this.port = port;
+        this.readTimeout = Objects.requireNonNull(readTimeout);
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(listenAddress, port));
+        log.info("Serving queries on {}:{}", listenAddress, serverSocket.getLocalPort());
+    }
+
+    @Override
+    protected void run() {
+        while (isRunning()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout((int) readTimeout.toMillis());
+                sockets.add(socket);
+                connectionPool.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // closed by triggerShutdown
+                log.debug("Query server socket closed", e);
+            } catch (IOException e) {
+                log.warn("Handled IOException in query accept loop", e);
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close query server socket", e);
+        }
+    }
+
+    @Override
+    protected void shutDown() {
+        connectionPool.shutdownNow();
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return the port queries are served on
+     */
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), Charsets.US_ASCII));
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.write(answer(line));
+                out.write('\n');
+                // pipelined queries are answered in one write
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (SocketTimeoutException e) {
+            log.debug("Query socket read timeout", e);
+        } catch (IOException e) {
+            log.debug("Handled query socket IOException", e);
+        } finally {
+            sockets.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    String answer(String line) {
+        String[] parts = line.trim().split("\\s+");
+        try {
+            if (parts[0].equals("contains") && parts.length == 2) {
+                return Boolean.toString(database.contains(Integer.parseInt(parts[1])));
+            } else if (parts[0].equals("count") && parts.length == 1) {
+                return Long.toString(database.count());
+            } else if (parts[0].equals("count") && parts.length == 3) {
+                return Long.toString(database.countRange(Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+            }
+            return "error unknown command";
+        } catch (NumberFormatException e) {
+            return "error invalid number";
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Failed to close query socket", e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.newrelic.numserver;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts of the numbers in a {@link DedupIndex} per block of 4096 numbers and per superblock of 2^20, so the rank of a
+ * number, the count of numbers below it, takes at most one addition per superblock below it, 255 block additions and
+ * 63 word popcounts instead of a scan of the bit set.  For the full 10^9 range that is about 1300 operations.
+ *
+ * Call {@link #increment} after every number newly added to the index and {@link #decrement} after one is removed.
+ * Each new number costs two atomic increments; numbers far apart land on different counters, so concurrent inserts
+ * rarely contend.  Reads never lock, a rank taken while numbers are added may or may not include them.
+ */
+class RankIndex {
+
+    private static final int BLOCK_SHIFT = 12;
+    private static final int SUPERBLOCK_SHIFT = 20;
+    private static final int WORD_SHIFT = 6;
+
+    private final DedupIndex index;
+    private final AtomicIntegerArray blockCounts;
+    private final AtomicIntegerArray superblockCounts;
+
+    RankIndex(DedupIndex index) {
+        this.index = index;
+        int capacity = index.capacity();
+        this.blockCounts = new AtomicIntegerArray(((capacity - 1) >> BLOCK_SHIFT) + 1);
+        this.superblockCounts = new AtomicIntegerArray(((capacity - 1) >> SUPERBLOCK_SHIFT) + 1);
+    }
+
+    /**
+     * Counts a number just added to the index.
+     */
+    void increment(int number) {
+        blockCounts.incrementAndGet(number >>> BLOCK_SHIFT);
+        superblockCounts.incrementAndGet(number >>> SUPERBLOCK_SHIFT);
+    }
+
+    /**
+     * Uncounts a number just removed from the index.
+     */
+    void decrement(int number) {
+        blockCounts.decrementAndGet(number >>> BLOCK_SHIFT);
+        superblockCounts.decrementAndGet(number >>> SUPERBLOCK_SHIFT);
+    }
+
+    /**
+     * Recounts every block from the index, e.g. after recovery set bits directly.  Not safe to call concurrently with
+     * {@link #increment}.
+     */
+    void rebuild() {
+        int capacity = index.capacity();
+        int words = ((capacity - 1) >> WORD_SHIFT) + 1;
+        int wordsPerBlock = 1 << (BLOCK_SHIFT - WORD_SHIFT);
+        for (int i = 0; i < superblockCounts.length(); i++) {
+            superblockCounts.set(i, 0);
+        }
+        for (int block = 0; block < blockCounts.length(); block++) {
+            int count = 0;
+            int firstWord = block * wordsPerBlock;
+            for (int word = firstWord; word < Math.min(words, firstWord + wordsPerBlock); word++) {
+                count += Long.bitCount(index.word(word));
+            }
+            blockCounts.set(block, count);
+            int superblock = block >>> (SUPERBLOCK_SHIFT - BLOCK_SHIFT);
+            superblockCounts.set(superblock, superblockCounts.get(superblock) + count);
+        }
+    }
+
+    /**
+     * @param number in {@code [0, capacity]}
+     * @return the count of numbers in the index below {@code number}
+     */
+    long rank(int number) {
+        if (number < 0 || number > index.capacity()) {
+            throw new IndexOutOfBoundsException("number: " + number + ", capacity: " + index.capacity());
+        }
+        long rank = 0;
+        int superblock = number >>> SUPERBLOCK_SHIFT;
+        for (int i = 0; i < superblock; i++) {
+            rank += superblockCounts.get(i);
+        }
+        int block = number >>> BLOCK_SHIFT;
+        for (int i = superblock << (SUPERBLOCK_SHIFT - BLOCK_SHIFT); i < block; i++) {
+            rank += blockCounts.get(i);
+        }
+        int word = number >>> WORD_SHIFT;
+        for (int i = block << (BLOCK_SHIFT - WORD_SHIFT); i < word; i++) {
+            rank += Long.bitCount(index.word(i));
+        }
+        // bits of the last, partial word; a number at the capacity on a word boundary has none
+        if ((number & 63) != 0) {
+            rank += Long.bitCount(index.word(word) & ((1L << number) - 1));
+        }
+        return rank;
+    }
+
+    /**
+     * @return the count of numbers in the index in {@code [low, high)}, both in {@code [0, capacity]}
+     */
+    long countRange(int low, int high) {
+        return high <= low ? 0 : rank(high) - rank(low);
+    }
+}
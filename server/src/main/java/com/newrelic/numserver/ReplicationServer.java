@@ -0,0 +1,298 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Streams the logs of this server's databases to {@link LogFollower}s, one connection per database shard.  Log bytes
+ * go from the page cache straight to the socket with {@link FileChannel#transferTo}, never through the heap, whether
+ * the log is one file or mapped segments; only a segment already replaced by its compacted file is decoded and sent
+ * from a buffer.  Ingest is unaffected: the stream is read back from the files, the writer never waits on it.
+ *
+ * A follower opens with a handshake: {@link #MAGIC}, its shard index, its shard count, its record size and the log
+ * offset to stream from, ints and a long, big-endian.  Anything that does not match this server's databases closes the
+ * connection.  The server then sends chunks, each a header of the log offset the chunk starts at, this server's log
+ * size and the chunk length, two longs and an int, followed by that many bytes of whole records.  While no new records
+ * are written a header with no records is sent every 100 ms, so the follower always knows how far behind it is.
+ *
+ * Chunks normally follow on from each other.  A compacted segment is sent whole, from its start, as its records are no
+ * longer in log order; numbers the follower already has are dropped by its dedup index.
+ *
+ * Records are streamed once written, before they are forced; a follower may briefly hold numbers a primary crash
+ * loses from the primary's own log.
+ */
+class ReplicationServer extends AbstractExecutionThreadService {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationServer.class);
+
+    static final int MAGIC = 0x4e524550; // "NREP"
+    static final int HANDSHAKE_LENGTH = 4 + 4 + 4 + 4 + 8;
+    static final int CHUNK_HEADER_LENGTH = 8 + 8 + 4;
+
+    private static final int MAX_CHUNK_BYTES = 1024 * 1024;
+    private static final long POLL_MILLIS = 2;
+    private static final long HEARTBEAT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final List<SingleFileDatabase> databases;
+    private final String listenAddress;
+    private final int port;
+    private final ServerMetrics metrics;
+    private final int recordSize;
+
+    private final ExecutorService followerPool = Executors.newCachedThreadPool();
+    private final Set<SocketChannel> followers = ConcurrentHashMap.newKeySet();
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * @param databases every shard, in shard order
+     * @param port 0 for any free port
+     */
+    ReplicationServer(List<SingleFileDatabase> databases, String listenAddress, int port, ServerMetrics metrics) {
+        this.databases = new ArrayList<>(databases);
+        this.listenAddress = Objects.requireNonNull(listenAddress);
+        this.port = port;
+        this.metrics = Objects.requireNonNull(metrics);
+        this.recordSize = 4 + SingleFileDatabase.EOL.length;
+    }
+
+    @Override
+    protected void startUp() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(listenAddress, port));
+        log.info("Serving replication on {}:{}", listenAddress, getPort());
+    }
+
+    @Override
+    protected void run() {
+        while (isRunning()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                followers.add(channel);
+                followerPool.execute(() -> serve(channel));
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    log.warn("Handled IOException in replication accept loop", e);
+                } else {
+                    // closed by triggerShutdown
+                    log.debug("Replication server socket closed", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void triggerShutdown() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close replication server socket", e);
+        }
+    }
+
+    @Override
+    protected void shutDown() {
+        followerPool.shutdownNow();
+        for (SocketChannel channel : followers) {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * @return the port replication is served on
+     */
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    private void serve(SocketChannel channel) {
+        String follower = String.valueOf(channel.socket().getRemoteSocketAddress());
+        metrics.recordFollowerConnected(true);
+        try {
+            ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+            readFully(channel, handshake);
+            handshake.flip();
+            int magic = handshake.getInt();
+            int shard = handshake.getInt();
+            int shards = handshake.getInt();
+            int followerRecordSize = handshake.getInt();
+            long offset = handshake.getLong();
+            if (magic != MAGIC || shards != databases.size() || shard < 0 || shard >= shards
+                    || followerRecordSize != recordSize || offset < 0 || offset % recordSize != 0) {
+                log.warn("Rejecting follower {}: shard {} of {}, record size {}, offset {}; this server has {} shards"
+                        + " of {} byte records", follower, shard, shards, followerRecordSize, offset, databases.size(),
+                        recordSize);
+                return;
+            }
+            log.info("Follower {} replicating shard {} from offset {}", follower, shard, offset);
+            stream(channel, databases.get(shard), offset);
+        } catch (IOException e) {
+            log.info("Follower {} disconnected: {}", follower, e.toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.recordFollowerConnected(false);
+            followers.remove(channel);
+            closeQuietly(channel);
+        }
+    }
+
+    private void stream(SocketChannel channel, SingleFileDatabase database, long offset)
+            throws IOException, InterruptedException {
+        ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_LENGTH);
+        long lastSendNanos = 0;
+        while (isRunning() && channel.isOpen()) {
+            long logSize = database.getLogSize();
+            if (offset > logSize) {
+                throw new IOException("Follower is at offset " + offset + ", past the end of the log at " + logSize);
+            } else if (offset < logSize) {
+                offset = database.getConfig().getLogType() == SingleFileDatabase.LogType.CHANNEL
+                        ? sendFileChunk(channel, database.getDbFile(), 0, offset, logSize, header)
+                        : sendSegmentChunk(channel, database.getDbFile(), offset, logSize, header);
+                lastSendNanos = System.nanoTime();
+            } else if (System.nanoTime() - lastSendNanos >= HEARTBEAT_NANOS) {
+                sendHeader(channel, header, offset, logSize, 0);
+                lastSendNanos = System.nanoTime();
+            } else {
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+    }
+
+    /*
+     * Sends up to a chunk of a file holding the log from fileStart on, returns the log offset after it.
+     */
+    private long sendFileChunk(SocketChannel channel, Path file, long fileStart, long offset, long end,
+                               ByteBuffer header) throws IOException {
+        long length = Math.min(end - offset, MAX_CHUNK_BYTES / recordSize * recordSize);
+        try (FileChannel source = FileChannel.open(file, READ)) {
+            sendHeader(channel, header, offset, end, (int) length);
+            long sent = 0;
+            while (sent < length) {
+                long transferred = source.transferTo(offset - fileStart + sent, length - sent, channel);
+                if (transferred <= 0) {
+                    throw new EOFException("Log file " + file + " shorter than its records");
+                }
+                sent += transferred;
+            }
+        }
+        metrics.recordReplicationSent(length);
+        return offset + length;
+    }
+
+    /*
+     * Sends up to a chunk of the segment holding the offset, or the whole segment if it has been compacted.  Returns
+     * the log offset after what was sent.
+     */
+    private long sendSegmentChunk(SocketChannel channel, Path dbFile, long offset, long end, ByteBuffer header)
+            throws IOException, InterruptedException {
+        List<MappedSegmentLogWriter.ManifestEntry> segments = MappedSegmentLogWriter.readManifestEntries(dbFile);
+        int i = segments.size() - 1;
+        while (i > 0 && segments.get(i).getStart() > offset) {
+            i--;
+        }
+        if (i < 0) {
+            throw new IOException("No segments listed in the manifest of " + dbFile);
+        }
+        MappedSegmentLogWriter.ManifestEntry segment = segments.get(i);
+        long segmentEnd = i + 1 < segments.size() ? segments.get(i + 1).getStart() : end;
+        try {
+            return sendFileChunk(channel, segment.getSegment(), segment.getStart(), offset, Math.min(end, segmentEnd),
+                    header);
+        } catch (NoSuchFileException e) {
+            // replaced by its compacted file, which only sealed segments are
+        }
+        Path sorted = SortedSegment.fileFor(segment.getSegment());
+        if (!Files.exists(sorted)) {
+            // the raw file was deleted between listing and opening; the next poll finds the compacted one
+            Thread.sleep(POLL_MILLIS);
+            return offset;
+        }
+        sendCompacted(channel, SortedSegment.open(sorted), segment.getStart(), end, header);
+        return segmentEnd;
+    }
+
+    private void sendCompacted(SocketChannel channel, SortedSegment segment, long start, long end, ByteBuffer header)
+            throws IOException {
+        int length = segment.count() * recordSize;
+        sendHeader(channel, header, start, end, length);
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_CHUNK_BYTES / recordSize * recordSize);
+        IOException[] failure = new IOException[1];
+        segment.forEach(number -> {
+            if (failure[0] != null) {
+                return;
+            }
+            buffer.putInt(number).put(SingleFileDatabase.EOL);
+            if (!buffer.hasRemaining()) {
+                failure[0] = flush(channel, buffer);
+            }
+        });
+        if (failure[0] == null) {
+            failure[0] = flush(channel, buffer);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        metrics.recordReplicationSent(length);
+    }
+
+    private static IOException flush(SocketChannel channel, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return null;
+        } catch (IOException e) {
+            return e;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    private static void sendHeader(SocketChannel channel, ByteBuffer header, long offset, long logSize, int length)
+            throws IOException {
+        header.clear();
+        header.putLong(offset).putLong(logSize).putInt(length).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close replication socket", e);
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.newrelic.numserver;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bit set in the style of Roaring bitmaps: the numbers are split by their high 16 bits into containers of
+ * up to 2^16 numbers each, and each container is stored in whichever of three forms is smallest for what it holds.
+ *
+ * <ul>
+ *   <li>an array of the sorted low 16 bits, while it holds at most 4096 numbers (8KB)</li>
+ *   <li>a bitmap of 1024 words (8KB), once it holds more</li>
+ *   <li>runs of consecutive numbers, when that takes less than half the room of the array, or when it is full</li>
+ * </ul>
+ *
+ * Memory grows with the numbers held and how clustered they are, not with the key space, so many sparse sets fit where
+ * one {@link PagedBitSet} would.  The price is a binary search per lookup and a lock per container.
+ *
+ * The directory of containers is copy-on-write and replaced under the set's lock when a container is added; containers
+ * are only read or changed while holding their slot's lock, so writers to different containers never contend.
+ *
+ * Only the numbers of the database's range are held.  Per-client namespaces and keys wider than 32 bits were left out
+ * on purpose, as neither the protocol nor the log can carry them.
+ */
+public class RoaringBitSet implements DedupIndex {
+
+    // containers holding no more than this are arrays
+    static final int MAX_ARRAY_SIZE = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+    // object header, fields and array header of a container, roughly
+    private static final int CONTAINER_OVERHEAD_BYTES = 48;
+
+    private final int size;
+    private volatile Directory directory = new Directory(new char[0], new Slot[0]);
+
+    public RoaringBitSet(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size < 0: " + size);
+        }
+        this.size = size;
+    }
+
+    @Override
+    public boolean getAndSet(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = slot((char) (bitIndex >>> 16));
+        char low = (char) bitIndex;
+        synchronized (slot) {
+            if (slot.container.contains(low)) {
+                return true;
+            }
+            slot.container = slot.container.add(low);
+            return false;
+        }
+    }
+
+    @Override
+    public void clear(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = directory.find((char) (bitIndex >>> 16));
+        if (slot == null) {
+            return;
+        }
+        char low = (char) bitIndex;
+        synchronized (slot) {
+            if (slot.container.contains(low)) {
+                slot.container = slot.container.remove(low);
+            }
+        }
+    }
+
+    @Override
+    public boolean get(int bitIndex) {
+        checkIndex(bitIndex);
+        Slot slot = directory.find((char) (bitIndex >>> 16));
+        if (slot == null) {
+            return false;
+        }
+        synchronized (slot) {
+            return slot.container.contains((char) bitIndex);
+        }
+    }
+
+    @Override
+    public long word(int wordIndex) {
+        Slot slot = directory.find((char) (wordIndex >>> 10));
+        if (slot == null) {
+            return 0;
+        }
+        synchronized (slot) {
+            return slot.container.word(wordIndex & (BITMAP_WORDS - 1));
+        }
+    }
+
+    @Override
+    public void orWord(int wordIndex, long bits) {
+        if (bits == 0) {
+            return;
+        }
+        Slot slot = slot((char) (wordIndex >>> 10));
+        int low = (wordIndex & (BITMAP_WORDS - 1)) << 6;
+        synchronized (slot) {
+            while (bits != 0) {
+                char number = (char) (low + Long.numberOfTrailingZeros(bits));
+                if (!slot.container.contains(number)) {
+                    slot.container = slot.container.add(number);
+                }
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    @Override
+    public int capacity() {
+        return size;
+    }
+
+    /**
+     * Approximate, as containers are sized without taking their locks.
+     */
+    @Override
+    public long memoryBytes() {
+        Directory current = directory;
+        long bytes = current.keys.length * 6L;
+        for (Slot slot : current.slots) {
+            bytes += CONTAINER_OVERHEAD_BYTES + slot.container.memoryBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the count of numbers in the set
+     */
+    public long cardinality() {
+        long cardinality = 0;
+        for (Slot slot : directory.slots) {
+            synchronized (slot) {
+                cardinality += slot.container.cardinality();
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * @return the count of containers of each form, as {@code [arrays, bitmaps, runs]}
+     */
+    int[] containerCounts() {
+        int[] counts = new int[3];
+        for (Slot slot : directory.slots) {
+            synchronized (slot) {
+                Container container = slot.container;
+                counts[container instanceof ArrayContainer ? 0 : container instanceof BitmapContainer ? 1 : 2]++;
+            }
+        }
+        return counts;
+    }
+
+    private Slot slot(char high) {
+        Slot slot = directory.find(high);
+        if (slot != null) {
+            return slot;
+        }
+        synchronized (this) {
+            Directory current = directory;
+            int at = Arrays.binarySearch(current.keys, high);
+            if (at >= 0) {
+                return current.slots[at];
+            }
+            int insertAt = -at - 1;
+            int length = current.keys.length;
+            char[] keys = new char[length + 1];
+            Slot[] slots = new Slot[length + 1];
+            System.arraycopy(current.keys, 0, keys, 0, insertAt);
+            System.arraycopy(current.slots, 0, slots, 0, insertAt);
+            System.arraycopy(current.keys, insertAt, keys, insertAt + 1, length - insertAt);
+            System.arraycopy(current.slots, insertAt, slots, insertAt + 1, length - insertAt);
+            keys[insertAt] = high;
+            slots[insertAt] = slot = new Slot();
+            directory = new Directory(keys, slots);
+            return slot;
+        }
+    }
+
+    private void checkIndex(int bitIndex) {
+        if (bitIndex < 0 || bitIndex >= size) {
+            throw new IndexOutOfBoundsException("bitIndex: " + bitIndex + ", size: " + size);
+        }
+    }
+
+    /*
+     * Sorted high 16 bits and the slot of each; never changed once published.
+     */
+    private static class Directory {
+
+        private final char[] keys;
+        private final Slot[] slots;
+
+        private Directory(char[] keys, Slot[] slots) {
+            this.keys = keys;
+            this.slots = slots;
+        }
+
+        private Slot find(char high) {
+            int at = Arrays.binarySearch(keys, high);
+            return at < 0 ? null : slots[at];
+        }
+    }
+
+    /*
+     * The lock and current form of one container.
+     */
+    private static class Slot {
+
+        // guarded by this
+        private Container container = new ArrayContainer();
+    }
+
+    /*
+     * The numbers of one container, by their low 16 bits.
+     */
+    private abstract static class Container {
+
+        abstract boolean contains(char number);
+
+        /**
+         * Adds a number not yet present.
+         *
+         * @return this container, or the one in another form that replaces it
+         */
+        abstract Container add(char number);
+
+        /**
+         * Removes a number that is present.  Removals only undo failed inserts, so the container keeps its form.
+         *
+         * @return this container
+         */
+        abstract Container remove(char number);
+
+        abstract long word(int wordIndex);
+
+        abstract int cardinality();
+
+        abstract long memoryBytes();
+    }
+
+    static class ArrayContainer extends Container {
+
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        boolean contains(char number) {
+            return Arrays.binarySearch(values, 0, cardinality, number) >= 0;
+        }
+
+        @Override
+        Container add(char number) {
+            if (cardinality == MAX_ARRAY_SIZE) {
+                return BitmapContainer.of(this).add(number);
+            }
+            if (cardinality == values.length) {
+                // growing is the time to check whether runs would be smaller
+                int runs = RunContainer.countRuns(values, cardinality);
+                if (runs * 4 <= cardinality) {
+                    return RunContainer.of(this, runs).add(number);
+                }
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, cardinality * 2));
+            }
+            int insertAt = -Arrays.binarySearch(values, 0, cardinality, number) - 1;
+            System.arraycopy(values, insertAt, values, insertAt + 1, cardinality - insertAt);
+            values[insertAt] = number;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char number) {
+            int at = Arrays.binarySearch(values, 0, cardinality, number);
+            System.arraycopy(values, at + 1, values, at, cardinality - at - 1);
+            cardinality--;
+            return this;
+        }
+
+        @Override
+        long word(int wordIndex) {
+            int at = Arrays.binarySearch(values, 0, cardinality, (char) (wordIndex << 6));
+            long word = 0;
+            for (int i = at < 0 ? -at - 1 : at; i < cardinality && values[i] >>> 6 == wordIndex; i++) {
+                word |= 1L << values[i];
+            }
+            return word;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long memoryBytes() {
+            return values.length * 2L;
+        }
+    }
+
+    static class BitmapContainer extends Container {
+
+        private final long[] words = new long[BITMAP_WORDS];
+        private int cardinality;
+
+        private static BitmapContainer of(ArrayContainer array) {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < array.cardinality; i++) {
+                bitmap.words[array.values[i] >>> 6] |= 1L << array.values[i];
+            }
+            bitmap.cardinality = array.cardinality;
+            return bitmap;
+        }
+
+        private static BitmapContainer of(RunContainer runs) {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < runs.runs; i++) {
+                for (int number = runs.starts[i], end = number + runs.lengths[i]; number <= end; number++) {
+                    bitmap.words[number >>> 6] |= 1L << number;
+                }
+            }
+            bitmap.cardinality = runs.cardinality();
+            return bitmap;
+        }
+
+        @Override
+        boolean contains(char number) {
+            return (words[number >>> 6] & (1L << number)) != 0;
+        }
+
+        @Override
+        Container add(char number) {
+            words[number >>> 6] |= 1L << number;
+            if (++cardinality == 1 << 16) {
+                return RunContainer.full();
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char number) {
+            words[number >>> 6] &= ~(1L << number);
+            cardinality--;
+            return this;
+        }
+
+        @Override
+        long word(int wordIndex) {
+            return words[wordIndex];
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        long memoryBytes() {
+            return BITMAP_WORDS * 8L;
+        }
+    }
+
+    static class RunContainer extends Container {
+
+        // runs of numbers [starts[i], starts[i] + lengths[i]], sorted and neither overlapping nor touching
+        private char[] starts;
+        private char[] lengths;
+        private int runs;
+
+        private RunContainer(int capacity) {
+            starts = new char[capacity];
+            lengths = new char[capacity];
+        }
+
+        private static RunContainer full() {
+            RunContainer full = new RunContainer(1);
+            full.lengths[0] = (char) 0xffff;
+            full.runs = 1;
+            return full;
+        }
+
+        private static RunContainer of(ArrayContainer array, int runs) {
+            RunContainer container = new RunContainer(runs + 1);
+            for (int i = 0; i < array.cardinality; i++) {
+                char number = array.values[i];
+                if (container.runs > 0
+                        && container.starts[container.runs - 1] + container.lengths[container.runs - 1] + 1 == number) {
+                    container.lengths[container.runs - 1]++;
+                } else {
+                    container.starts[container.runs++] = number;
+                }
+            }
+            return container;
+        }
+
+        private static int countRuns(char[] values, int cardinality) {
+            int runs = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (i == 0 || values[i] != values[i - 1] + 1) {
+                    runs++;
+                }
+            }
+            return runs;
+        }
+
+        @Override
+        boolean contains(char number) {
+            int at = floorRun(number);
+            return at >= 0 && number - starts[at] <= lengths[at];
+        }
+
+        @Override
+        Container add(char number) {
+            int at = floorRun(number);
+            boolean extendsLower = at >= 0 && starts[at] + lengths[at] + 1 == number;
+            boolean extendsUpper = at + 1 < runs && starts[at + 1] == number + 1;
+            if (extendsLower && extendsUpper) {
+                lengths[at] += lengths[at + 1] + 1;
+                System.arraycopy(starts, at + 2, starts, at + 1, runs - at - 2);
+                System.arraycopy(lengths, at + 2, lengths, at + 1, runs - at - 2);
+                runs--;
+            } else if (extendsLower) {
+                lengths[at]++;
+            } else if (extendsUpper) {
+                starts[at + 1]--;
+                lengths[at + 1]++;
+            } else {
+                // a run of its own; once runs take more room than an array or a bitmap would, switch to that
+                int cardinality = cardinality() + 1;
+                if ((runs + 1) * 4 > (cardinality <= MAX_ARRAY_SIZE ? cardinality * 2 : BITMAP_WORDS * 8)) {
+                    return toArrayOrBitmap(cardinality).add(number);
+                }
+                if (runs == starts.length) {
+                    starts = Arrays.copyOf(starts, runs * 2);
+                    lengths = Arrays.copyOf(lengths, runs * 2);
+                }
+                int insertAt = at + 1;
+                System.arraycopy(starts, insertAt, starts, insertAt + 1, runs - insertAt);
+                System.arraycopy(lengths, insertAt, lengths, insertAt + 1, runs - insertAt);
+                starts[insertAt] = number;
+                lengths[insertAt] = 0;
+                runs++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(char number) {
+            int at = floorRun(number);
+            int end = starts[at] + lengths[at];
+            if (lengths[at] == 0) {
+                System.arraycopy(starts, at + 1, starts, at, runs - at - 1);
+                System.arraycopy(lengths, at + 1, lengths, at, runs - at - 1);
+                runs--;
+            } else if (number == starts[at]) {
+                starts[at]++;
+                lengths[at]--;
+            } else if (number == end) {
+                lengths[at]--;
+            } else {
+                // split the run around the number
+                if (runs == starts.length) {
+                    starts = Arrays.copyOf(starts, runs * 2);
+                    lengths = Arrays.copyOf(lengths, runs * 2);
+                }
+                System.arraycopy(starts, at + 1, starts, at + 2, runs - at - 1);
+                System.arraycopy(lengths, at + 1, lengths, at + 2, runs - at - 1);
+                lengths[at] = (char) (number - starts[at] - 1);
+                starts[at + 1] = (char) (number + 1);
+                lengths[at + 1] = (char) (end - number - 1);
+                runs++;
+            }
+            return this;
+        }
+
+        @Override
+        long word(int wordIndex) {
+            int first = wordIndex << 6;
+            int last = first + 63;
+            int at = floorRun((char) first);
+            if (at < 0) {
+                at = 0;
+            }
+            long word = 0;
+            for (; at < runs && starts[at] <= last; at++) {
+                int from = Math.max(first, starts[at]);
+                int to = Math.min(last, starts[at] + lengths[at]);
+                if (from <= to) {
+                    int bits = to - from + 1;
+                    word |= (bits == 64 ? -1L : (1L << bits) - 1) << (from - first);
+                }
+            }
+            return word;
+        }
+
+        @Override
+        int cardinality() {
+            int cardinality = 0;
+            for (int i = 0; i < runs; i++) {
+                cardinality += lengths[i] + 1;
+            }
+            return cardinality;
+        }
+
+        @Override
+        long memoryBytes() {
+            return starts.length * 4L;
+        }
+
+        /*
+         * The last run starting at or before the number, or -1.
+         */
+        private int floorRun(char number) {
+            int at = Arrays.binarySearch(starts, 0, runs, number);
+            return at >= 0 ? at : -at - 2;
+        }
+
+        private Container toArrayOrBitmap(int cardinality) {
+            if (cardinality > MAX_ARRAY_SIZE) {
+                return BitmapContainer.of(this);
+            }
+            ArrayContainer array = new ArrayContainer();
+            array.values = new char[Math.max(4, cardinality)];
+            for (int i = 0; i < runs; i++) {
+                for (int number = starts[i], end = number + lengths[i]; number <= end; number++) {
+                    array.values[array.cardinality++] = (char) number;
+                }
+            }
+            return array;
+        }
+    }
+}
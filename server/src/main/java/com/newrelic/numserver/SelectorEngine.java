@@ -0,0 +1,233 @@
+package com.newrelic.numserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Objects;
+
+/**
+ * Services all client connections from a single selector thread.  Channels are read into one shared buffer; the only
+ * per-connection state is the protocol decoder and the unterminated tail of the last read.  Intended to be run on a
+ * dedicated thread, stops when that thread is interrupted.
+ *
+ * Mirrors the blocking path: at most {@code maxConcurrentClients} connections (further connections wait in the accept
+ * backlog), idle connections are closed after the read timeout, invalid input closes the connection and
+ * {@code terminate} runs the terminate action.  Admission control applies to all connections at once: while throttled
+ * the selector thread pauses after each round of reads, while accepts are paused new connections wait in the backlog,
+ * and while shedding the connection read when a shed is due is closed.
+ *
+ * Inserts run on the selector thread, so an insert that blocks stalls every client: when the write queue is full, or
+ * with {@link SingleFileDatabase.Durability#GROUP_COMMIT}, where each read waits for its fsync.  Use the blocking
+ * engine with group commit.
+ */
+class SelectorEngine implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectorEngine.class);
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    // while admission control holds off accepts, so accepting resumes soon after it stops
+    private static final long PAUSED_SELECT_TIMEOUT_MILLIS = 10;
+
+    private final ServerSocketChannel serverChannel;
+    private final int maxConcurrentClients;
+    private final long readTimeoutNanos;
+    private final Protocol protocol;
+    private final ServerMetrics metrics;
+    private final AdmissionController admission;
+    private final Runnable terminateAction;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final InsertBatch insertBatch;
+
+    private int connectedClients;
+    private long lastIdleCheckNanos = System.nanoTime();
+
+    SelectorEngine(ServerSocketChannel serverChannel, int maxConcurrentClients, Duration readTimeout,
+                   Protocol protocol, Database database, ServerMetrics metrics, AdmissionController admission,
+                   Runnable terminateAction) {
+        this.serverChannel = Objects.requireNonNull(serverChannel);
+        this.maxConcurrentClients = maxConcurrentClients;
+        this.readTimeoutNanos = readTimeout.toNanos();
+        this.protocol = Objects.requireNonNull(protocol);
+        this.metrics = Objects.requireNonNull(metrics);
+        this.admission = Objects.requireNonNull(admission);
+        this.terminateAction = Objects.requireNonNull(terminateAction);
+        this.insertBatch = new InsertBatch(database, metrics, READ_BUFFER_SIZE / Protocol.MIN_LINE_LENGTH + 1);
+    }
+
+    @Override
+    public void run() {
+        try (Selector selector = Selector.open()) {
+            serverChannel.configureBlocking(false);
+            SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    selector.select(admission.isAcceptAllowed() ? SELECT_TIMEOUT_MILLIS : PAUSED_SELECT_TIMEOUT_MILLIS);
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext() && !Thread.currentThread().isInterrupted()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept(selector);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    }
+
+                    closeIdleClients(selector);
+
+                    // stop accepting while at capacity or held off, pending connections wait in the listen backlog
+                    if (acceptKey.isValid()) {
+                        acceptKey.interestOps(isAcceptAllowed() ? SelectionKey.OP_ACCEPT : 0);
+                    }
+
+                    admission.throttle();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (ClosedByInterruptException e) {
+            log.debug("Selector engine interrupted", e);
+        } catch (IOException e) {
+            log.error("Selector engine failed", e);
+        }
+    }
+
+    private boolean isAcceptAllowed() {
+        return connectedClients < maxConcurrentClients && admission.isAcceptAllowed();
+    }
+
+    private void accept(Selector selector) throws IOException {
+        if (!isAcceptAllowed()) {
+            return;
+        }
+        SocketChannel channel;
+        try {
+            channel = serverChannel.accept();
+        } catch (IOException e) {
+            log.warn("Handled IOException in socket accept", e);
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel, protocol.newConnectionDecoder(),
+                metrics.openConnection(String.valueOf(channel.socket().getRemoteSocketAddress()))));
+        connectedClients++;
+        log.info("Client connected.");
+    }
+
+    private void read(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        try {
+            readBuffer.clear();
+            readBuffer.put(connection.pending, 0, connection.pendingLength);
+            int read = connection.channel.read(readBuffer);
+            readBuffer.flip();
+            connection.lastReadNanos = System.nanoTime();
+
+            long parseStartNanos = System.nanoTime();
+            Protocol.ClientInputAction action = read < 0 ? connection.decoder.acceptEndOfInput(readBuffer, insertBatch)
+                    : connection.decoder.acceptInput(readBuffer, insertBatch);
+            long insertStartNanos = System.nanoTime();
+            int numbers = insertBatch.flush();
+            connection.metrics.recordRead(Math.max(read, 0), numbers, insertStartNanos - parseStartNanos,
+                    System.nanoTime() - insertStartNanos);
+            if (action == Protocol.ClientInputAction.CLOSE_CONNECTION) {
+                metrics.recordParseError();
+            }
+            if (action == Protocol.ClientInputAction.TERMINATE) {
+                terminateAction.run();
+                close(key);
+            } else if (action == Protocol.ClientInputAction.CLOSE_CONNECTION || read < 0) {
+                close(key);
+            } else if (admission.tryShed()) {
+                log.warn("Shedding client {}, the database is falling behind",
+                        connection.channel.socket().getRemoteSocketAddress());
+                close(key);
+            } else {
+                connection.pendingLength = readBuffer.remaining();
+                readBuffer.get(connection.pending, 0, connection.pendingLength);
+            }
+        } catch (IOException e) {
+            log.warn("Handled socket IOException", e);
+            // the batch is shared by every client, the next one must not insert what is left of this one's
+            insertBatch.discard();
+            close(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            insertBatch.discard();
+            close(key);
+        }
+    }
+
+    private void closeIdleClients(Selector selector) {
+        long now = System.nanoTime();
+        if (now - lastIdleCheckNanos < SELECT_TIMEOUT_MILLIS * 1000000) {
+            return;
+        }
+        lastIdleCheckNanos = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Connection
+                    && now - ((Connection) key.attachment()).lastReadNanos > readTimeoutNanos) {
+                log.debug("Socket read timeout");
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        key.cancel();
+        ((Connection) key.attachment()).metrics.close();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("Failed to close client channel", e);
+        }
+        connectedClients--;
+        log.info("Client disconnected.");
+    }
+
+    /*
+     * Per-client state: the channel, its decoder, its metrics and any partial line or frame carried over between reads.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Protocol.Decoder decoder;
+        private final ServerMetrics.Connection metrics;
+        private final byte[] pending = new byte[Math.max(Protocol.MAX_LINE_LENGTH, BinaryProtocol.MAX_CARRY_LENGTH)];
+        private int pendingLength;
+        private long lastReadNanos = System.nanoTime();
+
+        private Connection(SocketChannel channel, Protocol.Decoder decoder, ServerMetrics.Connection metrics) {
+            this.channel = channel;
+            this.decoder = decoder;
+            this.metrics = metrics;
+        }
+    }
+}
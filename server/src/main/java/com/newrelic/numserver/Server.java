@@ -1,72 +1,142 @@
 package com.newrelic.numserver;
 
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Service;
 import com.google.common.util.concurrent.ServiceManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Numbers Server.  Listens for client connections over a server socket up to a maximum number of concurrent
  * connections.  Client connections are accepted in the main thread.
+ *
+ * In {@link ServerConfig.IoMode#BLOCKING} mode each client is read by its own pooled thread; in
+ * {@link ServerConfig.IoMode#NIO} mode a single {@link SelectorEngine} thread accepts and reads all clients.  Either
+ * way an {@link AdmissionController} throttles reads, holds off accepts and sheds clients while the writers fall
+ * behind.
+ *
+ * With a UDP port a {@link DatagramServer} also takes numbers in datagrams, outside the client connection limit.
+ *
+ * With a replication port the logs are streamed to followers by a {@link ReplicationServer}.  A follower, configured
+ * with the primary's replication address, accepts no clients; its {@link LogFollower}s insert what the primary logs.
  */
 public class Server {
 
     private static final Logger log = LoggerFactory.getLogger(Server.class);
 
-    private final String listenAddress;
-    private final int listenPort;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long ACCEPT_PAUSE_MILLIS = 10;
+
+    private final ServerConfig config;
     private final Semaphore clientPermits;
 
     private final ExecutorService clientAcceptPool;
     private final ExecutorService clientConnectionPool;
 
     private final Protocol protocol = new Protocol();
-    private final MetricsReporter metricsReporter;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final AdmissionController admission;
     private final ServiceManager serviceManager;
     private final Database database;
 
-    private ServerSocket serverSocket;
+    private final Set<Socket> clientSockets = ConcurrentHashMap.newKeySet();
+
+    private volatile ServerSocket serverSocket;
 
     public Server(String listenAddress, int listenPort, int maxConcurrentClients) throws IOException {
-        this.listenAddress = listenAddress;
-        this.listenPort = listenPort;
+        this(ServerConfig.builder()
+                .listenAddress(listenAddress)
+                .listenPort(listenPort)
+                .maxConcurrentClients(maxConcurrentClients)
+                .build());
+    }
+
+    public Server(ServerConfig config) throws IOException {
+        this.config = Objects.requireNonNull(config);
         this.clientAcceptPool = Executors.newSingleThreadExecutor();
-        this.clientPermits = new Semaphore(maxConcurrentClients);
-        this.clientConnectionPool = Executors.newFixedThreadPool(maxConcurrentClients);
+        this.clientPermits = new Semaphore(config.getMaxConcurrentClients());
+        this.clientConnectionPool = Executors.newFixedThreadPool(config.getMaxConcurrentClients());
 
         // todo : DI via Guice
-        SingleFileDatabase sfdb = new SingleFileDatabase(Paths.get("numbers.log"));
-        this.database = sfdb;
+        Set<Service> services = new HashSet<>();
+        List<SingleFileDatabase> databases;
+        if (config.getShards() > 1) {
+            List<Path> dbFiles = ShardedDatabase.shardFiles(config.getDbFile(), config.getShards(),
+                    config.getShardDirs());
+            ShardedDatabase sharded = new ShardedDatabase(dbFiles, config.getDatabaseConfig(), metrics);
+            databases = sharded.getShards();
+            this.database = sharded;
+        } else {
+            SingleFileDatabase sfdb = new SingleFileDatabase(config.getDbFile(), config.getDatabaseConfig(), metrics);
+            databases = Collections.singletonList(sfdb);
+            this.database = sfdb;
+        }
+        services.addAll(databases);
+        for (SingleFileDatabase db : databases) {
+            if (db.getConfig().getCompaction() != SingleFileDatabase.Compaction.NONE) {
+                services.add(new LogCompactor(db.getDbFile(), db.getConfig()));
+            }
+            if (!db.getConfig().getSnapshotInterval().isZero()) {
+                services.add(new IndexSnapshotter(db.getDbFile(), db.getConfig()));
+            }
+        }
 
-        ConsoleMetricsReporter reporter = new ConsoleMetricsReporter(Duration.ofSeconds(10));
-        this.metricsReporter = reporter;
+        this.admission = new AdmissionController(config.getAdmissionConfig(), metrics);
+        if (config.getAdmissionConfig().isEnabled()) {
+            services.add(admission);
+        }
+        services.add(new ConsoleMetricsReporter(Duration.ofSeconds(10), metrics));
+        services.add(new MetricsExporter(metrics, config.getListenAddress(), config.getMetricsPort()));
+        if (config.getQueryPort() >= 0) {
+            services.add(new QueryServer(database, config.getListenAddress(), config.getQueryPort(),
+                    config.getClientReadTimeout()));
+        }
+        if (config.getUdpPort() >= 0 && !config.isFollower()) {
+            services.add(new DatagramServer(protocol, database, metrics, admission, config.getListenAddress(),
+                    config.getUdpPort()));
+        }
+        if (config.getReplicationPort() >= 0) {
+            services.add(new ReplicationServer(databases, config.getListenAddress(), config.getReplicationPort(),
+                    metrics));
+        }
+        if (config.isFollower()) {
+            String primary = config.getReplicaOf();
+            int colon = primary.lastIndexOf(':');
+            String host = primary.substring(0, colon);
+            int port = Integer.parseInt(primary.substring(colon + 1));
+            for (int i = 0; i < databases.size(); i++) {
+                services.add(new LogFollower(host, port, i, databases.size(), databases.get(i), metrics));
+            }
+        }
 
-        Set<Service> services = Sets.newHashSet(sfdb, reporter);
         this.serviceManager = new ServiceManager(services);
     }
 
     public static void main(String[] args) {
         try {
-            Server server = new Server("0.0.0.0", 4000, 5);
+            Server server = new Server(ServerConfig.fromSystemProperties());
             server.start();
             server.blockIndefinitelyForServerTermination();
         } catch (InterruptedException | IOException e) {
@@ -75,10 +145,21 @@ public class Server {
     }
 
     public void start() throws InterruptedException, IOException {
+        if (config.isFollower()) {
+            // numbers only arrive from the primary
+            log.info("Following {}, not accepting clients", config.getReplicaOf());
+            serviceManager.startAsync();
+            return;
+        }
+        if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+            startSelectorEngine();
+            return;
+        }
+
         try {
             serverSocket = new ServerSocket();
             serverSocket.setSoTimeout(2000);  // 2 second timeout for accept
-            serverSocket.bind(new InetSocketAddress(listenAddress, listenPort));
+            serverSocket.bind(new InetSocketAddress(config.getListenAddress(), config.getListenPort()));
         } catch (IOException e) {
             log.error("Failed to bind server socket.", e);
             throw e;
@@ -89,7 +170,10 @@ public class Server {
         clientAcceptPool.execute(() -> {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    if (clientPermits.tryAcquire(1, 500, TimeUnit.MILLISECONDS)) {
+                    if (!admission.isAcceptAllowed()) {
+                        // new connections wait in the listen backlog
+                        Thread.sleep(ACCEPT_PAUSE_MILLIS);
+                    } else if (clientPermits.tryAcquire(1, 500, TimeUnit.MILLISECONDS)) {
                         try {
                             final Client client = new Client(serverSocket.accept());
                             clientConnectionPool.execute(client::acceptInput);
@@ -108,6 +192,26 @@ public class Server {
         });
     }
 
+    private void startSelectorEngine() throws IOException {
+        if (config.getDatabaseConfig().getDurability() == SingleFileDatabase.Durability.GROUP_COMMIT) {
+            log.warn("Group commit blocks the selector thread on every fsync, all clients wait on each other");
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(config.getListenAddress(), config.getListenPort()));
+        } catch (IOException e) {
+            log.error("Failed to bind server socket.", e);
+            serverChannel.close();
+            throw e;
+        }
+        serverSocket = serverChannel.socket();
+
+        serviceManager.startAsync();
+
+        clientAcceptPool.execute(new SelectorEngine(serverChannel, config.getMaxConcurrentClients(),
+                config.getClientReadTimeout(), protocol, database, metrics, admission, this::shutdown));
+    }
+
     private void shutdown() {
         try {
             // todo : convert these all to Services/ServiceManager
@@ -121,8 +225,29 @@ public class Server {
                     log.debug("Failed to close server socket", e);
                 }
             }
+            // interrupts don't end blocked socket reads, closing the sockets does
+            for (Socket socket : clientSockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Failed to close client socket", e);
+                }
+            }
         } finally {
-            serviceManager.stopAsync();
+            // the databases only stop once no client can insert, or numbers that passed the dedup check could miss
+            // the log; this may run on a client thread, so wait on another
+            Thread stopper = new Thread(() -> {
+                try {
+                    long timeoutMillis = config.getClientReadTimeout().toMillis();
+                    clientAcceptPool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+                    clientConnectionPool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    serviceManager.stopAsync();
+                }
+            }, "server-shutdown");
+            stopper.start();
         }
     }
 
@@ -134,6 +259,36 @@ public class Server {
         }
     }
 
+    /**
+     * Waits for a terminate to finish: client threads stopped and the databases' logs written and closed.
+     *
+     * @return false if the server is still running or stopping after the timeout
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        if (!clientAcceptPool.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)
+                || !clientConnectionPool.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            return false;
+        }
+        try {
+            serviceManager.awaitStopped(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the port clients connect to, which differs from the configured one when that is 0; -1 until started
+     */
+    public int getListenPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     /*
      * Handles reading from a single remote client.  Handles closing the wrapped socket internally.
      */
@@ -143,27 +298,52 @@ public class Server {
 
         private Client(Socket socket) throws SocketException {
             this.socket = Objects.requireNonNull(socket);
-            this.socket.setSoTimeout(10000); // 10s timeout for client socket read
+            this.socket.setSoTimeout((int) config.getClientReadTimeout().toMillis());
+            clientSockets.add(socket);
             log.info("Client connected.");
         }
 
         private void acceptInput() {
+            ServerMetrics.Connection connectionMetrics =
+                    metrics.openConnection(String.valueOf(socket.getRemoteSocketAddress()));
             try {
                 InputStream is = socket.getInputStream();
-                BufferedReader br = new BufferedReader(new InputStreamReader(is));
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                InsertBatch batch = new InsertBatch(database, metrics,
+                        READ_BUFFER_SIZE / Protocol.MIN_LINE_LENGTH + 1);
+                Protocol.Decoder decoder = protocol.newConnectionDecoder();
 
-                String line;
                 boolean closeClient = false;
-                while (!Thread.currentThread().isInterrupted() && !closeClient && (line = br.readLine()) != null) {
-                    Protocol.ClientInputResponse pr = protocol.acceptInput(line);
+                while (!Thread.currentThread().isInterrupted() && !closeClient) {
+                    int read = is.read(buffer.array(), buffer.position(), buffer.remaining());
+                    long parseStartNanos = System.nanoTime();
+                    if (read < 0) {
+                        closeClient = true;
+                    } else {
+                        buffer.position(buffer.position() + read);
+                    }
+                    buffer.flip();
+                    Protocol.ClientInputAction action = read < 0
+                            ? decoder.acceptEndOfInput(buffer, batch) : decoder.acceptInput(buffer, batch);
+                    buffer.compact();
+                    long insertStartNanos = System.nanoTime();
+                    int numbers = batch.flush();
+                    connectionMetrics.recordRead(Math.max(read, 0), numbers, insertStartNanos - parseStartNanos,
+                            System.nanoTime() - insertStartNanos);
 
-                    if (Protocol.ClientInputResponse.TERMINATE.equals(pr)) {
+                    if (action == Protocol.ClientInputAction.TERMINATE) {
                         Server.this.shutdown();
                         closeClient = true;
-                    } else if (Protocol.ClientInputResponse.CLOSE_CONNECTION.equals(pr)) {
+                    } else if (action == Protocol.ClientInputAction.CLOSE_CONNECTION) {
+                        metrics.recordParseError();
+                        closeClient = true;
+                    } else if (admission.tryShed()) {
+                        log.warn("Shedding client {}, the database is falling behind",
+                                socket.getRemoteSocketAddress());
                         closeClient = true;
                     } else {
-                        metricsReporter.recordInsert(database.tryInsert(pr.getNumber().get()));
+                        // while throttled, unread input backs up into the socket buffers and slows the client
+                        admission.throttle();
                     }
                 }
             } catch (SocketTimeoutException e) {
@@ -173,7 +353,9 @@ public class Server {
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } finally {
+                connectionMetrics.close();
                 clientPermits.release();
+                clientSockets.remove(socket);
 
                 try {
                     socket.close();
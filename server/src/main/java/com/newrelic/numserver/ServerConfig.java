@@ -0,0 +1,319 @@
+package com.newrelic.numserver;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Server settings.  Defaults match the original hard-coded values; each setting can be overridden with a
+ * {@code numbers.*} system property, e.g. {@code -Dnumbers.io=nio -Dnumbers.maxClients=500}.
+ */
+public class ServerConfig {
+
+    /**
+     * How client sockets are serviced.
+     */
+    public enum IoMode {
+        /** One pooled thread per connected client, blocking reads. */
+        BLOCKING,
+        /**
+         * A single selector thread multiplexing all non-blocking client channels.  Inserts block that thread, so with
+         * {@link SingleFileDatabase.Durability#GROUP_COMMIT} every client waits on each fsync.
+         */
+        NIO
+    }
+
+    private final String listenAddress;
+    private final int listenPort;
+    private final int metricsPort;
+    private final int queryPort;
+    private final int udpPort;
+    private final int replicationPort;
+    private final String replicaOf;
+    private final int maxConcurrentClients;
+    private final IoMode ioMode;
+    private final Duration clientReadTimeout;
+    private final Path dbFile;
+    private final int shards;
+    private final List<Path> shardDirs;
+    private final DatabaseConfig databaseConfig;
+    private final AdmissionConfig admissionConfig;
+
+    private ServerConfig(Builder builder) {
+        this.listenAddress = Objects.requireNonNull(builder.listenAddress);
+        this.listenPort = builder.listenPort;
+        this.metricsPort = builder.metricsPort;
+        this.queryPort = builder.queryPort;
+        this.udpPort = builder.udpPort;
+        this.replicationPort = builder.replicationPort;
+        this.replicaOf = Objects.requireNonNull(builder.replicaOf);
+        if (!replicaOf.isEmpty() && replicaOf.lastIndexOf(':') <= 0) {
+            throw new IllegalArgumentException("replicaOf must be host:port, was " + replicaOf);
+        }
+        this.maxConcurrentClients = builder.maxConcurrentClients;
+        this.ioMode = Objects.requireNonNull(builder.ioMode);
+        this.clientReadTimeout = Objects.requireNonNull(builder.clientReadTimeout);
+        this.dbFile = Objects.requireNonNull(builder.dbFile);
+        this.shards = builder.shards;
+        this.shardDirs = Collections.unmodifiableList(new ArrayList<>(builder.shardDirs));
+        this.databaseConfig = Objects.requireNonNull(builder.databaseConfig);
+        this.admissionConfig = Objects.requireNonNull(builder.admissionConfig);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static ServerConfig fromSystemProperties() {
+        Builder defaults = builder();
+        DatabaseConfig databaseDefaults = DatabaseConfig.defaults();
+        AdmissionConfig admissionDefaults = AdmissionConfig.defaults();
+        List<Path> shardDirs = new ArrayList<>();
+        for (String dir : System.getProperty("numbers.shardDirs", "").split(",")) {
+            if (!dir.trim().isEmpty()) {
+                shardDirs.add(Paths.get(dir.trim()));
+            }
+        }
+        return builder()
+                .listenAddress(System.getProperty("numbers.listenAddress", defaults.listenAddress))
+                .listenPort(Integer.getInteger("numbers.port", defaults.listenPort))
+                .metricsPort(Integer.getInteger("numbers.metricsPort", defaults.metricsPort))
+                .queryPort(Integer.getInteger("numbers.queryPort", defaults.queryPort))
+                .udpPort(Integer.getInteger("numbers.udpPort", defaults.udpPort))
+                .replicationPort(Integer.getInteger("numbers.replicationPort", defaults.replicationPort))
+                .replicaOf(System.getProperty("numbers.replicaOf", defaults.replicaOf))
+                .maxConcurrentClients(Integer.getInteger("numbers.maxClients", defaults.maxConcurrentClients))
+                .ioMode(enumProperty("numbers.io", defaults.ioMode))
+                .clientReadTimeout(Duration.ofMillis(
+                        Long.getLong("numbers.clientReadTimeoutMillis", defaults.clientReadTimeout.toMillis())))
+                .dbFile(Paths.get(System.getProperty("numbers.dbFile", defaults.dbFile.toString())))
+                .shards(Integer.getInteger("numbers.shards", defaults.shards))
+                .shardDirs(shardDirs)
+                .databaseConfig(DatabaseConfig.builder()
+                        .startupMode(enumProperty("numbers.startup", databaseDefaults.getStartupMode()))
+                        .indexType(enumProperty("numbers.index", databaseDefaults.getIndexType()))
+                        .logType(enumProperty("numbers.log", databaseDefaults.getLogType()))
+                        .segmentSize(Integer.getInteger("numbers.segmentBytes", databaseDefaults.getSegmentSize()))
+                        .compaction(enumProperty("numbers.compaction", databaseDefaults.getCompaction()))
+                        .compactionInterval(Duration.ofMillis(Long.getLong("numbers.compactionIntervalMillis",
+                                databaseDefaults.getCompactionInterval().toMillis())))
+                        .durability(enumProperty("numbers.durability", databaseDefaults.getDurability()))
+                        .fsyncInterval(Duration.ofMillis(Long.getLong("numbers.fsyncIntervalMillis",
+                                databaseDefaults.getFsyncInterval().toMillis())))
+                        .fsyncBytes(Long.getLong("numbers.fsyncBytes", databaseDefaults.getFsyncBytes()))
+                        .snapshotInterval(Duration.ofMillis(Long.getLong("numbers.snapshotIntervalMillis",
+                                databaseDefaults.getSnapshotInterval().toMillis())))
+                        .build())
+                .admissionConfig(AdmissionConfig.builder()
+                        .enabled(!"off".equalsIgnoreCase(System.getProperty("numbers.admission", "on")))
+                        .throttleAt(doubleProperty("numbers.admission.throttleAt", admissionDefaults.getThrottleAt()))
+                        .pauseAcceptAt(doubleProperty("numbers.admission.pauseAcceptAt",
+                                admissionDefaults.getPauseAcceptAt()))
+                        .shedAt(doubleProperty("numbers.admission.shedAt", admissionDefaults.getShedAt()))
+                        .maxThrottleDelay(Duration.ofMillis(Long.getLong("numbers.admission.maxThrottleDelayMillis",
+                                admissionDefaults.getMaxThrottleDelay().toMillis())))
+                        .maxWriterLag(Duration.ofMillis(Long.getLong("numbers.admission.maxWriterLagMillis",
+                                admissionDefaults.getMaxWriterLag().toMillis())))
+                        .build())
+                .build();
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static <E extends Enum<E>> E enumProperty(String name, E defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase());
+    }
+
+    public String getListenAddress() {
+        return listenAddress;
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * @return port of the Prometheus text metrics endpoint on the listen address, -1 for none
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return port of the {@link QueryServer} on the listen address, -1 for none
+     */
+    public int getQueryPort() {
+        return queryPort;
+    }
+
+    /**
+     * @return UDP port of the {@link DatagramServer} on the listen address, -1 for none
+     */
+    public int getUdpPort() {
+        return udpPort;
+    }
+
+    /**
+     * @return port of the {@link ReplicationServer} on the listen address, -1 for none
+     */
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * @return {@code host:port} of the primary's replication server to follow, empty unless this is a follower
+     */
+    public String getReplicaOf() {
+        return replicaOf;
+    }
+
+    public boolean isFollower() {
+        return !replicaOf.isEmpty();
+    }
+
+    public int getMaxConcurrentClients() {
+        return maxConcurrentClients;
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public Duration getClientReadTimeout() {
+        return clientReadTimeout;
+    }
+
+    /**
+     * @return the log file, or with more than one shard the name the shard files are derived from
+     */
+    public Path getDbFile() {
+        return dbFile;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return directories to spread shard files over, empty to keep them next to {@link #getDbFile()}
+     */
+    public List<Path> getShardDirs() {
+        return shardDirs;
+    }
+
+    public DatabaseConfig getDatabaseConfig() {
+        return databaseConfig;
+    }
+
+    public AdmissionConfig getAdmissionConfig() {
+        return admissionConfig;
+    }
+
+    public static class Builder {
+        private String listenAddress = "0.0.0.0";
+        private int listenPort = 4000;
+        private int metricsPort = -1;
+        private int queryPort = -1;
+        private int udpPort = -1;
+        private int replicationPort = -1;
+        private String replicaOf = "";
+        private int maxConcurrentClients = 5;
+        private IoMode ioMode = IoMode.BLOCKING;
+        private Duration clientReadTimeout = Duration.ofSeconds(10);
+        private Path dbFile = Paths.get("numbers.log");
+        private int shards = 1;
+        private List<Path> shardDirs = Collections.emptyList();
+        private DatabaseConfig databaseConfig = DatabaseConfig.defaults();
+        private AdmissionConfig admissionConfig = AdmissionConfig.defaults();
+
+        private Builder() {
+        }
+
+        public Builder listenAddress(String listenAddress) {
+            this.listenAddress = listenAddress;
+            return this;
+        }
+
+        public Builder listenPort(int listenPort) {
+            this.listenPort = listenPort;
+            return this;
+        }
+
+        public Builder metricsPort(int metricsPort) {
+            this.metricsPort = metricsPort;
+            return this;
+        }
+
+        public Builder queryPort(int queryPort) {
+            this.queryPort = queryPort;
+            return this;
+        }
+
+        public Builder udpPort(int udpPort) {
+            this.udpPort = udpPort;
+            return this;
+        }
+
+        public Builder replicationPort(int replicationPort) {
+            this.replicationPort = replicationPort;
+            return this;
+        }
+
+        public Builder replicaOf(String replicaOf) {
+            this.replicaOf = replicaOf;
+            return this;
+        }
+
+        public Builder maxConcurrentClients(int maxConcurrentClients) {
+            this.maxConcurrentClients = maxConcurrentClients;
+            return this;
+        }
+
+        public Builder ioMode(IoMode ioMode) {
+            this.ioMode = ioMode;
+            return this;
+        }
+
+        public Builder clientReadTimeout(Duration clientReadTimeout) {
+            this.clientReadTimeout = clientReadTimeout;
+            return this;
+        }
+
+        public Builder dbFile(Path dbFile) {
+            this.dbFile = dbFile;
+            return this;
+        }
+
+        public Builder shards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        public Builder shardDirs(List<Path> shardDirs) {
+            this.shardDirs = shardDirs;
+            return this;
+        }
+
+        public Builder databaseConfig(DatabaseConfig databaseConfig) {
+            this.databaseConfig = databaseConfig;
+            return this;
+        }
+
+        public Builder admissionConfig(AdmissionConfig admissionConfig) {
+            this.admissionConfig = admissionConfig;
+            return this;
+        }
+
+        public ServerConfig build() {
+            return new ServerConfig(this);
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.newrelic.numserver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The server's metrics, shared by every reading thread, writer thread and reporter.  Counters are {@link LongAdder}s,
+ * so reading threads recording at once do not contend on one cache line, and totals do not overflow.  Recording is
+ * cheap enough to do once per socket read or writer batch; nothing is recorded per number.
+ *
+ * Reading threads record where their time goes (parsing, or dedup and queueing) per read, so a slowdown can be put
+ * down to the network, the parser, dedup or the disk.  Writers record batch sizes and flush and fsync latencies; write
+ * queues report their depth and the time producers waited on a full queue.  The {@link AdmissionController} records
+ * its level and the time reads were throttled and accepts paused.  The {@link ReplicationServer} records what it sent
+ * to followers, and on a follower each {@link LogFollower} reports how far behind the primary it is.
+ */
+public class ServerMetrics implements MetricsReporter, ServerMetricsMXBean {
+
+    private final LongAdder uniqueNumbers = new LongAdder();
+    private final LongAdder duplicateNumbers = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder insertNanos = new LongAdder();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder throttleNanos = new LongAdder();
+    private final LongAdder acceptPausedNanos = new LongAdder();
+    private final LongAdder shedConnections = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final LongAdder droppedDatagrams = new LongAdder();
+    private final LongAdder malformedDatagrams = new LongAdder();
+    private final LongAdder replicationBytesSent = new LongAdder();
+    private final AtomicInteger connectedFollowers = new AtomicInteger();
+    // set by the admission controller alone
+    private volatile int admissionLevel;
+    private volatile long writerLagNanos;
+
+    private final Log2Histogram writerBatchRecords = new Log2Histogram();
+    private final Log2Histogram writerBatchBytes = new Log2Histogram();
+    private final Log2Histogram writerFlushMicros = new Log2Histogram();
+    private final Log2Histogram fsyncMicros = new Log2Histogram();
+
+    private final List<IntRingBuffer> writeQueues = new CopyOnWriteArrayList<>();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final List<LogFollower> logFollowers = new CopyOnWriteArrayList<>();
+    private final List<DedupIndex> dedupIndexes = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void recordInsert(boolean isNewNumber) {
+        (isNewNumber ? uniqueNumbers : duplicateNumbers).increment();
+    }
+
+    @Override
+    public void recordInserts(int newNumbers, int duplicates) {
+        if (newNumbers > 0) {
+            uniqueNumbers.add(newNumbers);
+        }
+        if (duplicates > 0) {
+            duplicateNumbers.add(duplicates);
+        }
+    }
+
+    @Override
+    public void recordDatagram() {
+        datagrams.increment();
+    }
+
+    @Override
+    public void recordDroppedDatagram() {
+        droppedDatagrams.increment();
+    }
+
+    @Override
+    public void recordMalformedDatagram() {
+        malformedDatagrams.increment();
+    }
+
+    void recordParseError() {
+        parseErrors.increment();
+    }
+
+    /**
+     * Called by a log writer after writing a batch, from the thread that wrote it.
+     */
+    void recordWrite(int records, long bytes, long nanos) {
+        writerBatchRecords.record(records);
+        writerBatchBytes.record(bytes);
+        writerFlushMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Called by a database writer after forcing its log to disk.
+     */
+    void recordForce(long nanos) {
+        fsyncMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Called by a reading thread after pausing for admission control.
+     */
+    void recordThrottle(long nanos) {
+        throttleNanos.add(nanos);
+    }
+
+    /**
+     * Called by the admission controller for each interval spent with new connections held off.
+     */
+    void recordAcceptPaused(long nanos) {
+        acceptPausedNanos.add(nanos);
+    }
+
+    void recordShed() {
+        shedConnections.increment();
+    }
+
+    /**
+     * Called by the admission controller after each evaluation.
+     *
+     * @param level the ordinal of the {@link AdmissionController.Level}
+     */
+    void recordAdmission(int level, long writerLagNanos) {
+        this.admissionLevel = level;
+        this.writerLagNanos = writerLagNanos;
+    }
+
+    /**
+     * Called by the replication server after sending log bytes to a follower.
+     */
+    void recordReplicationSent(long bytes) {
+        replicationBytesSent.add(bytes);
+    }
+
+    void recordFollowerConnected(boolean connected) {
+        if (connected) {
+            connectedFollowers.incrementAndGet();
+        } else {
+            connectedFollowers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Includes the follower in {@link #getReplicationLagBytes()} and {@link #getReplicationLagMillis()}.
+     */
+    void registerLogFollower(LogFollower follower) {
+        logFollowers.add(follower);
+    }
+
+    /**
+     * Includes the queue in {@link #getWriteQueueDepth()} and {@link #getBackPressureMillis()}.
+     */
+    void registerWriteQueue(IntRingBuffer queue) {
+        writeQueues.add(queue);
+    }
+
+    /**
+     * Includes the index in {@link #getIndexMemoryBytes()}.
+     */
+    void registerDedupIndex(DedupIndex index) {
+        dedupIndexes.add(index);
+    }
+
+    /**
+     * Starts tracking a client connection.  Close the returned connection when the client disconnects.
+     *
+     * @param name identifies the client, e.g. its remote address
+     */
+    Connection openConnection(String name) {
+        Connection connection = new Connection(name);
+        connections.add(connection);
+        connectionsOpened.increment();
+        return connection;
+    }
+
+    Collection<Connection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+
+    Log2Histogram.Snapshot getWriterBatchRecords() {
+        return writerBatchRecords.snapshot();
+    }
+
+    Log2Histogram.Snapshot getWriterBatchBytes() {
+        return writerBatchBytes.snapshot();
+    }
+
+    Log2Histogram.Snapshot getWriterFlushMicros() {
+        return writerFlushMicros.snapshot();
+    }
+
+    Log2Histogram.Snapshot getFsyncMicros() {
+        return fsyncMicros.snapshot();
+    }
+
+    long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    long getInsertNanos() {
+        return insertNanos.sum();
+    }
+
+    long getThrottleNanos() {
+        return throttleNanos.sum();
+    }
+
+    long getAcceptPausedNanos() {
+        return acceptPausedNanos.sum();
+    }
+
+    long getWriterLagNanos() {
+        return writerLagNanos;
+    }
+
+    long getBackPressureNanos() {
+        long nanos = 0;
+        for (IntRingBuffer queue : writeQueues) {
+            nanos += queue.getProducerWaitNanos();
+        }
+        return nanos;
+    }
+
+    @Override
+    public long getUniqueNumbers() {
+        return uniqueNumbers.sum();
+    }
+
+    @Override
+    public long getDuplicateNumbers() {
+        return duplicateNumbers.sum();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getParseMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getParseNanos());
+    }
+
+    @Override
+    public long getInsertMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getInsertNanos());
+    }
+
+    @Override
+    public long getBackPressureMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getBackPressureNanos());
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getIndexMemoryBytes() {
+        long bytes = 0;
+        for (DedupIndex index : dedupIndexes) {
+            bytes += index.memoryBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getWriteQueueDepth() {
+        long depth = 0;
+        for (IntRingBuffer queue : writeQueues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public double getWriteQueueFill() {
+        double fill = 0;
+        for (IntRingBuffer queue : writeQueues) {
+            fill = Math.max(fill, queue.size() / (double) queue.capacity());
+        }
+        return fill;
+    }
+
+    @Override
+    public long getWriterLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(writerLagNanos);
+    }
+
+    @Override
+    public int getAdmissionLevel() {
+        return admissionLevel;
+    }
+
+    @Override
+    public long getThrottleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getThrottleNanos());
+    }
+
+    @Override
+    public long getAcceptPausedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getAcceptPausedNanos());
+    }
+
+    @Override
+    public long getShedConnections() {
+        return shedConnections.sum();
+    }
+
+    @Override
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    @Override
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+
+    @Override
+    public long getMalformedDatagrams() {
+        return malformedDatagrams.sum();
+    }
+
+    @Override
+    public long getReplicationBytesSent() {
+        return replicationBytesSent.sum();
+    }
+
+    @Override
+    public int getConnectedFollowers() {
+        return connectedFollowers.get();
+    }
+
+    @Override
+    public long getReplicationLagBytes() {
+        long bytes = 0;
+        for (LogFollower follower : logFollowers) {
+            bytes += follower.getLagBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getReplicationLagMillis() {
+        long nanos = 0;
+        for (LogFollower follower : logFollowers) {
+            nanos = Math.max(nanos, follower.getLagNanos());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    @Override
+    public long getWriterBatches() {
+        return writerBatchRecords.snapshot().getCount();
+    }
+
+    @Override
+    public long getWriterRecords() {
+        return writerBatchRecords.snapshot().getSum();
+    }
+
+    @Override
+    public long getWriterBytes() {
+        return writerBatchBytes.snapshot().getSum();
+    }
+
+    @Override
+    public long getWriterBatchRecordsP50() {
+        return writerBatchRecords.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getWriterBatchRecordsP99() {
+        return writerBatchRecords.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getWriterFlushMicrosP99() {
+        return writerFlushMicros.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return fsyncMicros.snapshot().getCount();
+    }
+
+    @Override
+    public long getFsyncMicrosP50() {
+        return fsyncMicros.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getFsyncMicrosP99() {
+        return fsyncMicros.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public Map<String, Double> getConnectionRates() {
+        long now = System.nanoTime();
+        Map<String, Double> rates = new LinkedHashMap<>();
+        for (Connection connection : connections) {
+            double seconds = Math.max(1, now - connection.openedNanos) / 1e9;
+            rates.put(connection.name, connection.getNumbers() / seconds);
+        }
+        return rates;
+    }
+
+    /**
+     * Per-connection counters.  Recorded only by the thread reading the connection, read by any.
+     */
+    class Connection implements AutoCloseable {
+
+        private final String name;
+        private final long openedNanos = System.nanoTime();
+        // single writer, so lazySet of get() + n rather than a CAS loop
+        private final AtomicLong numbers = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        private Connection(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records one socket read and what became of it.
+         *
+         * @param readBytes bytes read from the socket
+         * @param readNumbers numbers parsed from them
+         * @param parseNanos time spent parsing
+         * @param insertNanos time spent in dedup and queueing the numbers
+         */
+        void recordRead(int readBytes, int readNumbers, long parseNanos, long insertNanos) {
+            if (readBytes > 0) {
+                bytes.lazySet(bytes.get() + readBytes);
+                bytesRead.add(readBytes);
+            }
+            if (readNumbers > 0) {
+                numbers.lazySet(numbers.get() + readNumbers);
+            }
+            ServerMetrics.this.parseNanos.add(parseNanos);
+            ServerMetrics.this.insertNanos.add(insertNanos);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getNumbers() {
+            return numbers.get();
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public void close() {
+            connections.remove(this);
+        }
+    }
+}
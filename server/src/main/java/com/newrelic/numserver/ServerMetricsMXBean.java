@@ -0,0 +1,98 @@
+package com.newrelic.numserver;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerMetrics}.  Counters are totals since start; percentiles are over all values since start,
+ * rounded up to a power of two.
+ */
+public interface ServerMetricsMXBean {
+
+    long getUniqueNumbers();
+
+    long getDuplicateNumbers();
+
+    /** Connections closed for a line that is not a number or too long. */
+    long getParseErrors();
+
+    long getBytesRead();
+
+    /** Time reading threads spent parsing input. */
+    long getParseMillis();
+
+    /** Time reading threads spent in dedup and queueing, including back-pressure. */
+    long getInsertMillis();
+
+    /** Time inserts waited for room in a full write queue. */
+    long getBackPressureMillis();
+
+    long getConnectionsOpened();
+
+    int getActiveConnections();
+
+    /** Memory holding the dedup index bits, over all shards; mapped memory for a mapped index. */
+    long getIndexMemoryBytes();
+
+    /** Numbers queued but not yet written, over all write queues. */
+    long getWriteQueueDepth();
+
+    /** Fill fraction of the fullest write queue, 0 to 1. */
+    double getWriteQueueFill();
+
+    /** Estimated time until the numbers queued now are written, as of the last admission control evaluation. */
+    long getWriterLagMillis();
+
+    /** Admission control level: 0 normal, 1 throttling reads, 2 also holding off accepts, 3 also shedding clients. */
+    int getAdmissionLevel();
+
+    /** Time reading threads paused for admission control. */
+    long getThrottleMillis();
+
+    /** Time new connections were held off by admission control. */
+    long getAcceptPausedMillis();
+
+    /** Connections closed by admission control. */
+    long getShedConnections();
+
+    /** UDP datagrams whose numbers were inserted. */
+    long getDatagrams();
+
+    /** UDP datagrams dropped unread while admission control held off new connections. */
+    long getDroppedDatagrams();
+
+    /** UDP datagrams dropped for an invalid line or frame. */
+    long getMalformedDatagrams();
+
+    /** Log bytes sent to followers. */
+    long getReplicationBytesSent();
+
+    /** Followers currently streaming this server's logs. */
+    int getConnectedFollowers();
+
+    /** On a follower, log bytes the primary has written that are not applied here yet, over all shards. */
+    long getReplicationLagBytes();
+
+    /** On a follower, how long ago the primary had written the oldest log bytes not applied here yet. */
+    long getReplicationLagMillis();
+
+    long getWriterBatches();
+
+    long getWriterRecords();
+
+    long getWriterBytes();
+
+    long getWriterBatchRecordsP50();
+
+    long getWriterBatchRecordsP99();
+
+    long getWriterFlushMicrosP99();
+
+    long getFsyncCount();
+
+    long getFsyncMicrosP50();
+
+    long getFsyncMicrosP99();
+
+    /** Numbers per second of each open connection since it connected, by remote address. */
+    Map<String, Double> getConnectionRates();
+}
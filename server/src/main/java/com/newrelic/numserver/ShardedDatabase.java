@@ -0,0 +1,177 @@
+package com.newrelic.numserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Database that splits the number space into contiguous ranges, one {@link SingleFileDatabase} shard per range.
+ * Each shard owns the dedup index for its range, its own write queue, writer thread and log file, so writes are spread
+ * over as many threads, and if the shard files are on different disks, as many disks.
+ *
+ * The shards are services; start and stop them through a ServiceManager, see {@link #getShards()}.
+ */
+public class ShardedDatabase implements Database {
+
+    private final List<SingleFileDatabase> shards;
+    private final int lowNumber;
+    private final int numbersPerShard;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * @param shardFiles one log file per shard
+     * @param config settings shared by every shard; its number range is split between the shards
+     */
+    public ShardedDatabase(List<Path> shardFiles, DatabaseConfig config) throws IOException {
+        this(shardFiles, config, new ServerMetrics());
+    }
+
+    /**
+     * @param metrics shared by the writers of all shards
+     */
+    public ShardedDatabase(List<Path> shardFiles, DatabaseConfig config, ServerMetrics metrics) throws IOException {
+        int shardCount = shardFiles.size();
+        int range = config.getHighNumber() - config.getLowNumber();
+        if (shardCount == 0 || shardCount > range) {
+            throw new IllegalArgumentException("Invalid shard count " + shardCount);
+        }
+        this.lowNumber = config.getLowNumber();
+        this.numbersPerShard = (range + shardCount - 1) / shardCount;
+
+        List<SingleFileDatabase> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int low = lowNumber + i * numbersPerShard;
+            int high = Math.min(config.getHighNumber(), low + numbersPerShard);
+            shards.add(new SingleFileDatabase(shardFiles.get(i), config.toBuilder().numberRange(low, high).build(),
+                    metrics));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    /**
+     * Names the log file of each shard after the unsharded file, e.g. numbers.log.0, numbers.log.1, ...  Shards are
+     * spread round-robin over the given directories, or kept next to the unsharded file if there are none.
+     */
+    public static List<Path> shardFiles(Path dbFile, int shardCount, List<Path> shardDirs) {
+        List<Path> files = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            String name = dbFile.getFileName() + "." + i;
+            files.add(shardDirs.isEmpty()
+                    ? dbFile.resolveSibling(name)
+                    : shardDirs.get(i % shardDirs.size()).resolve(name));
+        }
+        return files;
+    }
+
+    public List<SingleFileDatabase> getShards() {
+        return shards;
+    }
+
+    @Override
+    public boolean tryInsert(int number) throws InterruptedException, IOException {
+        return shards.get(shardIndex(number)).tryInsert(number);
+    }
+
+    /**
+     * Groups the batch by shard and hands each shard its part with one {@link SingleFileDatabase#tryInsertAll} call.
+     */
+    @Override
+    public int tryInsertAll(int[] numbers, int offset, int length, BitSet inserted)
+            throws InterruptedException, IOException {
+        inserted.clear();
+        Scratch s = scratch.get();
+        s.ensureCapacity(length, shards.size());
+
+        // counting sort the batch by shard, remembering each number's position in the batch
+        Arrays.fill(s.shardStarts, 0);
+        for (int i = 0; i < length; i++) {
+            s.shardStarts[shardIndex(numbers[offset + i]) + 1]++;
+        }
+        for (int shard = 1; shard <= shards.size(); shard++) {
+            s.shardStarts[shard] += s.shardStarts[shard - 1];
+        }
+        System.arraycopy(s.shardStarts, 0, s.shardEnds, 0, shards.size());
+        for (int i = 0; i < length; i++) {
+            int shard = shardIndex(numbers[offset + i]);
+            int slot = s.shardEnds[shard]++;
+            s.numbers[slot] = numbers[offset + i];
+            s.positions[slot] = i;
+        }
+
+        int count = 0;
+        for (int shard = 0; shard < shards.size(); shard++) {
+            int start = s.shardStarts[shard];
+            int shardLength = s.shardEnds[shard] - start;
+            if (shardLength == 0) {
+                continue;
+            }
+            count += shards.get(shard).tryInsertAll(s.numbers, start, shardLength, s.shardInserted);
+            for (int i = s.shardInserted.nextSetBit(0); i >= 0; i = s.shardInserted.nextSetBit(i + 1)) {
+                inserted.set(s.positions[start + i]);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public boolean contains(int number) {
+        int shard = (number - lowNumber) / numbersPerShard;
+        return number >= lowNumber && shard < shards.size() && shards.get(shard).contains(number);
+    }
+
+    @Override
+    public long count() {
+        long count = 0;
+        for (SingleFileDatabase shard : shards) {
+            count += shard.count();
+        }
+        return count;
+    }
+
+    /**
+     * Sums the range count of every shard; each shard clips the range to its own.
+     */
+    @Override
+    public long countRange(int low, int high) {
+        long count = 0;
+        for (SingleFileDatabase shard : shards) {
+            count += shard.countRange(low, high);
+        }
+        return count;
+    }
+
+    private int shardIndex(int number) {
+        int shard = (number - lowNumber) / numbersPerShard;
+        if (number < lowNumber || shard >= shards.size()) {
+            throw new IllegalArgumentException("Number " + number + " outside of database range");
+        }
+        return shard;
+    }
+
+    /*
+     * Per-thread buffers for regrouping a batch by shard.
+     */
+    private static class Scratch {
+        private int[] numbers = new int[0];
+        private int[] positions = new int[0];
+        private int[] shardStarts = new int[0];
+        private int[] shardEnds = new int[0];
+        private final BitSet shardInserted = new BitSet();
+
+        private void ensureCapacity(int length, int shardCount) {
+            if (numbers.length < length) {
+                numbers = new int[length];
+                positions = new int[length];
+            }
+            if (shardStarts.length < shardCount + 1) {
+                shardStarts = new int[shardCount + 1];
+                shardEnds = new int[shardCount + 1];
+            }
+        }
+    }
+}
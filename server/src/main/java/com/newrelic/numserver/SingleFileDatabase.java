@@ -7,35 +7,106 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
-import java.nio.file.OpenOption;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Path;
-import java.nio.file.attribute.PosixFilePermissions;
-import java.util.AbstractCollection;
 import java.util.BitSet;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import static java.nio.file.StandardOpenOption.CREATE;
-import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
-
 /**
  * A Database impl that writes all numbers to a single log file.
+ *
+ * By default the log is truncated on start up.  In {@link StartupMode#RECOVER} mode the existing log is kept: its
+ * records are validated and loaded into the dedup cache, a torn last record is cut off and new numbers are appended.
+ * While running the database holds a lock on numbers.log.lock next to the log; another database fails to start on a
+ * log in use.
+ *
+ * The dedup cache is either on the heap, allocated page by page as numbers arrive ({@link IndexType#PAGED}), compressed
+ * ({@link IndexType#ROARING}) or all at once, or, with {@link IndexType#MAPPED}, a {@link MappedBitSet} file next to
+ * the log.  A mapped index that was closed cleanly only needs the log written after its high-water mark replayed on
+ * recovery; otherwise it is rebuilt from the whole log.
+ *
+ * The log is either one file written through a channel or, with {@link LogType#MAPPED_SEGMENTS}, a sequence of
+ * memory-mapped segment files, see {@link MappedSegmentLogWriter}.
+ *
+ * With a snapshot interval set, an {@link IndexSnapshotter} checkpoints the dedup index in the background; recovery
+ * then loads the newest snapshot and only replays the log written after it.
+ *
+ * How soon written numbers are forced to disk is set by the {@link Durability} level.  With
+ * {@link Durability#GROUP_COMMIT} an insert only returns once the number is on disk; the writer forces after every
+ * batch, so all inserts queued while one fsync runs share the next one.
  */
 public class SingleFileDatabase extends AbstractExecutionThreadService implements Database {
 
+    /**
+     * What to do with an existing log file on start up.
+     */
+    public enum StartupMode {
+        /** Discard any existing log. */
+        TRUNCATE,
+        /** Keep the existing log, rebuild the dedup cache from it and append. */
+        RECOVER
+    }
+
+    /**
+     * Where the dedup cache is kept.
+     */
+    public enum IndexType {
+        /** A bit set on the heap for the whole number range, rebuilt from the log on every recovery. */
+        HEAP,
+        /** A bit set in a memory-mapped file next to the log, kept across restarts. */
+        MAPPED,
+        /**
+         * A bit set on the heap allocated in 8KB pages as numbers in their range arrive, rebuilt from the log on every
+         * recovery.  Memory grows with the spread of the numbers seen rather than being allocated for the whole range
+         * up front.
+         */
+        PAGED,
+        /**
+         * A compressed {@link RoaringBitSet} on the heap, rebuilt from the log on every recovery.  Smallest when the
+         * numbers are sparse or clustered in runs, but each dedup check takes a lock and a binary search.
+         */
+        ROARING
+    }
+
+    /**
+     * How the log is stored.
+     */
+    public enum LogType {
+        /** One file that grows without limit, written from a heap buffer. */
+        CHANNEL,
+        /** Memory-mapped segment files of a fixed size, rolled when full and listed in a manifest. */
+        MAPPED_SEGMENTS
+    }
+
+    /**
+     * What happens to sealed log segments, see {@link LogCompactor}.  Only for {@link LogType#MAPPED_SEGMENTS}.
+     */
+    public enum Compaction {
+        /** Segments are kept as written. */
+        NONE,
+        /** A sorted, compressed copy is written next to each sealed segment. */
+        KEEP_LOG,
+        /** Each sealed segment is replaced by its sorted, compressed copy. */
+        REPLACE_LOG
+    }
+
+    /**
+     * When written numbers are forced to disk.
+     */
+    public enum Durability {
+        /** Only on shut down, inserts return as soon as numbers are queued. */
+        NONE,
+        /** Every fsync interval or fsync byte count, whichever comes first.  Inserts return once queued. */
+        PERIODIC,
+        /** After every write, inserts return only once their numbers are on disk. */
+        GROUP_COMMIT
+    }
+
     private static final Logger log = LoggerFactory.getLogger(SingleFileDatabase.class);
 
     @VisibleForTesting static final byte[] EOL = System.getProperty("line.separator").getBytes(Charsets.UTF_8);
@@ -43,116 +114,374 @@ public class SingleFileDatabase extends AbstractExecutionThreadService implement
     private static final int QUEUE_SIZE = 1024 * 1024;
 
     private final Path dbFile;
+    private final DatabaseConfig config;
+    private final StartupMode startupMode;
+    private final LogType logType;
+    private final int segmentSize;
+    private final Durability durability;
+    private final long fsyncIntervalNanos;
+    private final long fsyncBytes;
+    private final int lowNumber;
+    private final int highNumber;
+
+    // cache of existing numbers, offset by lowNumber
+    private final DedupIndex index;
+    private final MappedBitSet mappedIndex;
+    private final RankIndex rankIndex;
 
-    // cache of existing numbers, large enough to hold numbers with 9 digits
-    private final BitSet bs = new BitSet(1000000000);
-    private final Lock bsLock = new ReentrantLock();
+    private final IntRingBuffer writeQueue = new IntRingBuffer(QUEUE_SIZE);
+    private final ServerMetrics metrics;
 
-    private final BlockingQueue<Integer> writeQueue = new ArrayBlockingQueue<>(QUEUE_SIZE);
-    private final ByteBuffer bb = ByteBuffer.allocate((4 + EOL.length) * QUEUE_SIZE);
-    private final Collection<Integer> boxCar = new ByteBufferBackedCollection(bb);
+    private LogWriter logWriter;
+    // holds the lock on the log's lock file while running
+    private FileChannel lockChannel;
 
-    private SeekableByteChannel fileChannel;
+    // writer thread state: sequence of the next number to write, bytes written since the last fsync
+    private long writtenSequence;
+    private long unforcedBytes;
+    private long lastForceNanos = System.nanoTime();
+
+    // bytes of log written, only set by the writer; what replication may send
+    private volatile long logSize;
+
+    // numbers with a lower write queue sequence are on disk, waiters are notified on durableSignal
+    private volatile long durableSequence;
+    private final Object durableSignal = new Object();
 
     public SingleFileDatabase(Path dbFile) throws IOException {
+        this(dbFile, DatabaseConfig.defaults());
+    }
+
+    public SingleFileDatabase(Path dbFile, DatabaseConfig config) throws IOException {
+        this(dbFile, config, new ServerMetrics());
+    }
+
+    /**
+     * @param metrics where the writer records batch sizes and flush and fsync latencies
+     */
+    public SingleFileDatabase(Path dbFile, DatabaseConfig config, ServerMetrics metrics) throws IOException {
         this.dbFile = dbFile;
+        this.config = config;
+        this.startupMode = config.getStartupMode();
+        this.logType = config.getLogType();
+        this.segmentSize = config.getSegmentSize();
+        this.durability = config.getDurability();
+        this.fsyncIntervalNanos = config.getFsyncInterval().toNanos();
+        this.fsyncBytes = config.getFsyncBytes();
+        this.lowNumber = config.getLowNumber();
+        this.highNumber = config.getHighNumber();
+        if (config.getIndexType() == IndexType.MAPPED) {
+            this.mappedIndex = new MappedBitSet(dbFile.resolveSibling(dbFile.getFileName() + ".idx"),
+                    highNumber - lowNumber);
+            this.index = mappedIndex;
+        } else {
+            this.mappedIndex = null;
+            this.index = config.getIndexType() == IndexType.PAGED
+                    ? new PagedBitSet(highNumber - lowNumber)
+                    : config.getIndexType() == IndexType.ROARING
+                    ? new RoaringBitSet(highNumber - lowNumber)
+                    : new ConcurrentBitSet(highNumber - lowNumber);
+        }
+        this.rankIndex = new RankIndex(index);
+        this.metrics = metrics;
+        metrics.registerWriteQueue(writeQueue);
+        metrics.registerDedupIndex(index);
     }
 
     @Override
     protected void startUp() throws IOException {
-        if (fileChannel == null) {
-            // Create the set of options for appending to the file.
-            Set<OpenOption> options = new HashSet<>();
-            options.add(CREATE);
-            options.add(TRUNCATE_EXISTING);
-            options.add(WRITE);
-            fileChannel = Files.newByteChannel(dbFile, options,
-                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r-----")));
+        if (logWriter == null) {
+            lockLog();
+            try {
+                openLog();
+            } catch (IOException | RuntimeException e) {
+                unlockLog();
+                throw e;
+            }
+        }
+    }
+
+    private void openLog() throws IOException {
+        boolean truncate = startupMode == StartupMode.TRUNCATE;
+        if (truncate) {
+            IndexSnapshot.deleteAll(dbFile);
+        }
+        LogWriter writer = logType == LogType.MAPPED_SEGMENTS
+                ? new MappedSegmentLogWriter(dbFile, segmentSize, truncate, EOL, metrics)
+                : new ChannelLogWriter(dbFile, truncate, EOL, metrics);
+        if (startupMode == StartupMode.RECOVER) {
+            long fromOffset = 0;
+            if (mappedIndex != null && mappedIndex.isClean() && mappedIndex.getHighWaterMark() <= writer.size()) {
+                fromOffset = mappedIndex.getHighWaterMark();
+            } else {
+                if (mappedIndex != null) {
+                    log.info("Index for {} was not closed cleanly, rebuilding it from the log", dbFile);
+                    mappedIndex.clear();
+                }
+                fromOffset = loadSnapshot(writer.size());
+            }
+            LogRecovery.Result result = writer.recover(new LogRecovery(EOL, lowNumber), fromOffset, index);
+            log.info("Recovered {} records from {} after offset {} in {} ms, truncated {} trailing bytes",
+                    result.getRecordCount(), dbFile, fromOffset, result.getDurationNanos() / 1000000,
+                    result.getTruncatedBytes());
+        } else if (mappedIndex != null) {
+            mappedIndex.clear();
+        }
+        if (mappedIndex != null) {
+            mappedIndex.markDirty();
+        }
+        // recovery and a reused mapped index set bits without counting them
+        rankIndex.rebuild();
+        logWriter = writer;
+        logSize = writer.writtenSize();
+    }
+
+    /*
+     * Takes an exclusive lock on a file next to the log, so no other database, whether in a server or a tool such as
+     * the sorted exporter, recovers or truncates the log while this one writes it.
+     */
+    private void lockLog() throws IOException {
+        FileChannel channel = FileChannel.open(dbFile.resolveSibling(dbFile.getFileName() + ".lock"), CREATE, WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another database in this JVM
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+        if (lock == null) {
+            throw new IOException("Log " + dbFile + " is in use by another database");
+        }
+        lockChannel = channel;
+    }
+
+    private void unlockLog() throws IOException {
+        if (lockChannel != null) {
+            // closing the channel releases the lock
+            lockChannel.close();
+            lockChannel = null;
+        }
+    }
+
+    /*
+     * Loads the newest usable index snapshot, returns the log offset to replay from.
+     */
+    private long loadSnapshot(long logSize) throws IOException {
+        long startNanos = System.nanoTime();
+        IndexSnapshot snapshot = IndexSnapshot.findLatest(dbFile, lowNumber, highNumber - lowNumber, logSize);
+        if (snapshot == null) {
+            return 0;
         }
+        snapshot.forEachWord(index::orWord);
+        log.info("Loaded index snapshot {} covering {} bytes of log in {} ms", snapshot.getFile(),
+                snapshot.getLogOffset(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return snapshot.getLogOffset();
     }
 
     @Override
     protected void shutDown() throws IOException {
-        if (writeQueue.drainTo(boxCar) > 0) {
-            flushAndReset(bb);
+        try {
+            writeQueued();
+            force();
+            if (mappedIndex != null) {
+                mappedIndex.markClean(logWriter.size());
+                mappedIndex.close();
+            }
+            logWriter.close();
+        } finally {
+            unlockLog();
         }
-        ((FileChannel) fileChannel).force(false);
-        fileChannel.close();
     }
 
     @Override
     protected void run() throws Exception {
+        long waitMillis = durability == Durability.PERIODIC
+                ? Math.max(1, Math.min(200, TimeUnit.NANOSECONDS.toMillis(fsyncIntervalNanos)))
+                : 200;
         while (isRunning()) {
-            if (writeQueue.drainTo(boxCar) == 0) {
-                // when write queue is empty block here to prevent busy loop
-                Integer number = writeQueue.poll(200, TimeUnit.MILLISECONDS);
-                if (number == null) {
-                    log.debug("Timeout in db writer thread waiting for data");
-                    continue;
-                }
-                boxCar.add(number);
+            // when write queue is empty wait here to prevent busy loop
+            if (!writeQueue.awaitAvailable(waitMillis, TimeUnit.MILLISECONDS)) {
+                log.debug("Timeout in db writer thread waiting for data");
+            }
+            // even with nothing queued: writes handed over earlier may have finished, or failed, since
+            writeQueued();
+            if (isForceDue()) {
+                force();
             }
-            flushAndReset(bb);
         }
     }
 
     @Override
-    public boolean tryInsert(int number) throws InterruptedException {
+    public boolean tryInsert(int number) throws InterruptedException, IOException {
         if (isDuplicate(number)) {
             return false;
         }
-        writeQueue.put(number);
+        long sequence = writeQueue.put(number);
+        if (durability == Durability.GROUP_COMMIT) {
+            try {
+                awaitDurable(sequence);
+            } catch (IOException e) {
+                forget(number);
+                throw e;
+            }
+        }
         return true;
     }
 
-    private void flushAndReset(ByteBuffer bb) {
-        bb.flip();
+    @Override
+    public int tryInsertAll(int[] numbers, int offset, int length, BitSet inserted)
+            throws InterruptedException, IOException {
+        inserted.clear();
+        // a number out of range fails the whole batch before any bit is set, or earlier numbers would be lost
+        for (int i = 0; i < length; i++) {
+            checkRange(numbers[offset + i]);
+        }
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            if (!isDuplicate(numbers[offset + i])) {
+                inserted.set(i);
+                count++;
+            }
+        }
+        long lastSequence = writeQueue.putSelected(numbers, offset, inserted, count);
+        if (durability == Durability.GROUP_COMMIT && lastSequence >= 0) {
+            try {
+                awaitDurable(lastSequence);
+            } catch (IOException e) {
+                for (int i = inserted.nextSetBit(0); i >= 0; i = inserted.nextSetBit(i + 1)) {
+                    forget(numbers[offset + i]);
+                }
+                throw e;
+            }
+        }
+        return count;
+    }
+
+    Path getDbFile() {
+        return dbFile;
+    }
+
+    DatabaseConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * @return the dedup index, holding numbers offset by the low end of the number range
+     */
+    DedupIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return bytes of log written so far, always whole records; they may not be forced to disk yet
+     */
+    long getLogSize() {
+        return logSize;
+    }
+
+    @Override
+    public boolean contains(int number) {
+        return number >= lowNumber && number < highNumber && index.get(number - lowNumber);
+    }
+
+    @Override
+    public long count() {
+        return rankIndex.rank(highNumber - lowNumber);
+    }
+
+    @Override
+    public long countRange(int low, int high) {
+        return rankIndex.countRange(clamp(low) - lowNumber, clamp(high) - lowNumber);
+    }
+
+    private int clamp(int number) {
+        return Math.max(lowNumber, Math.min(highNumber, number));
+    }
+
+    /*
+     * Blocks until the number with the given write queue sequence is on disk.  Fails if the writer stopped first, the
+     * number may then never reach the log.
+     */
+    private void awaitDurable(long sequence) throws InterruptedException, IOException {
+        synchronized (durableSignal) {
+            while (durableSequence <= sequence) {
+                State state = state();
+                if (state == State.FAILED || state == State.TERMINATED) {
+                    throw new IOException("Database " + state + " before numbers were written to disk",
+                            state == State.FAILED ? failureCause() : null);
+                }
+                // timed so a failed writer that never signals is noticed
+                durableSignal.wait(100);
+            }
+        }
+    }
+
+    private void writeQueued() throws IOException {
+        long size = logWriter.size();
         try {
-            fileChannel.write(bb);
+            writtenSequence += logWriter.append(writeQueue, QUEUE_SIZE);
         } catch (IOException e) {
+            if (durability != Durability.NONE) {
+                // fail the service rather than silently drop numbers callers expect to reach the disk
+                throw e;
+            }
             // todo : create test for this!  should be able to re-open and re-populate data file
             log.error("Exception handled when writing to data file", e);
+        } finally {
+            logSize = logWriter.writtenSize();
+            // a failed write rolls the log back, so this may be less than nothing
+            unforcedBytes = Math.max(0, unforcedBytes + logWriter.size() - size);
         }
-        bb.clear();
     }
 
-    @VisibleForTesting boolean isDuplicate(int number) {
-        bsLock.lock();
-        try {
-            if (bs.get(number)) {
-                return true;
-            } else {
-                bs.set(number);
+    private boolean isForceDue() {
+        switch (durability) {
+            case GROUP_COMMIT:
+                return writtenSequence > durableSequence;
+            case PERIODIC:
+                return unforcedBytes > 0 && (unforcedBytes >= fsyncBytes
+                        || System.nanoTime() - lastForceNanos >= fsyncIntervalNanos);
+            default:
                 return false;
-            }
-        } finally {
-            bsLock.unlock();
         }
     }
 
-    private static class ByteBufferBackedCollection extends AbstractCollection<Integer> {
-
-        private final ByteBuffer bb;
-
-        private ByteBufferBackedCollection(ByteBuffer bb) {
-            this.bb = bb;
+    private void force() throws IOException {
+        long startNanos = System.nanoTime();
+        logWriter.force();
+        unforcedBytes = 0;
+        lastForceNanos = System.nanoTime();
+        metrics.recordForce(lastForceNanos - startNanos);
+        durableSequence = writtenSequence;
+        synchronized (durableSignal) {
+            durableSignal.notifyAll();
         }
+    }
 
-        @Override
-        public boolean add(Integer integer) {
-            bb.putInt(integer);
-            bb.put(EOL);
+    @VisibleForTesting boolean isDuplicate(int number) {
+        checkRange(number);
+        if (index.getAndSet(number - lowNumber)) {
             return true;
         }
+        rankIndex.increment(number - lowNumber);
+        return false;
+    }
 
-        @Override
-        public Iterator<Integer> iterator() {
-            throw new UnsupportedOperationException("write through impl only");
-        }
+    /*
+     * Undoes the dedup check of a number that did not reach the disk, so inserting it again can succeed.
+     */
+    private void forget(int number) {
+        index.clear(number - lowNumber);
+        rankIndex.decrement(number - lowNumber);
+    }
 
-        @Override
-        public int size() {
-            throw new UnsupportedOperationException("write through impl only");
+    private void checkRange(int number) {
+        if (number < lowNumber || number >= highNumber) {
+            throw new IllegalArgumentException("Number " + number + " outside of database range [" + lowNumber
+                    + ", " + highNumber + ")");
         }
     }
 }
@@ -0,0 +1,230 @@
+package com.newrelic.numserver;
+
+import com.google.common.util.concurrent.Service;
+import com.google.common.util.concurrent.ServiceManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Writes the unique numbers in ascending order, straight from the dedup index bit sets rather than by sorting the log.
+ *
+ * Every number takes the same number of bytes in either {@link Format}, so where each run of index words goes in the
+ * output is known once the bits before it are counted.  An export counts the set bits of each chunk of words, then
+ * encodes and writes the chunks at their offsets, both in parallel over a fork-join pool; no chunk waits on another.
+ * The index must not change during an export.
+ *
+ * Run with the output file and optionally the format, e.g. {@code SortedExporter numbers.sorted binary}, with the
+ * server's {@code numbers.*} settings; the server must be stopped.  The databases are recovered as on a restart with
+ * {@code numbers.startup=recover}, from the mapped index, a snapshot or the log, whichever is fastest.  A database
+ * refuses to start on a log another one holds the lock of, so the export fails rather than recover, and possibly
+ * truncate, the log of a running server.
+ */
+public class SortedExporter implements Closeable {
+
+    /**
+     * Output encodings.
+     */
+    public enum Format {
+        /** Nine digit lines, as clients send them. */
+        TEXT(10),
+        /** Four byte big-endian ints. */
+        BINARY(4);
+
+        private final int recordSize;
+
+        Format(int recordSize) {
+            this.recordSize = recordSize;
+        }
+
+        public int getRecordSize() {
+            return recordSize;
+        }
+    }
+
+    // a million numbers per chunk, so a chunk's buffer is at most 10MB of text
+    private static final int CHUNK_WORDS = 1 << 14;
+
+    private final Format format;
+    private final ForkJoinPool pool;
+
+    public SortedExporter(Format format, int parallelism) {
+        this.format = format;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: SortedExporter <output file> [text|binary]");
+            System.exit(2);
+        }
+        Path output = Paths.get(args[0]);
+        Format format = args.length > 1 ? Format.valueOf(args[1].toUpperCase()) : Format.TEXT;
+
+        ServerConfig config = ServerConfig.fromSystemProperties();
+        DatabaseConfig databaseConfig = config.getDatabaseConfig().toBuilder()
+                .startupMode(SingleFileDatabase.StartupMode.RECOVER)
+                .build();
+        List<SingleFileDatabase> databases = config.getShards() > 1
+                ? new ShardedDatabase(ShardedDatabase.shardFiles(config.getDbFile(), config.getShards(),
+                        config.getShardDirs()), databaseConfig).getShards()
+                : Collections.singletonList(new SingleFileDatabase(config.getDbFile(), databaseConfig));
+        ServiceManager serviceManager = new ServiceManager(new ArrayList<Service>(databases));
+        long startNanos = System.nanoTime();
+        try {
+            serviceManager.startAsync().awaitHealthy();
+        } catch (IllegalStateException e) {
+            System.err.println("Failed to open the databases, is the server still running? " + e.getMessage());
+            serviceManager.stopAsync().awaitStopped();
+            System.exit(1);
+        }
+        long recoveredNanos = System.nanoTime();
+        try (SortedExporter exporter = new SortedExporter(format, Runtime.getRuntime().availableProcessors())) {
+            long count = exporter.export(databases, output);
+            System.out.println("Exported " + count + " numbers to " + output + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - recoveredNanos) + " ms, after "
+                    + TimeUnit.NANOSECONDS.toMillis(recoveredNanos - startNanos) + " ms recovering the index");
+        } finally {
+            serviceManager.stopAsync().awaitStopped();
+        }
+    }
+
+    /**
+     * Shuts down the export threads.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Writes the numbers of the shards, which must be in ascending number range order, to the file.
+     *
+     * @return the count of numbers written
+     */
+    public long export(List<SingleFileDatabase> shards, Path output) throws IOException {
+        try (FileChannel channel = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (SingleFileDatabase shard : shards) {
+                position = export(shard.getIndex(), shard.getConfig().getLowNumber(), channel, position);
+            }
+            return position / format.getRecordSize();
+        }
+    }
+
+    /**
+     * Writes the numbers in the index, offset by {@code lowNumber}, to the channel from {@code position} on.
+     *
+     * @return the position after the last number written
+     */
+    long export(DedupIndex index, int lowNumber, FileChannel channel, long position) throws IOException {
+        int words = (index.capacity() + 63) >>> 6;
+        int chunks = (words + CHUNK_WORDS - 1) / CHUNK_WORDS;
+
+        long[] offsets = new long[chunks + 1];
+        invoke(chunks, chunk -> {
+            int count = 0;
+            for (int word = chunk * CHUNK_WORDS, end = Math.min(words, word + CHUNK_WORDS); word < end; word++) {
+                count += Long.bitCount(index.word(word));
+            }
+            offsets[chunk + 1] = count;
+        });
+        offsets[0] = position;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            offsets[chunk + 1] = offsets[chunk] + offsets[chunk + 1] * format.getRecordSize();
+        }
+
+        invoke(chunks, chunk -> {
+            int length = (int) (offsets[chunk + 1] - offsets[chunk]);
+            if (length == 0) {
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            for (int word = chunk * CHUNK_WORDS, end = Math.min(words, word + CHUNK_WORDS); word < end; word++) {
+                long bits = index.word(word);
+                while (bits != 0) {
+                    encode(buffer, lowNumber + (word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+            buffer.flip();
+            try {
+                long at = offsets[chunk];
+                while (buffer.hasRemaining()) {
+                    at += channel.write(buffer, at);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return offsets[chunks];
+    }
+
+    private void encode(ByteBuffer buffer, int number) {
+        if (format == Format.BINARY) {
+            buffer.putInt(number);
+            return;
+        }
+        int end = buffer.position() + 9;
+        for (int i = end - 1; i >= end - 9; i--) {
+            buffer.put(i, (byte) ('0' + number % 10));
+            number /= 10;
+        }
+        buffer.position(end);
+        buffer.put((byte) '\n');
+    }
+
+    private void invoke(int chunks, IntConsumer leaf) throws IOException {
+        try {
+            pool.invoke(new ChunkTask(0, chunks, leaf));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /*
+     * Splits a range of chunks in halves down to single chunks.
+     */
+    private static class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer leaf;
+
+        private ChunkTask(int from, int to, IntConsumer leaf) {
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (from < to) {
+                    leaf.accept(from);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkTask(from, middle, leaf), new ChunkTask(middle, to, leaf));
+        }
+    }
+}
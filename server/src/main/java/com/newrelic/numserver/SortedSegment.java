@@ -0,0 +1,214 @@
+package com.newrelic.numserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A compacted log segment: the segment's numbers in ascending order, delta encoded as varints, with a block index.
+ *
+ * Layout, big-endian: a 24 byte header (magic "NUMSORT1", number count, numbers per block, block count, CRC32 of the
+ * data), then the block index of one (first number, data offset) pair per block, then the data.  The first number of
+ * a block is only kept in the index; every following number is stored as its difference from the one before in
+ * unsigned LEB128, one byte for gaps under 128, which is most of them when numbers are dense.
+ */
+class SortedSegment {
+
+    static final String SUFFIX = ".sorted";
+    static final int BLOCK_SIZE = 4096;
+
+    private static final long MAGIC = 0x4e554d534f525431L; // "NUMSORT1"
+    private static final int HEADER_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+    private final int count;
+    private final int blockSize;
+    private final int blockCount;
+    private final int dataStart;
+
+    private SortedSegment(MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+            throw new IOException("Not a sorted segment");
+        }
+        this.buffer = buffer;
+        this.count = buffer.getInt(8);
+        this.blockSize = buffer.getInt(12);
+        this.blockCount = buffer.getInt(16);
+        this.dataStart = HEADER_SIZE + blockCount * 8;
+        if (count < 0 || blockSize <= 0 || blockCount != (count + blockSize - 1) / blockSize
+                || dataStart > buffer.capacity()) {
+            throw new IOException("Corrupt sorted segment header");
+        }
+    }
+
+    /**
+     * @return the compacted file for a log segment file
+     */
+    static Path fileFor(Path segment) {
+        return segment.resolveSibling(segment.getFileName() + SUFFIX);
+    }
+
+    static SortedSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            return new SortedSegment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the first {@code count} numbers of the array, which must be strictly ascending.
+     */
+    static void write(Path file, int[] sorted, int count) throws IOException {
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        ByteBuffer index = ByteBuffer.allocate(blockCount * 8);
+        ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = LogWriter.open(file, EnumSet.of(CREATE, WRITE, TRUNCATE_EXISTING))) {
+            channel.position(HEADER_SIZE + blockCount * 8);
+            int dataOffset = 0;
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && sorted[i] <= sorted[i - 1]) {
+                    throw new IllegalArgumentException("Numbers not strictly ascending at " + i);
+                }
+                if (data.remaining() < 5) {
+                    dataOffset += flush(channel, data, crc);
+                }
+                if (i % BLOCK_SIZE == 0) {
+                    index.putInt(sorted[i]).putInt(dataOffset + data.position());
+                } else {
+                    putVarint(data, sorted[i] - sorted[i - 1]);
+                }
+            }
+            flush(channel, data, crc);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(count).putInt(BLOCK_SIZE).putInt(blockCount).putInt((int) crc.getValue());
+            header.flip();
+            index.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (index.hasRemaining()) {
+                channel.write(index);
+            }
+            channel.force(false);
+        }
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Hands every number to the consumer in ascending order.
+     */
+    void forEach(IntConsumer consumer) {
+        for (int block = 0; block < blockCount; block++) {
+            decodeBlock(block, consumer);
+        }
+    }
+
+    /**
+     * Looks the number up through the block index, decoding at most one block.
+     */
+    boolean contains(int number) {
+        int low = 0;
+        int high = blockCount - 1;
+        // last block whose first number is <= number
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (firstNumber(mid) <= number) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (high < 0) {
+            return false;
+        }
+        ByteBuffer data = blockData(high);
+        int value = firstNumber(high);
+        int inBlock = Math.min(blockSize, count - high * blockSize);
+        for (int i = 1; i < inBlock && value < number; i++) {
+            value += getVarint(data);
+        }
+        return value == number;
+    }
+
+    /**
+     * @return true if the data matches the checksum in the header
+     */
+    boolean isChecksumValid() {
+        CRC32 crc = new CRC32();
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataStart);
+        crc.update(data);
+        return (int) crc.getValue() == buffer.getInt(20);
+    }
+
+    private void decodeBlock(int block, IntConsumer consumer) {
+        ByteBuffer data = blockData(block);
+        int value = firstNumber(block);
+        int inBlock = Math.min(blockSize, count - block * blockSize);
+        consumer.accept(value);
+        for (int i = 1; i < inBlock; i++) {
+            value += getVarint(data);
+            consumer.accept(value);
+        }
+    }
+
+    private ByteBuffer blockData(int block) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(dataStart + dataOffset(block));
+        return data;
+    }
+
+    private int firstNumber(int block) {
+        return buffer.getInt(HEADER_SIZE + block * 8);
+    }
+
+    private int dataOffset(int block) {
+        return buffer.getInt(HEADER_SIZE + block * 8 + 4);
+    }
+
+    private static void putVarint(ByteBuffer data, int value) {
+        while ((value & ~0x7f) != 0) {
+            data.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        data.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer data) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static int flush(FileChannel channel, ByteBuffer data, CRC32 crc) throws IOException {
+        data.flip();
+        int length = data.remaining();
+        crc.update(data.array(), 0, length);
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        data.clear();
+        return length;
+    }
+}
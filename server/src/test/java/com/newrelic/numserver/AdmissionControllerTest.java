@@ -0,0 +1,154 @@
+package com.newrelic.numserver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+
+    static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    ServerMetrics metrics;
+    IntRingBuffer queue;
+    AdmissionController controller;
+    long now;
+
+    @Before
+    public void setUp() {
+        metrics = new ServerMetrics();
+        queue = new IntRingBuffer(1024);
+        metrics.registerWriteQueue(queue);
+        controller = new AdmissionController(AdmissionConfig.builder()
+                .maxThrottleDelay(Duration.ofMillis(100))
+                .maxWriterLag(Duration.ofSeconds(1))
+                .build(), metrics);
+        now = 0;
+        controller.reset(now);
+    }
+
+    @Test
+    public void levelsFollowQueueFill() throws Exception {
+        fill(100);
+        tick();
+        assertEquals(AdmissionController.Level.NORMAL, controller.getLevel());
+        assertEquals(0, controller.getReadDelayNanos());
+        assertTrue(controller.isAcceptAllowed());
+
+        fill(600);
+        tick();
+        assertEquals(AdmissionController.Level.THROTTLE, controller.getLevel());
+        long lightDelay = controller.getReadDelayNanos();
+        assertTrue(lightDelay > 0);
+        assertTrue(controller.isAcceptAllowed());
+        assertFalse(controller.tryShed());
+
+        fill(850);
+        tick();
+        assertEquals(AdmissionController.Level.PAUSE_ACCEPT, controller.getLevel());
+        assertTrue(controller.getReadDelayNanos() > lightDelay);
+        assertFalse(controller.isAcceptAllowed());
+        assertFalse(controller.tryShed());
+
+        fill(1000);
+        tick();
+        assertEquals(AdmissionController.Level.SHED, controller.getLevel());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), controller.getReadDelayNanos());
+        assertEquals(3, metrics.getAdmissionLevel());
+        assertTrue(metrics.getAcceptPausedNanos() > 0);
+    }
+
+    @Test
+    public void levelsDropWithHysteresis() throws Exception {
+        fill(600);
+        tick();
+        assertEquals(AdmissionController.Level.THROTTLE, controller.getLevel());
+
+        // just under the threshold is not enough to leave throttling
+        drainTo(500);
+        tick();
+        assertEquals(AdmissionController.Level.THROTTLE, controller.getLevel());
+
+        drainTo(400);
+        tick();
+        assertEquals(AdmissionController.Level.NORMAL, controller.getLevel());
+        assertEquals(0, controller.getReadDelayNanos());
+    }
+
+    @Test
+    public void shedsOneConnectionPerShedInterval() throws Exception {
+        fill(1000);
+        tick();
+        assertTrue(controller.tryShed());
+        assertFalse(controller.tryShed());
+
+        tick();
+        assertFalse(controller.tryShed());
+
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        controller.evaluate(now);
+        assertTrue(controller.tryShed());
+        assertEquals(2, metrics.getShedConnections());
+
+        drainTo(0);
+        tick();
+        assertFalse(controller.tryShed());
+    }
+
+    @Test
+    public void writerLagRaisesPressure() throws Exception {
+        // a tenth full, but the writer has written nothing for most of a second
+        fill(100);
+        tick();
+        assertEquals(AdmissionController.Level.NORMAL, controller.getLevel());
+
+        now += TimeUnit.MILLISECONDS.toNanos(600);
+        controller.evaluate(now);
+        assertEquals(AdmissionController.Level.THROTTLE, controller.getLevel());
+        assertEquals(610, metrics.getWriterLagMillis());
+
+        // the writer catches up
+        drainTo(0);
+        metrics.recordWrite(100, 400, 1000);
+        tick();
+        assertEquals(AdmissionController.Level.NORMAL, controller.getLevel());
+        assertEquals(0, metrics.getWriterLagMillis());
+    }
+
+    @Test
+    public void throttle_recordsPause() throws Exception {
+        fill(1000);
+        tick();
+        controller.throttle();
+        assertTrue(metrics.getThrottleNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+
+        drainTo(0);
+        tick();
+        long throttled = metrics.getThrottleNanos();
+        controller.throttle();
+        assertEquals(throttled, metrics.getThrottleNanos());
+    }
+
+    /*
+     * Helpers
+     */
+    private void tick() {
+        now += TICK;
+        controller.evaluate(now);
+    }
+
+    private void fill(int size) throws InterruptedException {
+        while (queue.size() < size) {
+            queue.put(queue.size());
+        }
+    }
+
+    private void drainTo(int size) {
+        queue.drainTo(value -> { }, queue.size() - size);
+    }
+}
@@ -0,0 +1,138 @@
+package com.newrelic.numserver;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BinaryProtocolTest {
+
+    private BinaryProtocol decoder;
+    private List<Integer> numbers;
+
+    @Before
+    public void setUp() {
+        decoder = new BinaryProtocol();
+        numbers = new ArrayList<>();
+    }
+
+    @Test
+    public void packedAndDeltaFrames() throws Exception {
+        int[] sent = {5, 999999999, 0, 123456, 123457, 123400};
+        ByteBuffer input = ByteBuffer.allocate(256);
+        BinaryProtocol.writePackedFrame(input, sent, 0, 3);
+        BinaryProtocol.writeDeltaFrame(input, sent, 3, 3);
+        input.flip();
+
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, decoder.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(5, 999999999, 0, 123456, 123457, 123400), numbers);
+        assertEquals(0, input.remaining());
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, decoder.acceptEndOfInput(input, numbers::add));
+    }
+
+    @Test
+    public void framesSplitAcrossReads() throws Exception {
+        int[] sent = {1000, 1001, 999999999, 7, 300000000, 42};
+        ByteBuffer frames = ByteBuffer.allocate(256);
+        BinaryProtocol.writeDeltaFrame(frames, sent, 0, sent.length);
+        BinaryProtocol.writePackedFrame(frames, sent, 0, sent.length);
+        frames.flip();
+
+        // one byte per read, carrying over what the decoder leaves
+        ByteBuffer read = ByteBuffer.allocate(BinaryProtocol.MAX_CARRY_LENGTH + 1);
+        while (frames.hasRemaining()) {
+            read.put(frames.get());
+            read.flip();
+            assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, decoder.acceptInput(read, numbers::add));
+            read.compact();
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            for (int number : sent) {
+                expected.add(number);
+            }
+        }
+        assertEquals(expected, numbers);
+    }
+
+    @Test
+    public void terminateFrame() throws Exception {
+        ByteBuffer input = ByteBuffer.allocate(64);
+        BinaryProtocol.writePackedFrame(input, new int[] {1}, 0, 1);
+        input.put(BinaryProtocol.TERMINATE).putInt(0);
+        BinaryProtocol.writePackedFrame(input, new int[] {2}, 0, 1);
+        input.flip();
+
+        assertEquals(Protocol.ClientInputAction.TERMINATE, decoder.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+    }
+
+    @Test
+    public void outOfRangeNumbers() throws Exception {
+        ByteBuffer input = ByteBuffer.allocate(64);
+        BinaryProtocol.writePackedFrame(input, new int[] {1, 1000000000, 2}, 0, 3);
+        input.flip();
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decoder.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+
+        input.clear();
+        BinaryProtocol.writeDeltaFrame(input, new int[] {3, -1}, 0, 2);
+        input.flip();
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                new BinaryProtocol().acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1, 3), numbers);
+    }
+
+    @Test
+    public void malformedFrames() throws Exception {
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decode(header((byte) 9, 0)));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decode(header(BinaryProtocol.PACKED, 6)));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                decode(header(BinaryProtocol.PACKED, BinaryProtocol.MAX_FRAME_LENGTH + 4)));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decode(header(BinaryProtocol.TERMINATE, 4)));
+
+        // a varint that does not end within its one byte frame
+        ByteBuffer input = header(BinaryProtocol.DELTA, 1);
+        input.limit(input.limit() + 2).put(5, (byte) 0x81).put(6, (byte) 0x01);
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decode(input));
+
+        // too long to be an int
+        input = header(BinaryProtocol.DELTA, 6);
+        input.limit(input.limit() + 6);
+        for (int i = 5; i < 11; i++) {
+            input.put(i, (byte) 0x80);
+        }
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decode(input));
+    }
+
+    @Test
+    public void endOfInputInsideFrame() throws Exception {
+        ByteBuffer input = ByteBuffer.allocate(64);
+        BinaryProtocol.writePackedFrame(input, new int[] {1, 2}, 0, 2);
+        input.flip().limit(input.limit() - 1);
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, decoder.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, decoder.acceptEndOfInput(input, numbers::add));
+    }
+
+    /*
+     * Helpers
+     */
+    private static ByteBuffer header(byte type, int length) {
+        ByteBuffer header = ByteBuffer.allocate(64);
+        header.put(type).putInt(length).flip();
+        return header;
+    }
+
+    private Protocol.ClientInputAction decode(ByteBuffer input) throws InterruptedException, IOException {
+        return new BinaryProtocol().acceptInput(input, number -> {
+            throw new AssertionError("Unexpected number " + number);
+        });
+    }
+}
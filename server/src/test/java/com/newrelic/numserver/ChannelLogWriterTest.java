@@ -0,0 +1,92 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChannelLogWriterTest {
+
+    static final byte[] EOL = SingleFileDatabase.EOL;
+    static final int RECORD_SIZE = 4 + EOL.length;
+
+    File dir;
+    Path dbFile;
+    IntRingBuffer queue;
+    ServerMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+        queue = new IntRingBuffer(1 << 20);
+        metrics = new ServerMetrics();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void append_moreThanTheBuffersHold() throws Exception {
+        // over 2MB of records, more than every pooled buffer holds at once
+        int[] numbers = new int[600_000];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = i * 3;
+        }
+        ChannelLogWriter writer = new ChannelLogWriter(dbFile, true, EOL, metrics);
+        queue.putAll(numbers, 0, numbers.length);
+        assertEquals(numbers.length, writer.append(queue, numbers.length));
+        assertEquals((long) numbers.length * RECORD_SIZE, writer.size());
+        writer.force();
+        assertEquals(writer.size(), writer.writtenSize());
+        writer.close();
+
+        assertArrayEquals(records(numbers), Files.toByteArray(dbFile.toFile()));
+        // recorded by the I/O thread as each write completed
+        assertEquals(numbers.length, metrics.getWriterRecords());
+        assertEquals((long) numbers.length * RECORD_SIZE, metrics.getWriterBytes());
+    }
+
+    @Test
+    public void append_afterReopen() throws Exception {
+        ChannelLogWriter writer = new ChannelLogWriter(dbFile, true, EOL, metrics);
+        queue.putAll(new int[] {1, 2}, 0, 2);
+        assertEquals(2, writer.append(queue, 100));
+        writer.close();
+
+        writer = new ChannelLogWriter(dbFile, false, EOL, metrics);
+        assertEquals(2 * RECORD_SIZE, writer.writtenSize());
+        queue.putAll(new int[] {3}, 0, 1);
+        assertEquals(1, writer.append(queue, 100));
+        assertEquals(0, writer.append(queue, 100));
+        writer.close();
+
+        assertArrayEquals(records(1, 2, 3), Files.toByteArray(dbFile.toFile()));
+    }
+
+    /*
+     * Helpers
+     */
+    private static byte[] records(int... numbers) {
+        ByteBuffer buffer = ByteBuffer.allocate(numbers.length * RECORD_SIZE);
+        for (int number : numbers) {
+            buffer.putInt(number).put(EOL);
+        }
+        return buffer.array();
+    }
+}
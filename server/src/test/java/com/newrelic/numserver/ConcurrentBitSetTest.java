@@ -0,0 +1,69 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentBitSetTest {
+
+    @Test
+    public void getAndSet() {
+        ConcurrentBitSet bits = new ConcurrentBitSet(1000);
+        assertFalse(bits.get(0));
+        assertFalse(bits.getAndSet(0));
+        assertTrue(bits.getAndSet(0));
+        assertTrue(bits.get(0));
+
+        assertFalse(bits.getAndSet(63));
+        assertFalse(bits.getAndSet(64));
+        assertFalse(bits.getAndSet(999));
+        assertTrue(bits.get(63));
+        assertTrue(bits.get(64));
+        assertTrue(bits.get(999));
+        assertFalse(bits.get(62));
+        assertFalse(bits.get(65));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getAndSet_outOfRange() {
+        new ConcurrentBitSet(1000).getAndSet(1000);
+    }
+
+    @Test
+    public void getAndSet_concurrentWritersSeeEachBitSetOnce() throws Exception {
+        final int size = 100000;
+        final int threads = 8;
+        ConcurrentBitSet bits = new ConcurrentBitSet(size);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    int firstSets = 0;
+                    for (int i = 0; i < size; i++) {
+                        if (!bits.getAndSet(i)) {
+                            firstSets++;
+                        }
+                    }
+                    return firstSets;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                total += result.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(size, total);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
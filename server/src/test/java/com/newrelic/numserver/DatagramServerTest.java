@@ -0,0 +1,126 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatagramServerTest {
+
+    File dir;
+    ServerMetrics metrics;
+    SingleFileDatabase database;
+    IntRingBuffer admissionQueue;
+    AdmissionController admission;
+    DatagramServer datagramServer;
+    DatagramChannel client;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        metrics = new ServerMetrics();
+        database = new SingleFileDatabase(dir.toPath().resolve("numbers.log"));
+        database.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        // admission control over a queue of its own, so the test sets the pressure
+        ServerMetrics admissionMetrics = new ServerMetrics();
+        admissionQueue = new IntRingBuffer(1024);
+        admissionMetrics.registerWriteQueue(admissionQueue);
+        admission = new AdmissionController(AdmissionConfig.defaults(), admissionMetrics);
+        datagramServer = new DatagramServer(new Protocol(), database, metrics, admission, "127.0.0.1", 0);
+        datagramServer.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        client = DatagramChannel.open();
+        client.connect(new InetSocketAddress("127.0.0.1", datagramServer.getPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        datagramServer.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        database.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        new File(dir, "numbers.log").delete();
+        new File(dir, "numbers.log.lock").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void insertsTextAndBinaryDatagrams() throws Exception {
+        send("000000001\n000000002\r\n000000003");
+        ByteBuffer binary = ByteBuffer.allocate(64);
+        binary.put(BinaryProtocol.MAGIC);
+        BinaryProtocol.writePackedFrame(binary, new int[] {4, 5}, 0, 2);
+        BinaryProtocol.writeDeltaFrame(binary, new int[] {100, 101, 3}, 0, 3);
+        binary.flip();
+        client.write(binary);
+
+        await(metrics::getDatagrams, 2);
+        assertEquals(7, metrics.getUniqueNumbers());
+        assertEquals(1, metrics.getDuplicateNumbers());
+        for (int number : new int[] {1, 2, 3, 4, 5, 100, 101}) {
+            assertTrue(database.contains(number));
+        }
+    }
+
+    @Test
+    public void dropsMalformedDatagramsWhole() throws Exception {
+        send("000000007\n00000008\n");
+        send("000000009\nterminate\n");
+        ByteBuffer truncated = ByteBuffer.allocate(64);
+        truncated.put(BinaryProtocol.MAGIC);
+        BinaryProtocol.writePackedFrame(truncated, new int[] {10, 11}, 0, 2);
+        truncated.flip().limit(truncated.limit() - 1);
+        client.write(truncated);
+        send("000000012\n");
+
+        await(metrics::getDatagrams, 1);
+        assertEquals(3, metrics.getMalformedDatagrams());
+        assertEquals(1, metrics.getUniqueNumbers());
+        assertFalse(database.contains(7));
+        assertFalse(database.contains(9));
+        assertFalse(database.contains(10));
+        assertTrue(database.contains(12));
+        assertTrue(datagramServer.isRunning());
+    }
+
+    @Test
+    public void dropsDatagramsWhileAcceptsArePaused() throws Exception {
+        admissionQueue.putAll(new int[900], 0, 900);
+        admission.evaluate(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        assertFalse(admission.isAcceptAllowed());
+        send("000000013\n");
+        await(metrics::getDroppedDatagrams, 1);
+
+        admissionQueue.drainTo(number -> { }, 900);
+        admission.evaluate(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+        send("000000014\n");
+        await(metrics::getDatagrams, 1);
+        assertFalse(database.contains(13));
+        assertTrue(database.contains(14));
+    }
+
+    /*
+     * Helpers
+     */
+    private void send(String lines) throws Exception {
+        client.write(ByteBuffer.wrap(lines.getBytes(Charsets.US_ASCII)));
+    }
+
+    private static void await(LongSupplier counter, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (counter.getAsLong() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, counter.getAsLong());
+    }
+}
@@ -0,0 +1,113 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IndexSnapshotTest {
+
+    static final int CAPACITY = 5 * 65536 + 1000;
+
+    File dir;
+    Path dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void write_roundTripsEveryContainerForm() throws Exception {
+        long[] words = new long[(CAPACITY + 63) / 64];
+        // sparse: array container
+        set(words, 3);
+        set(words, 64);
+        set(words, 65535);
+        // clustered: run container, with runs crossing words
+        for (int bit = 65536 + 10; bit < 65536 + 5000; bit++) {
+            set(words, bit);
+        }
+        for (int bit = 65536 + 6000; bit < 65536 + 6003; bit++) {
+            set(words, bit);
+        }
+        // dense and scattered: bitmap container
+        for (int bit = 3 * 65536; bit < 4 * 65536; bit += 3) {
+            set(words, bit);
+        }
+        // the last, partial container
+        set(words, CAPACITY - 1);
+
+        Path file = IndexSnapshot.write(dbFile, 1234, 7, CAPACITY, words);
+        assertTrue(file.toFile().length() < 4 * 8192);
+
+        IndexSnapshot snapshot = IndexSnapshot.open(file);
+        assertEquals(1234, snapshot.getLogOffset());
+        assertEquals(7, snapshot.getLowNumber());
+        assertEquals(CAPACITY, snapshot.getCapacity());
+        long[] decoded = new long[words.length];
+        snapshot.forEachWord((wordIndex, bits) -> decoded[wordIndex] |= bits);
+        assertArrayEquals(words, decoded);
+    }
+
+    @Test
+    public void findLatest_skipsCorruptAndTooNewSnapshots() throws Exception {
+        long[] words = new long[(CAPACITY + 63) / 64];
+        set(words, 1);
+        IndexSnapshot.write(dbFile, 10, 0, CAPACITY, words);
+        set(words, 2);
+        IndexSnapshot.write(dbFile, 20, 0, CAPACITY, words);
+        set(words, 3);
+        Path newest = IndexSnapshot.write(dbFile, 30, 0, CAPACITY, words);
+        assertEquals(Arrays.asList(newest, IndexSnapshot.fileFor(dbFile, 20), IndexSnapshot.fileFor(dbFile, 10)),
+                IndexSnapshot.list(dbFile));
+
+        corruptLastByte(newest);
+        assertEquals(20, IndexSnapshot.findLatest(dbFile, 0, CAPACITY, 100).getLogOffset());
+        assertEquals(10, IndexSnapshot.findLatest(dbFile, 0, CAPACITY, 15).getLogOffset());
+        assertNull(IndexSnapshot.findLatest(dbFile, 0, CAPACITY, 5));
+        assertNull(IndexSnapshot.findLatest(dbFile, 0, CAPACITY + 1, 100));
+
+        IndexSnapshot.deleteAll(dbFile);
+        assertTrue(IndexSnapshot.list(dbFile).isEmpty());
+    }
+
+    /*
+     * Helpers
+     */
+    private static void set(long[] words, int bit) {
+        words[bit >>> 6] |= 1L << bit;
+    }
+
+    private static void corruptLastByte(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 1);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexSnapshotterTest {
+
+    static final int RECORD_SIZE = 4 + SingleFileDatabase.EOL.length;
+
+    File dir;
+    Path dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recover_replaysOnlyLogAfterSnapshot() throws Exception {
+        recoverFromSnapshot(baseConfig());
+    }
+
+    @Test
+    public void recover_replaysOnlyLogAfterSnapshot_mappedSegments() throws Exception {
+        recoverFromSnapshot(baseConfig()
+                .logType(SingleFileDatabase.LogType.MAPPED_SEGMENTS)
+                .segmentSize(2 * RECORD_SIZE));
+    }
+
+    @Test
+    public void truncateStartDeletesSnapshots() throws Exception {
+        DatabaseConfig config = baseConfig().snapshotInterval(Duration.ofMinutes(1)).build();
+        SingleFileDatabase database = start(config);
+        assertTrue(database.tryInsert(1));
+        stop(database);
+        IndexSnapshotter snapshotter = new IndexSnapshotter(dbFile, config);
+        snapshotter.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        assertEquals(RECORD_SIZE, snapshotter.snapshot());
+        snapshotter.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+
+        stop(start(config));
+        assertTrue(IndexSnapshot.list(dbFile).isEmpty());
+    }
+
+    private void recoverFromSnapshot(DatabaseConfig.Builder builder) throws Exception {
+        DatabaseConfig config = builder.snapshotInterval(Duration.ofMinutes(1)).build();
+        SingleFileDatabase database = start(config);
+        IndexSnapshotter snapshotter = new IndexSnapshotter(dbFile,
+                config.toBuilder().startupMode(SingleFileDatabase.StartupMode.RECOVER).build());
+        snapshotter.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        assertEquals(-1, snapshotter.snapshot());
+
+        for (int number : new int[] {5, 6, 7}) {
+            assertTrue(database.tryInsert(number));
+        }
+        assertEquals(3 * RECORD_SIZE, snapshotter.snapshot());
+        assertEquals(-1, snapshotter.snapshot());
+
+        assertTrue(database.tryInsert(8));
+        assertEquals(4 * RECORD_SIZE, snapshotter.snapshot());
+        assertTrue(database.tryInsert(9));
+        stop(database);
+        snapshotter.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        assertEquals(2, IndexSnapshot.list(dbFile).size());
+
+        // the snapshot alone accounts for 5 to 8, 9 comes from the log tail
+        IndexSnapshot snapshot = IndexSnapshot.findLatest(dbFile, 0, 1000, Long.MAX_VALUE);
+        assertEquals(4 * RECORD_SIZE, snapshot.getLogOffset());
+
+        SingleFileDatabase recovered = start(config.toBuilder()
+                .startupMode(SingleFileDatabase.StartupMode.RECOVER).build());
+        assertEquals(5, recovered.count());
+        assertFalse(recovered.tryInsert(5));
+        assertFalse(recovered.tryInsert(9));
+        assertTrue(recovered.tryInsert(10));
+        stop(recovered);
+    }
+
+    /*
+     * Helpers
+     */
+    // inserts return once their numbers are in the log, so a snapshot taken next holds them
+    private static DatabaseConfig.Builder baseConfig() {
+        return DatabaseConfig.builder()
+                .numberRange(0, 1000)
+                .durability(SingleFileDatabase.Durability.GROUP_COMMIT);
+    }
+
+    private SingleFileDatabase start(DatabaseConfig config) throws Exception {
+        SingleFileDatabase database = new SingleFileDatabase(dbFile, config);
+        database.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        return database;
+    }
+
+    private static void stop(SingleFileDatabase database) throws Exception {
+        database.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,112 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntRingBufferTest {
+
+    @Test
+    public void putAndDrain_inOrderAcrossWrapAround() throws Exception {
+        IntRingBuffer ring = new IntRingBuffer(4);
+        List<Integer> drained = new ArrayList<>();
+
+        ring.put(1);
+        ring.put(2);
+        ring.put(3);
+        assertEquals(2, ring.drainTo(drained::add, 2));
+        ring.putAll(new int[] {9, 4, 5, 6, 9}, 1, 3);
+        assertEquals(4, ring.size());
+        assertEquals(4, ring.drainTo(drained::add, 10));
+
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), drained);
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void awaitAvailable_timesOutWhenEmpty() throws Exception {
+        IntRingBuffer ring = new IntRingBuffer(4);
+        assertFalse(ring.awaitAvailable(10, TimeUnit.MILLISECONDS));
+        ring.put(7);
+        assertTrue(ring.awaitAvailable(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void put_blocksWhileFull() throws Exception {
+        IntRingBuffer ring = new IntRingBuffer(2);
+        ring.putAll(new int[] {1, 2}, 0, 2);
+
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            Future<?> producer = pool.submit(() -> {
+                started.countDown();
+                ring.put(3);
+                return null;
+            });
+            started.await();
+            Thread.sleep(50);
+            assertFalse(producer.isDone());
+
+            List<Integer> drained = new ArrayList<>();
+            ring.drainTo(drained::add, 1);
+            producer.get(1, TimeUnit.SECONDS);
+            ring.drainTo(drained::add, 2);
+            assertEquals(Arrays.asList(1, 2, 3), drained);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrentProducers_keepPerProducerOrder() throws Exception {
+        final int producers = 4;
+        final int perProducer = 200000;
+        IntRingBuffer ring = new IntRingBuffer(1024);
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                pool.submit(() -> {
+                    int[] batch = new int[10];
+                    for (int i = 0; i < perProducer; i += batch.length) {
+                        for (int j = 0; j < batch.length; j++) {
+                            batch[j] = producer * perProducer + i + j;
+                        }
+                        ring.putAll(batch, 0, batch.length);
+                    }
+                    return null;
+                });
+            }
+
+            int[] lastSeen = new int[producers];
+            Arrays.fill(lastSeen, -1);
+            int[] received = new int[1];
+            while (received[0] < producers * perProducer) {
+                assertTrue(ring.awaitAvailable(5, TimeUnit.SECONDS));
+                ring.drainTo(value -> {
+                    int producer = value / perProducer;
+                    assertTrue(value % perProducer > lastSeen[producer]);
+                    lastSeen[producer] = value % perProducer;
+                    received[0]++;
+                }, 512);
+            }
+            for (int last : lastSeen) {
+                assertEquals(perProducer - 1, last);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
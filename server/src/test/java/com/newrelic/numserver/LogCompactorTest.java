@@ -0,0 +1,95 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogCompactorTest {
+
+    static final byte[] EOL = SingleFileDatabase.EOL;
+    static final int SEGMENT_SIZE = 3 * (4 + EOL.length);
+
+    File dir;
+    Path dbFile;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+
+        // two sealed segments, one active
+        MappedSegmentLogWriter writer = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        IntRingBuffer queue = new IntRingBuffer(16);
+        queue.putAll(new int[] {30, 10, 20, 60, 50, 40, 70}, 0, 7);
+        writer.append(queue, 100);
+        writer.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void compactSealedSegments_keepLog() throws Exception {
+        LogCompactor compactor = new LogCompactor(dbFile, EOL, config(SingleFileDatabase.Compaction.KEEP_LOG));
+        assertEquals(2, compactor.compactSealedSegments());
+        assertEquals(0, compactor.compactSealedSegments());
+
+        assertTrue(segment(0).exists());
+        assertTrue(CompactionVerifier.verify(segment(0).toPath(), EOL));
+        assertTrue(CompactionVerifier.verify(segment(1).toPath(), EOL));
+        assertFalse(SortedSegment.fileFor(segment(2).toPath()).toFile().exists());
+
+        SortedSegment first = SortedSegment.open(SortedSegment.fileFor(segment(0).toPath()));
+        assertEquals(3, first.count());
+        assertTrue(first.contains(10));
+        assertTrue(first.contains(30));
+        assertFalse(first.contains(40));
+    }
+
+    @Test
+    public void compactSealedSegments_replaceLogKeepsRecovery() throws Exception {
+        LogCompactor compactor = new LogCompactor(dbFile, EOL, config(SingleFileDatabase.Compaction.REPLACE_LOG));
+        assertEquals(2, compactor.compactSealedSegments());
+        assertFalse(segment(0).exists());
+        assertFalse(segment(1).exists());
+
+        MappedSegmentLogWriter writer = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, false, EOL, new ServerMetrics());
+        ConcurrentBitSet index = new ConcurrentBitSet(100);
+        assertEquals(7, writer.recover(new LogRecovery(EOL, 0), 0, index).getRecordCount());
+        assertEquals(7 * (4 + EOL.length), writer.size());
+        for (int number : new int[] {10, 20, 30, 40, 50, 60, 70}) {
+            assertTrue(index.get(number));
+        }
+        writer.close();
+    }
+
+    /*
+     * Helpers
+     */
+    private File segment(int sequence) {
+        return dir.toPath().resolve(String.format("numbers.log.%08d", sequence)).toFile();
+    }
+
+    private static DatabaseConfig config(SingleFileDatabase.Compaction compaction) {
+        return DatabaseConfig.builder()
+                .logType(SingleFileDatabase.LogType.MAPPED_SEGMENTS)
+                .compaction(compaction)
+                .build();
+    }
+}
@@ -0,0 +1,152 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedSegmentLogWriterTest {
+
+    static final byte[] EOL = SingleFileDatabase.EOL;
+    static final int RECORD_SIZE = 4 + EOL.length;
+    // room for three records, with a partial record's worth left over
+    static final int SEGMENT_SIZE = 3 * RECORD_SIZE + 2;
+
+    File dir;
+    Path dbFile;
+    IntRingBuffer queue;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+        queue = new IntRingBuffer(16);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void append_rollsFullSegments() throws Exception {
+        MappedSegmentLogWriter writer = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        queue.putAll(new int[] {1, 2, 3, 4, 5, 6, 7}, 0, 7);
+        assertEquals(7, writer.append(queue, 100));
+        assertEquals(7 * RECORD_SIZE, writer.size());
+        writer.close();
+
+        assertEquals(3, writer.getSegments().size());
+        assertArrayEquals(records(1, 2, 3), Files.toByteArray(segment(0)));
+        assertArrayEquals(records(4, 5, 6), Files.toByteArray(segment(1)));
+        assertArrayEquals(records(7), Files.toByteArray(segment(2)));
+        assertEquals(Arrays.asList(
+                "0 numbers.log.00000000",
+                String.valueOf(3 * RECORD_SIZE) + " numbers.log.00000001",
+                String.valueOf(6 * RECORD_SIZE) + " numbers.log.00000002"),
+                Files.readLines(dir.toPath().resolve("numbers.log.manifest").toFile(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void recover_afterCrashSkipsZeroTail() throws Exception {
+        MappedSegmentLogWriter crashed = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        queue.putAll(new int[] {10, 20, 30, 40}, 0, 4);
+        crashed.append(queue, 100);
+        crashed.force();
+        // not closed, so the active segment keeps its zero-filled tail
+        assertEquals(SEGMENT_SIZE, segment(1).length());
+
+        MappedSegmentLogWriter writer = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, false, EOL, new ServerMetrics());
+        ConcurrentBitSet index = new ConcurrentBitSet(100);
+        LogRecovery.Result result = writer.recover(new LogRecovery(EOL, 0), 0, index);
+        assertEquals(4, result.getRecordCount());
+        assertTrue(index.get(10));
+        assertTrue(index.get(40));
+        assertFalse(index.get(0));
+        assertEquals(4 * RECORD_SIZE, writer.size());
+
+        queue.put(50);
+        writer.append(queue, 100);
+        writer.close();
+        assertArrayEquals(records(40, 50), Files.toByteArray(segment(1)));
+    }
+
+    @Test
+    public void recover_failsOnDamagedSealedSegment() throws Exception {
+        MappedSegmentLogWriter first = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        queue.putAll(new int[] {1, 2, 3, 4, 5, 6, 7}, 0, 7);
+        first.append(queue, 100);
+        first.close();
+        // break the EOL of the second record of the first segment
+        byte[] damaged = Files.toByteArray(segment(0));
+        damaged[2 * RECORD_SIZE - 1] = 'x';
+        Files.write(damaged, segment(0));
+
+        MappedSegmentLogWriter writer = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, false, EOL, new ServerMetrics());
+        try {
+            writer.recover(new LogRecovery(EOL, 0), 0, new ConcurrentBitSet(100));
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("numbers.log.00000000"));
+        } finally {
+            writer.close();
+        }
+        // nothing is cut or renumbered
+        assertArrayEquals(damaged, Files.toByteArray(segment(0)));
+        assertArrayEquals(records(4, 5, 6), Files.toByteArray(segment(1)));
+        assertEquals(Arrays.asList(
+                "0 numbers.log.00000000",
+                String.valueOf(3 * RECORD_SIZE) + " numbers.log.00000001",
+                String.valueOf(6 * RECORD_SIZE) + " numbers.log.00000002"),
+                Files.readLines(dir.toPath().resolve("numbers.log.manifest").toFile(), Charsets.UTF_8));
+    }
+
+    @Test
+    public void truncate_deletesOldSegments() throws Exception {
+        MappedSegmentLogWriter first = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        queue.putAll(new int[] {1, 2, 3, 4}, 0, 4);
+        first.append(queue, 100);
+        first.close();
+
+        MappedSegmentLogWriter second = new MappedSegmentLogWriter(dbFile, SEGMENT_SIZE, true, EOL, new ServerMetrics());
+        assertEquals(0, second.size());
+        second.close();
+        assertEquals(1, second.getSegments().size());
+        assertFalse(segment(1).exists());
+        assertEquals(0, segment(0).length());
+    }
+
+    /*
+     * Helpers
+     */
+    private File segment(int sequence) {
+        return dir.toPath().resolve(String.format("numbers.log.%08d", sequence)).toFile();
+    }
+
+    private static byte[] records(int... numbers) {
+        ByteBuffer buffer = ByteBuffer.allocate(numbers.length * RECORD_SIZE);
+        for (int number : numbers) {
+            buffer.putInt(number).put(EOL);
+        }
+        return buffer.array();
+    }
+}
@@ -0,0 +1,95 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PagedBitSetTest {
+
+    static final int PAGE_BITS = 1 << 16;
+
+    @Test
+    public void getAndSet() {
+        PagedBitSet bits = new PagedBitSet(1_000_000_000);
+        assertFalse(bits.get(0));
+        assertFalse(bits.getAndSet(0));
+        assertTrue(bits.getAndSet(0));
+        assertTrue(bits.get(0));
+
+        assertFalse(bits.getAndSet(PAGE_BITS - 1));
+        assertFalse(bits.getAndSet(PAGE_BITS));
+        assertFalse(bits.getAndSet(999_999_999));
+        assertTrue(bits.get(PAGE_BITS - 1));
+        assertTrue(bits.get(PAGE_BITS));
+        assertTrue(bits.get(999_999_999));
+        assertFalse(bits.get(PAGE_BITS + 1));
+        assertEquals(1L << 63, bits.word((PAGE_BITS - 1) >>> 6));
+        assertEquals(1L, bits.word(PAGE_BITS >>> 6));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getAndSet_outOfRange() {
+        new PagedBitSet(1000).getAndSet(1000);
+    }
+
+    @Test
+    public void pagesAllocatedOnFirstSet() {
+        PagedBitSet bits = new PagedBitSet(1_000_000_000);
+        long emptyBytes = bits.memoryBytes();
+        assertTrue(emptyBytes < 128 * 1024);
+
+        // reads and empty words never allocate
+        assertFalse(bits.get(5 * PAGE_BITS));
+        assertEquals(0, bits.word(12345));
+        bits.orWord(12345, 0);
+        assertEquals(0, bits.getAllocatedPages());
+        assertEquals(emptyBytes, bits.memoryBytes());
+
+        bits.getAndSet(5 * PAGE_BITS);
+        bits.getAndSet(5 * PAGE_BITS + 100);
+        bits.orWord(7 * PAGE_BITS / 64, 0b101);
+        assertEquals(2, bits.getAllocatedPages());
+        assertTrue(bits.memoryBytes() >= emptyBytes + 2 * PAGE_BITS / 8);
+        assertTrue(bits.get(7 * PAGE_BITS + 2));
+    }
+
+    @Test
+    public void getAndSet_concurrentWritersSeeEachBitSetOnce() throws Exception {
+        // every thread races to install the same pages
+        final int size = 16 * PAGE_BITS;
+        final int threads = 8;
+        PagedBitSet bits = new PagedBitSet(size);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    int firstSets = 0;
+                    for (int i = 0; i < size; i += 7) {
+                        if (!bits.getAndSet(i)) {
+                            firstSets++;
+                        }
+                    }
+                    return firstSets;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                total += result.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals((size + 6) / 7, total);
+            assertEquals(16, bits.getAllocatedPages());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.newrelic.numserver;
 
+import com.google.common.base.Charsets;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 import static junit.framework.TestCase.assertEquals;
@@ -46,9 +51,117 @@ public class ProtocolTest {
         assertEquals(Protocol.ClientInputResponse.TERMINATE, protocol.acceptInput("terminate"));
     }
 
+    @Test
+    public void acceptInputBytes_validNumbers() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer input = bytes("123456789\n000006789\r\n000000000\n");
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, protocol.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(123456789, 6789, 0), numbers);
+        assertEquals(0, input.remaining());
+    }
+
+    @Test
+    public void acceptInputBytes_partialLineLeftInBuffer() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer input = bytes("123456789\n00000");
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, protocol.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(123456789), numbers);
+        assertEquals("00000", Charsets.US_ASCII.decode(input).toString());
+    }
+
+    @Test
+    public void acceptInputBytes_invalidCommand() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer input = bytes("000000001\nasdfasdf\n000000002\n");
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION, protocol.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+    }
+
+    @Test
+    public void acceptInputBytes_empty() throws Exception {
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, protocol.acceptInput(bytes(""), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("\n"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("\r\n"), this::failOnNumber));
+    }
+
+    @Test
+    public void acceptInputBytes_malformedNumber() throws Exception {
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("1234\n"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("1234A6789\n"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("0xFFFFFFF\n"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("-12345678\n"), this::failOnNumber));
+    }
+
+    @Test
+    public void acceptInputBytes_overlongPartialLine() throws Exception {
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptInput(bytes("12345678901234"), this::failOnNumber));
+    }
+
+    @Test
+    public void acceptInputBytes_terminateCommand() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        ByteBuffer input = bytes("000000001\r\nterminate\r\n000000002\n");
+        assertEquals(Protocol.ClientInputAction.TERMINATE, protocol.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+    }
+
+    @Test
+    public void acceptEndOfInput_finalUnterminatedLine() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, protocol.acceptEndOfInput(bytes(""), numbers::add));
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER,
+                protocol.acceptEndOfInput(bytes("000000007\r"), numbers::add));
+        assertEquals(Arrays.asList(7), numbers);
+        assertEquals(Protocol.ClientInputAction.TERMINATE,
+                protocol.acceptEndOfInput(bytes("terminate"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.acceptEndOfInput(bytes("0000"), this::failOnNumber));
+    }
+
+    @Test
+    public void connectionDecoder_textUnlessMagic() throws Exception {
+        List<Integer> numbers = new ArrayList<>();
+        Protocol.Decoder text = protocol.newConnectionDecoder();
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, text.acceptInput(bytes("000000001\n"), numbers::add));
+        assertEquals(Arrays.asList(1), numbers);
+
+        Protocol.Decoder binary = protocol.newConnectionDecoder();
+        ByteBuffer input = ByteBuffer.allocate(64);
+        input.put(BinaryProtocol.MAGIC);
+        BinaryProtocol.writePackedFrame(input, new int[] {2, 3}, 0, 2);
+        input.flip();
+        // the magic split over two reads
+        input.limit(3);
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, binary.acceptInput(input, numbers::add));
+        assertEquals(0, input.position());
+        input.limit(BinaryProtocol.MAGIC.length + BinaryProtocol.HEADER_LENGTH + 8);
+        assertEquals(Protocol.ClientInputAction.INSERT_NUMBER, binary.acceptInput(input, numbers::add));
+        assertEquals(Arrays.asList(1, 2, 3), numbers);
+
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.newConnectionDecoder().acceptInput(bytes("NUMX"), this::failOnNumber));
+        assertEquals(Protocol.ClientInputAction.CLOSE_CONNECTION,
+                protocol.newConnectionDecoder().acceptEndOfInput(bytes("NU"), this::failOnNumber));
+    }
+
     /*
      * Helpers
      */
+    private static ByteBuffer bytes(String input) {
+        return ByteBuffer.wrap(input.getBytes(Charsets.US_ASCII));
+    }
+
+    private void failOnNumber(int number) {
+        throw new AssertionError("Unexpected number " + number);
+    }
+
     private static Protocol.ClientInputResponse responseForValidNumber(int number) {
         return new Protocol.ClientInputResponse(Protocol.ClientInputAction.INSERT_NUMBER, Optional.of(number));
     }
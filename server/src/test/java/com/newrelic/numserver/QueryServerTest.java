@@ -0,0 +1,66 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryServerTest {
+
+    File dir;
+    SingleFileDatabase database;
+    QueryServer queryServer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        database = new SingleFileDatabase(dir.toPath().resolve("numbers.log"));
+        database.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        queryServer = new QueryServer(database, "127.0.0.1", 0, Duration.ofSeconds(2));
+        queryServer.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queryServer.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        database.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        new File(dir, "numbers.log").delete();
+        new File(dir, "numbers.log.lock").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void answersPipelinedQueries() throws Exception {
+        for (int number : new int[] {10, 20, 30, 123456789}) {
+            database.tryInsert(number);
+        }
+
+        try (Socket socket = new Socket("127.0.0.1", queryServer.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("contains 20\ncontains 21\ncount\ncount 15 31\ncount 0 1000000000\n"
+                    + "count 1\nfrobnicate\ncontains x\n").getBytes(Charsets.US_ASCII));
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charsets.US_ASCII));
+            assertEquals("true", in.readLine());
+            assertEquals("false", in.readLine());
+            assertEquals("4", in.readLine());
+            assertEquals("2", in.readLine());
+            assertEquals("4", in.readLine());
+            assertEquals("error unknown command", in.readLine());
+            assertEquals("error unknown command", in.readLine());
+            assertEquals("error invalid number", in.readLine());
+        }
+    }
+}
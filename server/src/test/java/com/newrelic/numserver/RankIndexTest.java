@@ -0,0 +1,57 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RankIndexTest {
+
+    static final int CAPACITY = (1 << 21) + 100;
+
+    @Test
+    public void rank_matchesScan() {
+        ConcurrentBitSet bits = new ConcurrentBitSet(CAPACITY);
+        RankIndex rank = new RankIndex(bits);
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            int number = random.nextInt(CAPACITY);
+            if (!bits.getAndSet(number)) {
+                rank.increment(number);
+            }
+        }
+        bits.getAndSet(CAPACITY - 1);
+        rank.increment(CAPACITY - 1);
+
+        int[] expected = new int[CAPACITY + 1];
+        for (int i = 0; i < CAPACITY; i++) {
+            expected[i + 1] = expected[i] + (bits.get(i) ? 1 : 0);
+        }
+        for (int number : new int[] {0, 1, 63, 64, 65, 4095, 4096, 4097, 1 << 20, (1 << 20) + 1, 1 << 21,
+                CAPACITY - 1, CAPACITY}) {
+            assertEquals("rank of " + number, expected[number], rank.rank(number));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int number = random.nextInt(CAPACITY + 1);
+            assertEquals("rank of " + number, expected[number], rank.rank(number));
+        }
+        assertEquals(expected[2000000] - expected[100],
+                rank.countRange(100, 2000000));
+    }
+
+    @Test
+    public void rebuild_countsBitsSetDirectly() {
+        ConcurrentBitSet bits = new ConcurrentBitSet(CAPACITY);
+        for (int number = 0; number < CAPACITY; number += 7) {
+            bits.getAndSet(number);
+        }
+        RankIndex rank = new RankIndex(bits);
+        assertEquals(0, rank.rank(1 << 21));
+
+        rank.rebuild();
+        assertEquals((CAPACITY + 6) / 7, rank.rank(CAPACITY));
+        assertEquals(1, rank.countRange(4096, 4103));
+        assertEquals(0, rank.countRange(10, 10));
+    }
+}
@@ -0,0 +1,212 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Service;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicationTest {
+
+    static final int RECORD_SIZE = 4 + SingleFileDatabase.EOL.length;
+
+    File primaryDir;
+    File followerDir;
+    Path primaryFile;
+    Path followerFile;
+    ServerMetrics primaryMetrics;
+    ServerMetrics followerMetrics;
+    SingleFileDatabase primary;
+    ReplicationServer replicationServer;
+
+    @Before
+    public void setUp() throws Exception {
+        primaryDir = Files.createTempDir();
+        followerDir = Files.createTempDir();
+        primaryFile = primaryDir.toPath().resolve("numbers.log");
+        followerFile = followerDir.toPath().resolve("numbers.log");
+        primaryMetrics = new ServerMetrics();
+        followerMetrics = new ServerMetrics();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (replicationServer != null) {
+            replicationServer.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        }
+        if (primary != null) {
+            stop(primary);
+        }
+        for (File dir : new File[] {primaryDir, followerDir}) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void followerCopiesChannelLog() throws Exception {
+        DatabaseConfig config = baseConfig().build();
+        startPrimary(config);
+        insertRange(primary, 0, 500);
+
+        SingleFileDatabase follower = start(followerFile, config, followerMetrics);
+        LogFollower logFollower = follow(follower);
+        awaitCount(follower, 500);
+        insertRange(primary, 500, 600);
+        awaitCount(follower, 600);
+        awaitApplied(logFollower, 600 * RECORD_SIZE);
+
+        assertEquals(0, followerMetrics.getReplicationLagBytes());
+        assertEquals(600 * RECORD_SIZE, primaryMetrics.getReplicationBytesSent());
+        assertEquals(1, primaryMetrics.getConnectedFollowers());
+        stop(logFollower);
+        stop(follower);
+        assertArrayEquals(java.nio.file.Files.readAllBytes(primaryFile),
+                java.nio.file.Files.readAllBytes(followerFile));
+    }
+
+    @Test
+    public void restartedFollowerResumesFromItsLog() throws Exception {
+        DatabaseConfig config = baseConfig().build();
+        startPrimary(config);
+        insertRange(primary, 0, 100);
+
+        SingleFileDatabase follower = start(followerFile, config, followerMetrics);
+        LogFollower logFollower = follow(follower);
+        awaitCount(follower, 100);
+        stop(logFollower);
+        stop(follower);
+
+        insertRange(primary, 100, 150);
+        long sent = primaryMetrics.getReplicationBytesSent();
+        follower = start(followerFile, config.toBuilder().startupMode(SingleFileDatabase.StartupMode.RECOVER).build(),
+                followerMetrics);
+        logFollower = follow(follower);
+        awaitCount(follower, 150);
+        awaitApplied(logFollower, 150 * RECORD_SIZE);
+        // only the tail is sent again
+        assertEquals(50 * RECORD_SIZE, primaryMetrics.getReplicationBytesSent() - sent);
+        assertFalse(follower.tryInsert(120));
+        stop(logFollower);
+        stop(follower);
+    }
+
+    @Test
+    public void followerCopiesMappedSegmentsIncludingCompacted() throws Exception {
+        DatabaseConfig config = baseConfig()
+                .logType(SingleFileDatabase.LogType.MAPPED_SEGMENTS)
+                .segmentSize(16 * RECORD_SIZE)
+                .compaction(SingleFileDatabase.Compaction.REPLACE_LOG)
+                .build();
+        startPrimary(config);
+        int[] numbers = new int[100];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = (i * 37) % 1000;
+            assertTrue(primary.tryInsert(numbers[i]));
+        }
+        LogCompactor compactor = new LogCompactor(primaryFile, config);
+        assertTrue(compactor.compactSealedSegments() > 0);
+
+        SingleFileDatabase follower = start(followerFile, config, followerMetrics);
+        LogFollower logFollower = follow(follower);
+        awaitCount(follower, 100);
+        for (int number : numbers) {
+            assertTrue(follower.contains(number));
+        }
+        assertTrue(primary.tryInsert(1));
+        awaitCount(follower, 101);
+        awaitApplied(logFollower, 101 * RECORD_SIZE);
+        stop(logFollower);
+        stop(follower);
+    }
+
+    @Test
+    public void mismatchedFollowerIsRejected() throws Exception {
+        startPrimary(baseConfig().build());
+        try (SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress("localhost", replicationServer.getPort()))) {
+            ByteBuffer handshake = ByteBuffer.allocate(ReplicationServer.HANDSHAKE_LENGTH);
+            handshake.putInt(ReplicationServer.MAGIC).putInt(0).putInt(2).putInt(RECORD_SIZE).putLong(0).flip();
+            channel.write(handshake);
+            channel.socket().setSoTimeout(2000);
+            assertEquals(-1, channel.socket().getInputStream().read());
+        }
+    }
+
+    /*
+     * Helpers
+     */
+    // inserts return once their numbers are in the log, so the replication server can send them
+    private static DatabaseConfig.Builder baseConfig() {
+        return DatabaseConfig.builder()
+                .numberRange(0, 1000)
+                .durability(SingleFileDatabase.Durability.GROUP_COMMIT);
+    }
+
+    private void startPrimary(DatabaseConfig config) throws Exception {
+        primary = start(primaryFile, config, primaryMetrics);
+        replicationServer = new ReplicationServer(Collections.singletonList(primary), "localhost", 0,
+                primaryMetrics);
+        replicationServer.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+    }
+
+    private LogFollower follow(SingleFileDatabase follower) throws Exception {
+        LogFollower logFollower = new LogFollower("localhost", replicationServer.getPort(), 0, 1, follower,
+                followerMetrics);
+        logFollower.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        return logFollower;
+    }
+
+    private static SingleFileDatabase start(Path dbFile, DatabaseConfig config, ServerMetrics metrics)
+            throws Exception {
+        SingleFileDatabase database = new SingleFileDatabase(dbFile, config, metrics);
+        database.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        return database;
+    }
+
+    private static void insertRange(SingleFileDatabase database, int from, int to) throws Exception {
+        int[] numbers = new int[to - from];
+        Arrays.setAll(numbers, i -> from + i);
+        assertEquals(numbers.length, database.tryInsertAll(numbers, 0, numbers.length, new BitSet()));
+    }
+
+    private static void awaitCount(SingleFileDatabase database, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (database.count() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, database.count());
+    }
+
+    private static void awaitApplied(LogFollower follower, long offset) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (follower.getAppliedOffset() < offset && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(offset, follower.getAppliedOffset());
+    }
+
+    private static void stop(Service service) throws Exception {
+        service.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,189 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RoaringBitSetTest {
+
+    static final int CONTAINER_BITS = 1 << 16;
+
+    @Test
+    public void getAndSet() {
+        RoaringBitSet bits = new RoaringBitSet(1_000_000_000);
+        assertFalse(bits.get(0));
+        assertFalse(bits.getAndSet(0));
+        assertTrue(bits.getAndSet(0));
+        assertTrue(bits.get(0));
+
+        assertFalse(bits.getAndSet(CONTAINER_BITS - 1));
+        assertFalse(bits.getAndSet(CONTAINER_BITS));
+        assertFalse(bits.getAndSet(999_999_999));
+        assertTrue(bits.get(CONTAINER_BITS - 1));
+        assertTrue(bits.get(CONTAINER_BITS));
+        assertTrue(bits.get(999_999_999));
+        assertFalse(bits.get(CONTAINER_BITS + 1));
+        assertEquals(1L << 63, bits.word((CONTAINER_BITS - 1) >>> 6));
+        assertEquals(1L, bits.word(CONTAINER_BITS >>> 6));
+        assertEquals(4, bits.cardinality());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getAndSet_outOfRange() {
+        new RoaringBitSet(1000).getAndSet(1000);
+    }
+
+    @Test
+    public void containers_takeTheSmallestForm() {
+        RoaringBitSet bits = new RoaringBitSet(1_000_000_000);
+        // sparse
+        for (int i = 0; i < 100; i++) {
+            bits.getAndSet(i * 97);
+        }
+        // dense and random
+        Random random = new Random(42);
+        while (bits.cardinality() < 100 + 30_000) {
+            bits.getAndSet(CONTAINER_BITS + random.nextInt(CONTAINER_BITS));
+        }
+        // a run, then full
+        for (int i = 0; i < 20_000; i++) {
+            bits.getAndSet(2 * CONTAINER_BITS + i);
+        }
+        for (int i = 0; i < CONTAINER_BITS; i++) {
+            bits.getAndSet(3 * CONTAINER_BITS + i);
+        }
+        assertArrayEquals(new int[] {1, 1, 2}, bits.containerCounts());
+        assertEquals(100 + 30_000 + 20_000 + CONTAINER_BITS, bits.cardinality());
+        assertEquals(-1L, bits.word(3 * CONTAINER_BITS / 64 + 17));
+        // the array and bitmap, then runs of a few bytes each
+        assertTrue(bits.memoryBytes() < 256 + 8192 + 3 * 256);
+    }
+
+    @Test
+    public void clear_removesFromEveryForm() {
+        RoaringBitSet bits = new RoaringBitSet(1_000_000_000);
+        bits.getAndSet(5);
+        bits.getAndSet(7);
+        Random random = new Random(42);
+        while (bits.cardinality() < 2 + 30_000) {
+            bits.getAndSet(CONTAINER_BITS + random.nextInt(CONTAINER_BITS));
+        }
+        for (int i = 0; i < CONTAINER_BITS; i++) {
+            bits.getAndSet(2 * CONTAINER_BITS + i);
+        }
+        assertArrayEquals(new int[] {1, 1, 1}, bits.containerCounts());
+        int inBitmap = CONTAINER_BITS;
+        while (!bits.get(inBitmap)) {
+            inBitmap++;
+        }
+
+        bits.clear(5);
+        bits.clear(inBitmap);
+        // splits the full run, then cuts both ends of the lower part
+        bits.clear(2 * CONTAINER_BITS + 100);
+        bits.clear(2 * CONTAINER_BITS);
+        bits.clear(2 * CONTAINER_BITS + 99);
+        bits.clear(3 * CONTAINER_BITS);
+        assertFalse(bits.get(5));
+        assertTrue(bits.get(7));
+        assertFalse(bits.get(inBitmap));
+        assertFalse(bits.get(2 * CONTAINER_BITS + 100));
+        assertTrue(bits.get(2 * CONTAINER_BITS + 101));
+        assertTrue(bits.get(2 * CONTAINER_BITS + 98));
+        assertEquals(0b110L, bits.word(2 * CONTAINER_BITS / 64) & 0b111L);
+        assertEquals(2 + 30_000 + CONTAINER_BITS - 5, bits.cardinality());
+
+        assertFalse(bits.getAndSet(2 * CONTAINER_BITS + 100));
+        assertFalse(bits.getAndSet(5));
+        assertEquals(2 + 30_000 + CONTAINER_BITS - 3, bits.cardinality());
+    }
+
+    @Test
+    public void runs_fallBackWhenFragmented() {
+        RoaringBitSet bits = new RoaringBitSet(CONTAINER_BITS);
+        for (int i = 0; i < 64; i++) {
+            bits.getAndSet(i);
+        }
+        assertArrayEquals(new int[] {0, 0, 1}, bits.containerCounts());
+        // every other number, so each is a run of its own
+        for (int i = 1000; i < 1000 + 2 * 3000; i += 2) {
+            bits.getAndSet(i);
+        }
+        assertArrayEquals(new int[] {1, 0, 0}, bits.containerCounts());
+        for (int i = 20_000; i < 20_000 + 2 * 2000; i += 2) {
+            bits.getAndSet(i);
+        }
+        assertArrayEquals(new int[] {0, 1, 0}, bits.containerCounts());
+        assertEquals(64 + 3000 + 2000, bits.cardinality());
+    }
+
+    @Test
+    public void matchesBitSet() {
+        // runs being merged, split and converted at random, checked word by word
+        int size = 4 * CONTAINER_BITS;
+        RoaringBitSet bits = new RoaringBitSet(size);
+        BitSet expected = new BitSet(size);
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            int number = random.nextBoolean()
+                    ? random.nextInt(size)
+                    : (random.nextInt(size / 256) * 256 + random.nextInt(256)) / 2 * 2;
+            assertEquals(expected.get(number), bits.getAndSet(number));
+            expected.set(number);
+        }
+        bits.orWord(5, 0xf0f0L);
+        for (int i = 0; i < 64; i++) {
+            if ((0xf0f0L & (1L << i)) != 0) {
+                expected.set(5 * 64 + i);
+            }
+        }
+        long[] words = expected.toLongArray();
+        for (int word = 0; word < size / 64; word++) {
+            assertEquals("word " + word, word < words.length ? words[word] : 0, bits.word(word));
+        }
+        assertEquals(expected.cardinality(), bits.cardinality());
+    }
+
+    @Test
+    public void getAndSet_concurrentWritersSeeEachBitSetOnce() throws Exception {
+        // every thread races to add the same containers, through every form
+        final int size = 16 * CONTAINER_BITS;
+        final int threads = 8;
+        RoaringBitSet bits = new RoaringBitSet(size);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(pool.submit(() -> {
+                    int firstSets = 0;
+                    for (int i = 0; i < size; i += 7) {
+                        if (!bits.getAndSet(i)) {
+                            firstSets++;
+                        }
+                    }
+                    return firstSets;
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> result : results) {
+                total += result.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals((size + 6) / 7, total);
+            assertEquals(total, bits.cardinality());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
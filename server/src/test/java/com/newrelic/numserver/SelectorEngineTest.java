@@ -0,0 +1,212 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SelectorEngineTest {
+
+    File dir;
+    ServerMetrics metrics;
+    SingleFileDatabase database;
+    FailingDatabase engineDatabase;
+    ServerSocketChannel serverChannel;
+    CountDownLatch terminated;
+    Thread engineThread;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        metrics = new ServerMetrics();
+        database = new SingleFileDatabase(dir.toPath().resolve("numbers.log"));
+        database.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        engineDatabase = new FailingDatabase(database);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        terminated = new CountDownLatch(1);
+        SelectorEngine engine = new SelectorEngine(serverChannel, 1, Duration.ofSeconds(10), new Protocol(), engineDatabase,
+                metrics, new AdmissionController(AdmissionConfig.defaults(), metrics), terminated::countDown);
+        engineThread = new Thread(engine, "SelectorEngineTest");
+        engineThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engineThread.interrupt();
+        engineThread.join(2000);
+        serverChannel.close();
+        database.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        new File(dir, "numbers.log").delete();
+        new File(dir, "numbers.log.lock").delete();
+        dir.delete();
+    }
+
+    @Test
+    public void insertsNumbersFromAcceptedClient() throws Exception {
+        try (SocketChannel client = connect()) {
+            send(client, "000000001\n000000002\r\n000000001\n");
+            await(metrics::getDuplicateNumbers, 1);
+        }
+        assertEquals(2, metrics.getUniqueNumbers());
+        assertTrue(database.contains(1));
+        assertTrue(database.contains(2));
+    }
+
+    @Test
+    public void carriesPartialLinesAcrossReads() throws Exception {
+        try (SocketChannel client = connect()) {
+            send(client, "0000");
+            Thread.sleep(50);
+            send(client, "00003\n00000");
+            await(metrics::getUniqueNumbers, 1);
+            Thread.sleep(50);
+            send(client, "0004\n");
+            await(metrics::getUniqueNumbers, 2);
+        }
+        assertTrue(database.contains(3));
+        assertTrue(database.contains(4));
+        assertEquals(0, metrics.getParseErrors());
+    }
+
+    @Test
+    public void runsTerminateActionAndClosesClient() throws Exception {
+        try (SocketChannel client = connect()) {
+            send(client, "000000005\nterminate\n");
+            assertTrue(terminated.await(2, TimeUnit.SECONDS));
+            assertEquals(-1, readUntilClosed(client));
+        }
+        assertTrue(database.contains(5));
+    }
+
+    @Test
+    public void closesClientOnInvalidInput() throws Exception {
+        try (SocketChannel client = connect()) {
+            send(client, "000000006\nabc\n000000007\n");
+            assertEquals(-1, readUntilClosed(client));
+        }
+        assertEquals(1, metrics.getParseErrors());
+        assertTrue(database.contains(6));
+        assertFalse(database.contains(7));
+        assertEquals(1, terminated.getCount());
+    }
+
+    @Test
+    public void acceptsNextClientAfterDisconnect() throws Exception {
+        // the engine allows one client, the second waits in the backlog until the first disconnects
+        SocketChannel first = connect();
+        send(first, "000000008\n");
+        await(metrics::getUniqueNumbers, 1);
+        try (SocketChannel second = connect()) {
+            send(second, "000000009\n");
+            Thread.sleep(100);
+            assertFalse(database.contains(9));
+            first.close();
+            await(metrics::getUniqueNumbers, 2);
+        }
+        assertTrue(database.contains(9));
+    }
+
+    @Test
+    public void dropsBatchThatFailedToInsert() throws Exception {
+        engineDatabase.failNext = true;
+        try (SocketChannel client = connect()) {
+            send(client, "000000010\n");
+            assertEquals(-1, readUntilClosed(client));
+        }
+        // the insert batch is shared, the next client must only insert its own numbers
+        try (SocketChannel client = connect()) {
+            send(client, "000000011\n");
+            await(metrics::getUniqueNumbers, 1);
+        }
+        assertFalse(database.contains(10));
+        assertTrue(database.contains(11));
+    }
+
+    /*
+     * Helpers
+     */
+    private SocketChannel connect() throws Exception {
+        return SocketChannel.open(serverChannel.getLocalAddress());
+    }
+
+    private static void send(SocketChannel client, String lines) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(Charsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            client.write(buffer);
+        }
+    }
+
+    private static int readUntilClosed(SocketChannel client) throws Exception {
+        client.socket().setSoTimeout(2000);
+        return client.socket().getInputStream().read();
+    }
+
+    private static void await(LongSupplier counter, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (counter.getAsLong() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, counter.getAsLong());
+    }
+
+    /*
+     * Fails the next batch insert when asked to, as a database that stopped does.
+     */
+    private static class FailingDatabase implements Database {
+
+        private final Database database;
+        private volatile boolean failNext;
+
+        FailingDatabase(Database database) {
+            this.database = database;
+        }
+
+        @Override
+        public boolean tryInsert(int number) throws InterruptedException, IOException {
+            return database.tryInsert(number);
+        }
+
+        @Override
+        public int tryInsertAll(int[] numbers, int offset, int length, BitSet inserted)
+                throws InterruptedException, IOException {
+            if (failNext) {
+                failNext = false;
+                throw new IOException("Database stopped");
+            }
+            return database.tryInsertAll(numbers, offset, length, inserted);
+        }
+
+        @Override
+        public boolean contains(int number) {
+            return database.contains(number);
+        }
+
+        @Override
+        public long count() {
+            return database.count();
+        }
+
+        @Override
+        public long countRange(int low, int high) {
+            return database.countRange(low, high);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a {@link Server} in-process on an ephemeral port and drives it over loopback with several producers.
+ *
+ * The throughput floor is conservative so the suite passes on small CI machines; raise it with
+ * {@code -Dnumbers.test.minNumbersPerSecond}.  The soak test only runs when {@code -Dnumbers.test.soakSeconds} is set.
+ */
+public class ServerLoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ServerLoadTest.class);
+
+    static final int RECORD_SIZE = 4 + SingleFileDatabase.EOL.length;
+    static final int PRODUCERS = 4;
+    // keeps the paged index small; every producer overlaps the others
+    static final int NUMBER_RANGE = 50_000_000;
+
+    File dir;
+    Path dbFile;
+    Server server;
+    ExecutorService producers;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        dbFile = dir.toPath().resolve("numbers.log");
+        producers = Executors.newFixedThreadPool(PRODUCERS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        producers.shutdownNow();
+        if (server != null && !server.awaitTermination(0, TimeUnit.SECONDS)) {
+            terminate();
+            server.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void blocking_logHoldsExactlyTheUniqueNumbersSent() throws Exception {
+        assertThroughputAndLog(ServerConfig.IoMode.BLOCKING);
+    }
+
+    @Test
+    public void nio_logHoldsExactlyTheUniqueNumbersSent() throws Exception {
+        assertThroughputAndLog(ServerConfig.IoMode.NIO);
+    }
+
+    @Test
+    public void terminate_underLoadStopsCleanly() throws Exception {
+        start(ServerConfig.IoMode.BLOCKING, DatabaseConfig.defaults());
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Long>> sent = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            sent.add(producers.submit(new Producer(p, running)));
+        }
+        awaitNumbers(100_000, 30);
+
+        terminate();
+        assertTrue("server still running", server.awaitTermination(10, TimeUnit.SECONDS));
+        for (Future<Long> producer : sent) {
+            producer.get(10, TimeUnit.SECONDS);
+        }
+
+        // every number counted as unique was written, once, in whole records
+        BitSet logged = readLog();
+        assertEquals(server.getMetrics().getUniqueNumbers(), logged.cardinality());
+        assertEquals(0, java.nio.file.Files.size(dbFile) % RECORD_SIZE);
+    }
+
+    @Test
+    public void soak_gcAndHeapStayBounded() throws Exception {
+        long soakSeconds = Long.getLong("numbers.test.soakSeconds", 0);
+        Assume.assumeTrue("set numbers.test.soakSeconds to soak", soakSeconds > 0);
+
+        // an index allocated up front, so any heap growth is a leak
+        start(ServerConfig.IoMode.BLOCKING, DatabaseConfig.builder()
+                .indexType(SingleFileDatabase.IndexType.HEAP)
+                .build());
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Long>> sent = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            sent.add(producers.submit(new Producer(p, running)));
+        }
+        Thread.sleep(5000);
+        long baselineHeap = usedHeapAfterGc();
+        long worstGcMillisPerSecond = 0;
+        long gcMillis = gcMillis();
+        long numbers = received();
+        long worstNumbersPerSecond = Long.MAX_VALUE;
+        for (long second = 0; second < soakSeconds; second++) {
+            Thread.sleep(1000);
+            long nowGcMillis = gcMillis();
+            long nowNumbers = received();
+            worstGcMillisPerSecond = Math.max(worstGcMillisPerSecond, nowGcMillis - gcMillis);
+            worstNumbersPerSecond = Math.min(worstNumbersPerSecond, nowNumbers - numbers);
+            gcMillis = nowGcMillis;
+            numbers = nowNumbers;
+        }
+        long heapGrowth = usedHeapAfterGc() - baselineHeap;
+        running.set(false);
+        for (Future<Long> producer : sent) {
+            producer.get(30, TimeUnit.SECONDS);
+        }
+
+        log.info("Soak: {} s, worst second {} numbers and {} ms of GC, heap grew {} KB",
+                soakSeconds, worstNumbersPerSecond, worstGcMillisPerSecond, heapGrowth / 1024);
+        assertTrue("GC took " + worstGcMillisPerSecond + " ms of a second", worstGcMillisPerSecond < 200);
+        assertTrue("heap grew " + heapGrowth + " bytes", heapGrowth < 64L * 1024 * 1024);
+        assertTrue("worst second received " + worstNumbersPerSecond, worstNumbersPerSecond >= minNumbersPerSecond());
+    }
+
+    private void assertThroughputAndLog(ServerConfig.IoMode ioMode) throws Exception {
+        int perProducer = 500_000;
+        byte[][] inputs = new byte[PRODUCERS][];
+        BitSet expected = new BitSet(NUMBER_RANGE);
+        Random random = new Random(42);
+        for (int p = 0; p < PRODUCERS; p++) {
+            int[] numbers = new int[perProducer];
+            for (int i = 0; i < perProducer; i++) {
+                numbers[i] = random.nextInt(NUMBER_RANGE);
+                expected.set(numbers[i]);
+            }
+            inputs[p] = lines(numbers);
+        }
+        start(ioMode, DatabaseConfig.defaults());
+
+        QueueSampler sampler = new QueueSampler();
+        Thread samplerThread = new Thread(sampler, "queue-sampler");
+        samplerThread.start();
+        long startNanos = System.nanoTime();
+        List<Future<?>> sent = new ArrayList<>();
+        for (byte[] input : inputs) {
+            sent.add(producers.submit(() -> {
+                try (Socket socket = connect()) {
+                    socket.getOutputStream().write(input);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> producer : sent) {
+            producer.get(60, TimeUnit.SECONDS);
+        }
+        awaitNumbers(PRODUCERS * perProducer, 60);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        sampler.running.set(false);
+        samplerThread.join();
+
+        long numbersPerSecond = PRODUCERS * perProducer * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        long backPressureNanos = server.getMetrics().getBackPressureNanos();
+        log.info("{}: {} numbers/s, write queue depth at most {} ({}% full), {} ms blocked on a full queue",
+                ioMode, numbersPerSecond, sampler.maxDepth.get(), sampler.maxFillPercent.get() / 100,
+                TimeUnit.NANOSECONDS.toMillis(backPressureNanos));
+        assertTrue("received " + numbersPerSecond + " numbers/s", numbersPerSecond >= minNumbersPerSecond());
+        // admission control slows the readers down before the write queue fills up
+        assertTrue("write queue filled up", sampler.maxFillPercent.get() < 100_00);
+        assertEquals("inserts blocked on a full write queue", 0, backPressureNanos);
+        assertEquals(expected.cardinality(), server.getMetrics().getUniqueNumbers());
+
+        terminate();
+        assertTrue("server still running", server.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, server.getMetrics().getWriteQueueDepth());
+        assertEquals(expected, readLog());
+    }
+
+    /*
+     * Helpers
+     */
+    private void start(ServerConfig.IoMode ioMode, DatabaseConfig databaseConfig) throws Exception {
+        server = new Server(ServerConfig.builder()
+                .listenAddress("127.0.0.1")
+                .listenPort(0)
+                .maxConcurrentClients(PRODUCERS + 1)
+                .ioMode(ioMode)
+                .dbFile(dbFile)
+                .databaseConfig(databaseConfig)
+                .build());
+        server.start();
+    }
+
+    private Socket connect() throws IOException {
+        return new Socket("127.0.0.1", server.getListenPort());
+    }
+
+    private void terminate() throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write("terminate\n".getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private long received() {
+        return server.getMetrics().getUniqueNumbers() + server.getMetrics().getDuplicateNumbers();
+    }
+
+    private void awaitNumbers(long numbers, int timeoutSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (received() < numbers) {
+            assertTrue("received " + received() + " of " + numbers, System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private BitSet readLog() throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(java.nio.file.Files.readAllBytes(dbFile));
+        BitSet numbers = new BitSet(NUMBER_RANGE);
+        while (log.remaining() >= RECORD_SIZE) {
+            int number = log.getInt();
+            log.position(log.position() + SingleFileDatabase.EOL.length);
+            assertTrue("logged twice: " + number, !numbers.get(number));
+            numbers.set(number);
+        }
+        return numbers;
+    }
+
+    private static byte[] lines(int[] numbers) {
+        StringBuilder lines = new StringBuilder(numbers.length * 10);
+        for (int number : numbers) {
+            lines.append(String.format("%09d\n", number));
+        }
+        return lines.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static long minNumbersPerSecond() {
+        return Long.getLong("numbers.test.minNumbersPerSecond", 1_000_000);
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /*
+     * Sends batches of random lines until stopped or the server goes away.
+     */
+    private class Producer implements Callable<Long> {
+
+        private final Random random;
+        private final AtomicBoolean running;
+
+        private Producer(int seed, AtomicBoolean running) {
+            this.random = new Random(seed);
+            this.running = running;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            long sent = 0;
+            try (Socket socket = connect()) {
+                OutputStream out = socket.getOutputStream();
+                int[] numbers = new int[10_000];
+                while (running.get()) {
+                    for (int i = 0; i < numbers.length; i++) {
+                        numbers[i] = random.nextInt(NUMBER_RANGE);
+                    }
+                    out.write(lines(numbers));
+                    sent += numbers.length;
+                }
+            } catch (IOException e) {
+                // the server terminated
+            }
+            return sent;
+        }
+    }
+
+    /*
+     * Tracks the deepest the write queues get.
+     */
+    private class QueueSampler implements Runnable {
+
+        private final AtomicBoolean running = new AtomicBoolean(true);
+        private final AtomicLong maxDepth = new AtomicLong();
+        // in hundredths of a percent
+        private final AtomicLong maxFillPercent = new AtomicLong();
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                ServerMetrics metrics = server.getMetrics();
+                maxDepth.accumulateAndGet(metrics.getWriteQueueDepth(), Math::max);
+                maxFillPercent.accumulateAndGet((long) (metrics.getWriteQueueFill() * 100_00), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
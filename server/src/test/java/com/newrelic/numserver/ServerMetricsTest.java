@@ -0,0 +1,104 @@
+package com.newrelic.numserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServerMetricsTest {
+
+    @Test
+    public void log2Histogram_percentilesAreBucketUpperBounds() {
+        Log2Histogram histogram = new Log2Histogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(100);
+        histogram.record(5000);
+
+        Log2Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(98 * 3 + 100 + 5000, snapshot.getSum());
+        assertEquals(4, snapshot.getPercentile(50));
+        assertEquals(128, snapshot.getPercentile(99));
+        assertEquals(8192, snapshot.getPercentile(100));
+
+        histogram.record(1);
+        Log2Histogram.Snapshot delta = histogram.snapshot().minus(snapshot);
+        assertEquals(1, delta.getCount());
+        assertEquals(1, delta.getPercentile(50));
+    }
+
+    @Test
+    public void log2Histogram_bucket() {
+        assertEquals(0, Log2Histogram.bucket(0));
+        assertEquals(0, Log2Histogram.bucket(1));
+        assertEquals(1, Log2Histogram.bucket(2));
+        assertEquals(2, Log2Histogram.bucket(3));
+        assertEquals(2, Log2Histogram.bucket(4));
+        assertEquals(Log2Histogram.BUCKETS - 1, Log2Histogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void connection_countsReadsUntilClosed() {
+        ServerMetrics metrics = new ServerMetrics();
+        ServerMetrics.Connection connection = metrics.openConnection("client-1");
+        connection.recordRead(100, 10, 5, 7);
+        connection.recordRead(50, 5, 5, 7);
+        metrics.recordParseError();
+
+        assertEquals(1, metrics.getActiveConnections());
+        assertEquals(15, connection.getNumbers());
+        assertEquals(150, metrics.getBytesRead());
+        assertEquals(10, metrics.getParseNanos());
+        assertEquals(14, metrics.getInsertNanos());
+        assertEquals(1, metrics.getParseErrors());
+        assertTrue(metrics.getConnectionRates().containsKey("client-1"));
+
+        connection.close();
+        assertEquals(0, metrics.getActiveConnections());
+        assertEquals(1, metrics.getConnectionsOpened());
+    }
+
+    @Test
+    public void writeQueue_depthAndBackPressure() throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        IntRingBuffer queue = new IntRingBuffer(2);
+        metrics.registerWriteQueue(queue);
+        queue.put(1);
+        queue.put(2);
+        assertEquals(2, metrics.getWriteQueueDepth());
+
+        Thread consumer = new Thread(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(value -> { }, 1);
+        });
+        consumer.start();
+        queue.put(3);
+        consumer.join();
+        assertTrue(metrics.getBackPressureNanos() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void toPrometheusText() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.recordInserts(7, 3);
+        metrics.recordWrite(7, 7 * 5, TimeUnit.MICROSECONDS.toNanos(3));
+        metrics.openConnection("client-1").recordRead(20, 7, 0, 0);
+
+        String text = MetricsExporter.toPrometheusText(metrics);
+        assertTrue(text.contains("# TYPE numbers_unique_total counter\nnumbers_unique_total 7\n"));
+        assertTrue(text.contains("numbers_duplicate_total 3\n"));
+        assertTrue(text.contains("numbers_writer_batch_records_bucket{le=\"8\"} 1\n"));
+        assertTrue(text.contains("numbers_writer_batch_records_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("numbers_writer_batch_bytes_sum 35\n"));
+        assertTrue(text.contains("numbers_writer_flush_seconds_bucket{le=\"4.0E-6\"} 1\n"));
+        assertTrue(text.contains("numbers_connection_numbers_total{client=\"client-1\"} 7\n"));
+    }
+}
@@ -0,0 +1,116 @@
+package com.newrelic.numserver;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ServiceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedDatabaseTest {
+
+    File dir;
+    List<Path> shardFiles;
+    ShardedDatabase database;
+    ServiceManager serviceManager;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        shardFiles = ShardedDatabase.shardFiles(dir.toPath().resolve("numbers.log"), 3,
+                Collections.<Path>emptyList());
+        database = new ShardedDatabase(shardFiles, DatabaseConfig.defaults());
+        serviceManager = new ServiceManager(database.getShards());
+        serviceManager.startAsync().awaitHealthy(2, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Path file : shardFiles) {
+            file.toFile().delete();
+            new File(file + ".lock").delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shardFiles() {
+        assertEquals(dir.toPath().resolve("numbers.log.0"), shardFiles.get(0));
+        assertEquals(dir.toPath().resolve("numbers.log.2"), shardFiles.get(2));
+    }
+
+    @Test
+    public void tryInsert_routesByRange() throws Exception {
+        assertTrue(database.tryInsert(0));
+        assertTrue(database.tryInsert(333333333));
+        assertTrue(database.tryInsert(333333334));
+        assertTrue(database.tryInsert(999999999));
+        assertFalse(database.tryInsert(333333334));
+
+        serviceManager.stopAsync().awaitStopped(2, TimeUnit.SECONDS);
+
+        assertArrayEquals(records(0, 333333333), Files.toByteArray(shardFiles.get(0).toFile()));
+        assertArrayEquals(records(333333334), Files.toByteArray(shardFiles.get(1).toFile()));
+        assertArrayEquals(records(999999999), Files.toByteArray(shardFiles.get(2).toFile()));
+    }
+
+    @Test
+    public void tryInsertAll_mapsResultsBackToBatchPositions() throws Exception {
+        assertTrue(database.tryInsert(700000000));
+
+        BitSet inserted = new BitSet();
+        int[] batch = {-1, 700000000, 5, 400000000, 5, 700000001, -1};
+        assertEquals(3, database.tryInsertAll(batch, 1, 5, inserted));
+        assertEquals(BitSet.valueOf(new long[] {0b10110}), inserted);
+
+        serviceManager.stopAsync().awaitStopped(2, TimeUnit.SECONDS);
+
+        assertArrayEquals(records(5), Files.toByteArray(shardFiles.get(0).toFile()));
+        assertArrayEquals(records(400000000), Files.toByteArray(shardFiles.get(1).toFile()));
+        assertArrayEquals(records(700000000, 700000001), Files.toByteArray(shardFiles.get(2).toFile()));
+    }
+
+    @Test
+    public void countRange_spansShards() throws Exception {
+        for (int number : new int[] {5, 333333332, 333333333, 333333334, 666666667, 999999999}) {
+            assertTrue(database.tryInsert(number));
+        }
+        assertEquals(6, database.count());
+        assertEquals(3, database.countRange(333333332, 333333335));
+        assertEquals(5, database.countRange(6, 1000000000));
+        assertEquals(6, database.countRange(Integer.MIN_VALUE, Integer.MAX_VALUE));
+        assertEquals(0, database.countRange(10, 5));
+        assertTrue(database.contains(666666667));
+        assertFalse(database.contains(666666668));
+        assertFalse(database.contains(-1));
+        assertFalse(database.contains(1000000000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tryInsert_outOfRange() throws Exception {
+        database.tryInsert(1000000000);
+    }
+
+    /*
+     * Helpers
+     */
+    private static byte[] records(int... numbers) {
+        ByteBuffer bb = ByteBuffer.allocate(numbers.length * (4 + SingleFileDatabase.EOL.length));
+        for (int number : numbers) {
+            bb.putInt(number).put(SingleFileDatabase.EOL);
+        }
+        return bb.array();
+    }
+}
@@ -1,5 +1,6 @@
 package com.newrelic.numserver;
 
+import com.google.common.io.FileWriteMode;
 import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
@@ -7,13 +8,17 @@ import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.util.BitSet;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class SingleFileDatabaseTest {
 
@@ -31,6 +36,7 @@ public class SingleFileDatabaseTest {
     @After
     public void tearDown() throws Exception {
         dbFile.delete();
+        new File(dbFile.getPath() + ".lock").delete();
     }
 
     @Test
@@ -60,6 +66,218 @@ public class SingleFileDatabaseTest {
         System.out.println(dbFile.getAbsolutePath());
     }
 
+    @Test
+    public void tryInsertAll() throws Exception {
+        BitSet inserted = new BitSet();
+        assertEquals(3, database.tryInsertAll(new int[] {-1, 7777, 0, 7777, 999999999, -1}, 1, 4, inserted));
+        assertEquals(2, database.tryInsertAll(new int[] {0, 5, 6}, 0, 3, inserted));
+        assertEquals(BitSet.valueOf(new long[] {0b110}), inserted);
+
+        database.stopAsync();
+        database.awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+        byte[] expected = ByteBuffer.allocate(25)
+                .putInt(7777)
+                .put(SingleFileDatabase.EOL)
+                .putInt(0)
+                .put(SingleFileDatabase.EOL)
+                .putInt(999999999)
+                .put(SingleFileDatabase.EOL)
+                .putInt(5)
+                .put(SingleFileDatabase.EOL)
+                .putInt(6)
+                .put(SingleFileDatabase.EOL)
+                .array();
+        assertArrayEquals(expected, Files.toByteArray(dbFile));
+    }
+
+    @Test
+    public void tryInsertAll_outOfRangeNumberRejectsWholeBatch() throws Exception {
+        try {
+            database.tryInsertAll(new int[] {1, 2, 1000000000}, 0, 3, new BitSet());
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+            // no number of the batch may have been marked as seen
+        }
+        assertFalse(database.contains(1));
+        assertEquals(2, database.tryInsertAll(new int[] {1, 2}, 0, 2, new BitSet()));
+    }
+
+    @Test
+    public void tryInsert_groupCommitReturnsOnceWritten() throws Exception {
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        database = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()), DatabaseConfig.builder()
+                .durability(SingleFileDatabase.Durability.GROUP_COMMIT)
+                .build());
+        database.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+
+        assertTrue(database.tryInsert(7777));
+        assertArrayEquals(ByteBuffer.allocate(5).putInt(7777).put(SingleFileDatabase.EOL).array(),
+                Files.toByteArray(dbFile));
+
+        assertEquals(2, database.tryInsertAll(new int[] {1, 2, 7777}, 0, 3, new BitSet()));
+        assertEquals(15, dbFile.length());
+
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void tryInsert_groupCommitFailsOnceTerminated() throws Exception {
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        database = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()), DatabaseConfig.builder()
+                .durability(SingleFileDatabase.Durability.GROUP_COMMIT)
+                .build());
+        database.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+        try {
+            database.tryInsertAll(new int[] {7777, 8888}, 0, 2, new BitSet());
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // the numbers never reached the log, so they must not count as seen
+        }
+        assertFalse(database.contains(7777));
+        assertFalse(database.contains(8888));
+        assertEquals(0, database.count());
+    }
+
+    @Test
+    public void recover_keepsLogAndDedupHistory() throws Exception {
+        assertTrue(database.tryInsert(7777));
+        assertTrue(database.tryInsert(0));
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+        // simulate a crash part way through writing a record
+        Files.asByteSink(dbFile, FileWriteMode.APPEND).write(new byte[] {0, 0, 1});
+
+        SingleFileDatabase recovered = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()),
+                config(SingleFileDatabase.StartupMode.RECOVER, SingleFileDatabase.IndexType.HEAP));
+        recovered.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+        assertEquals(2, recovered.count());
+        assertTrue(recovered.contains(7777));
+        assertFalse(recovered.contains(42));
+
+        assertFalse(recovered.tryInsert(7777));
+        assertFalse(recovered.tryInsert(0));
+        assertTrue(recovered.tryInsert(42));
+
+        recovered.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+        byte[] expected = ByteBuffer.allocate(15)
+                .putInt(7777)
+                .put(SingleFileDatabase.EOL)
+                .putInt(0)
+                .put(SingleFileDatabase.EOL)
+                .putInt(42)
+                .put(SingleFileDatabase.EOL)
+                .array();
+        assertArrayEquals(expected, Files.toByteArray(dbFile));
+    }
+
+    @Test
+    public void recover_mappedIndexSurvivesCleanRestart() throws Exception {
+        // the log is locked while the database of setUp runs
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        File indexFile = new File(dbFile.getAbsolutePath() + ".idx");
+        try {
+            SingleFileDatabase first = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()),
+                    config(SingleFileDatabase.StartupMode.TRUNCATE, SingleFileDatabase.IndexType.MAPPED));
+            first.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+            assertTrue(first.tryInsert(5));
+            assertTrue(first.tryInsert(999999999));
+            first.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+            SingleFileDatabase second = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()),
+                    config(SingleFileDatabase.StartupMode.RECOVER, SingleFileDatabase.IndexType.MAPPED));
+            second.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+            assertEquals(2, second.count());
+            assertFalse(second.tryInsert(5));
+            assertFalse(second.tryInsert(999999999));
+            assertTrue(second.tryInsert(6));
+            assertEquals(2, second.countRange(0, 999999999));
+            second.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void recover_dirtyMappedIndexIsRebuiltFromLog() throws Exception {
+        // the log is locked while the database of setUp runs
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        File indexFile = new File(dbFile.getAbsolutePath() + ".idx");
+        try {
+            // an index left dirty by a crash, holding a number that never reached the log
+            MappedBitSet crashed = new MappedBitSet(indexFile.toPath(), 1000000000);
+            crashed.markDirty();
+            crashed.getAndSet(12345);
+            crashed.close();
+
+            SingleFileDatabase recovered = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()),
+                    config(SingleFileDatabase.StartupMode.RECOVER, SingleFileDatabase.IndexType.MAPPED));
+            recovered.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+            assertTrue(recovered.tryInsert(12345));
+            recovered.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    @Test
+    public void recover_mappedSegmentLog() throws Exception {
+        File dir = Files.createTempDir();
+        try {
+            DatabaseConfig.Builder config = DatabaseConfig.builder()
+                    .logType(SingleFileDatabase.LogType.MAPPED_SEGMENTS)
+                    .segmentSize(2 * (4 + SingleFileDatabase.EOL.length));
+            SingleFileDatabase first = new SingleFileDatabase(dir.toPath().resolve("numbers.log"), config.build());
+            first.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+            assertEquals(3, first.tryInsertAll(new int[] {5, 6, 7}, 0, 3, new BitSet()));
+            first.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+            SingleFileDatabase second = new SingleFileDatabase(dir.toPath().resolve("numbers.log"),
+                    config.startupMode(SingleFileDatabase.StartupMode.RECOVER).build());
+            second.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+            assertFalse(second.tryInsert(5));
+            assertFalse(second.tryInsert(7));
+            assertTrue(second.tryInsert(8));
+            second.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+
+            byte[] expected = ByteBuffer.allocate(10)
+                    .putInt(7)
+                    .put(SingleFileDatabase.EOL)
+                    .putInt(8)
+                    .put(SingleFileDatabase.EOL)
+                    .array();
+            assertArrayEquals(expected, Files.toByteArray(new File(dir, "numbers.log.00000001")));
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void startUp_failsWhileAnotherDatabaseHoldsTheLog() throws Exception {
+        database.awaitRunning(2000, TimeUnit.MILLISECONDS);
+        SingleFileDatabase second = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()), config(
+                SingleFileDatabase.StartupMode.RECOVER, SingleFileDatabase.IndexType.HEAP));
+        second.startAsync();
+        try {
+            second.awaitRunning(2000, TimeUnit.MILLISECONDS);
+            fail("expected the second database to fail");
+        } catch (IllegalStateException expected) {
+            assertTrue(second.failureCause().getMessage().contains("in use"));
+        }
+
+        database.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+        SingleFileDatabase third = new SingleFileDatabase(Paths.get(dbFile.getAbsolutePath()), config(
+                SingleFileDatabase.StartupMode.RECOVER, SingleFileDatabase.IndexType.HEAP));
+        third.startAsync().awaitRunning(2000, TimeUnit.MILLISECONDS);
+        third.stopAsync().awaitTerminated(2000, TimeUnit.MILLISECONDS);
+    }
+
     @Test
     public void isDuplicate() throws Exception {
         assertFalse(database.isDuplicate(0));
@@ -71,4 +289,12 @@ public class SingleFileDatabaseTest {
         assertFalse(database.isDuplicate(999999999));
         assertTrue(database.isDuplicate(999999999));
     }
-}
\ No newline at end of file
+
+    /*
+     * Helpers
+     */
+    private static DatabaseConfig config(SingleFileDatabase.StartupMode startupMode,
+                                         SingleFileDatabase.IndexType indexType) {
+        return DatabaseConfig.builder().startupMode(startupMode).indexType(indexType).build();
+    }
+}
@@ -0,0 +1,126 @@
+package com.newrelic.numserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SortedExporterTest {
+
+    File dir;
+    Path output;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        output = dir.toPath().resolve("numbers.sorted");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void export_binarySpansChunks() throws Exception {
+        // several chunks, a capacity that is not a whole number of words and a number in the last bit
+        ConcurrentBitSet index = new ConcurrentBitSet(3_000_001);
+        TreeSet<Integer> expected = new TreeSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50_000; i++) {
+            int number = random.nextInt(index.capacity());
+            index.getAndSet(number);
+            expected.add(1000 + number);
+        }
+        index.getAndSet(3_000_000);
+        expected.add(1000 + 3_000_000);
+
+        try (SortedExporter exporter = new SortedExporter(SortedExporter.Format.BINARY, 4);
+             FileChannel channel = FileChannel.open(output, CREATE, WRITE)) {
+            assertEquals(expected.size() * 4L, exporter.export(index, 1000, channel, 0));
+        }
+        assertArrayEquals(toArray(expected), readBinary(output));
+    }
+
+    @Test
+    public void export_textFromShards() throws Exception {
+        DatabaseConfig config = DatabaseConfig.builder()
+                .numberRange(0, 3000)
+                .durability(SingleFileDatabase.Durability.GROUP_COMMIT)
+                .build();
+        List<Path> shardFiles = ShardedDatabase.shardFiles(dir.toPath().resolve("numbers.log"), 3,
+                new ArrayList<>());
+        ShardedDatabase database = new ShardedDatabase(shardFiles, config);
+        for (SingleFileDatabase shard : database.getShards()) {
+            shard.startAsync().awaitRunning(2, TimeUnit.SECONDS);
+        }
+        int[] numbers = {2999, 7, 1000, 999, 0, 1500, 2001, 42};
+        for (int number : numbers) {
+            database.tryInsert(number);
+        }
+
+        try (SortedExporter exporter = new SortedExporter(SortedExporter.Format.TEXT, 2)) {
+            assertEquals(numbers.length, exporter.export(database.getShards(), output));
+        }
+        for (SingleFileDatabase shard : database.getShards()) {
+            shard.stopAsync().awaitTerminated(2, TimeUnit.SECONDS);
+        }
+
+        Arrays.sort(numbers);
+        StringBuilder expected = new StringBuilder();
+        for (int number : numbers) {
+            expected.append(String.format("%09d\n", number));
+        }
+        assertEquals(expected.toString(), new String(java.nio.file.Files.readAllBytes(output), Charsets.US_ASCII));
+    }
+
+    @Test
+    public void export_emptyIndex() throws Exception {
+        SingleFileDatabase database = new SingleFileDatabase(dir.toPath().resolve("numbers.log"),
+                DatabaseConfig.builder().numberRange(0, 100).build());
+        try (SortedExporter exporter = new SortedExporter(SortedExporter.Format.TEXT, 2)) {
+            assertEquals(0, exporter.export(Collections.singletonList(database), output));
+        }
+        assertEquals(0, java.nio.file.Files.size(output));
+    }
+
+    /*
+     * Helpers
+     */
+    private static int[] toArray(TreeSet<Integer> numbers) {
+        return numbers.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int[] readBinary(Path file) throws Exception {
+        ByteBuffer buffer = ByteBuffer.wrap(java.nio.file.Files.readAllBytes(file));
+        int[] numbers = new int[buffer.remaining() / 4];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = buffer.getInt();
+        }
+        return numbers;
+    }
+}
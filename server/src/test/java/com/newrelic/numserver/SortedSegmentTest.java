@@ -0,0 +1,84 @@
+package com.newrelic.numserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SortedSegmentTest {
+
+    File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("numbers", ".sorted");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void write_roundTripsAcrossBlocks() throws Exception {
+        int[] numbers = new int[SortedSegment.BLOCK_SIZE * 2 + 5];
+        for (int i = 0; i < numbers.length; i++) {
+            // mostly one byte gaps, with an occasional large one
+            numbers[i] = i % 1000 == 0 ? i * 100000 : (i == 0 ? 0 : numbers[i - 1] + 3);
+        }
+        numbers[numbers.length - 1] = 999999999;
+        SortedSegment.write(file.toPath(), numbers, numbers.length);
+
+        SortedSegment segment = SortedSegment.open(file.toPath());
+        assertEquals(numbers.length, segment.count());
+        assertTrue(segment.isChecksumValid());
+        List<Integer> decoded = new ArrayList<>();
+        segment.forEach(decoded::add);
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(numbers[i], (int) decoded.get(i));
+        }
+        // about a byte per number, not five
+        assertTrue(file.length() < numbers.length * 2);
+    }
+
+    @Test
+    public void contains() throws Exception {
+        int[] numbers = new int[SortedSegment.BLOCK_SIZE + 10];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = 10 + i * 2;
+        }
+        SortedSegment.write(file.toPath(), numbers, numbers.length);
+
+        SortedSegment segment = SortedSegment.open(file.toPath());
+        assertTrue(segment.contains(10));
+        assertTrue(segment.contains(12));
+        assertTrue(segment.contains(10 + SortedSegment.BLOCK_SIZE * 2));
+        assertTrue(segment.contains(numbers[numbers.length - 1]));
+        assertFalse(segment.contains(9));
+        assertFalse(segment.contains(11));
+        assertFalse(segment.contains(numbers[numbers.length - 1] + 2));
+    }
+
+    @Test
+    public void isChecksumValid_detectsCorruptData() throws Exception {
+        SortedSegment.write(file.toPath(), new int[] {1, 2, 3, 500}, 4);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write(7);
+        }
+        assertFalse(SortedSegment.open(file.toPath()).isChecksumValid());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_rejectsUnsortedNumbers() throws Exception {
+        SortedSegment.write(file.toPath(), new int[] {1, 3, 2}, 3);
+    }
+}